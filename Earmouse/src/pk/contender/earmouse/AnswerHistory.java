@@ -0,0 +1,230 @@
+package pk.contender.earmouse;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The answers given to the exercises of a Module, in the order they were given.
+ * <p>
+ * Answers are stored in columns rather than as objects: the exercise indexes and the times of the answers in
+ * growable int arrays and the results in a bit set, about 8 bytes per answer. Times are stored in seconds after
+ * the base time, which is the time of the first answer unless given, the same way the answer log of
+ * {@link pk.contender.earmouse.ModuleStats} stores them.
+ * <p>
+ * Answers are read by position or with a {@link Cursor}, neither allocates per answer.
+ * <p>
+ * Answers that were compacted are no longer kept one by one but as rollups: per day and exercise the amount of
+ * answers and correct answers. Rollups always precede the individual answers in time.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class AnswerHistory {
+
+    private int size = 0;
+    private int[] exercises;
+    /** Unsigned seconds after {@link #baseTime} */
+    private int[] seconds;
+    private final BitSet results = new BitSet();
+    private long baseTime;
+    /** False until the base time is given or taken from the first answer */
+    private boolean hasBaseTime;
+
+    private int rollupCount = 0;
+    /** Per rollup the local day in days since the epoch, the exercise index and the amounts of (correct) answers */
+    private int[] rollupDays = new int[0], rollupExercises = new int[0], rollupAnswers = new int[0],
+            rollupCorrect = new int[0];
+
+    /**
+     * Construct an empty history whose base time is the time of its first answer
+     */
+    public AnswerHistory() {
+        this(16);
+        hasBaseTime = false;
+    }
+
+    /**
+     * Construct an empty history
+     * @param baseTime The base time in milliseconds
+     * @param capacity The amount of answers to make room for
+     */
+    public AnswerHistory(long baseTime, int capacity) {
+        this(capacity);
+        this.baseTime = baseTime;
+        hasBaseTime = true;
+    }
+
+    private AnswerHistory(int capacity) {
+        exercises = new int[Math.max(capacity, 16)];
+        seconds = new int[exercises.length];
+    }
+
+    /**
+     * Add an answer
+     * @param exerciseIndex The index of the exercise the answer refers to
+     * @param result The correctness of the answer
+     * @param timestamp The time of the answer in milliseconds, times before the base time are stored as the base time
+     */
+    public void add(int exerciseIndex, boolean result, long timestamp) {
+        if(!hasBaseTime) {
+            baseTime = timestamp;
+            hasBaseTime = true;
+        }
+        long delta = Math.max(0, timestamp - baseTime) / 1000;
+        addSeconds(exerciseIndex, result, (int) Math.min(delta, 0xffffffffL));
+    }
+
+    /**
+     * Add an answer whose time is already in seconds after the base time
+     * @param secondsAfterBase The unsigned amount of seconds after the base time
+     */
+    void addSeconds(int exerciseIndex, boolean result, int secondsAfterBase) {
+        if(size == exercises.length) {
+            exercises = Arrays.copyOf(exercises, size * 2);
+            seconds = Arrays.copyOf(seconds, size * 2);
+        }
+        exercises[size] = exerciseIndex;
+        seconds[size] = secondsAfterBase;
+        results.set(size, result);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The base time in milliseconds, 0 if the history is empty and no base time was given
+     */
+    public long getBaseTime() {
+        return baseTime;
+    }
+
+    public int getExerciseIndex(int position) {
+        return exercises[position];
+    }
+
+    public boolean getResult(int position) {
+        return results.get(position);
+    }
+
+    /**
+     * @return The time of the answer in milliseconds, to the second
+     */
+    public long getTimestamp(int position) {
+        return baseTime + getSecondsAfterBase(position) * 1000;
+    }
+
+    /**
+     * @return The time of the answer in seconds after the base time
+     */
+    long getSecondsAfterBase(int position) {
+        return seconds[position] & 0xffffffffL;
+    }
+
+    /**
+     * Add a rollup of compacted answers
+     * @param day The local day of the answers, in days since the epoch
+     * @param exerciseIndex The index of the exercise the answers refer to
+     * @param answers The amount of answers
+     * @param correct The amount of correct answers
+     */
+    public void addRollup(int day, int exerciseIndex, int answers, int correct) {
+        if(rollupCount == rollupDays.length) {
+            int capacity = Math.max(16, rollupCount * 2);
+            rollupDays = Arrays.copyOf(rollupDays, capacity);
+            rollupExercises = Arrays.copyOf(rollupExercises, capacity);
+            rollupAnswers = Arrays.copyOf(rollupAnswers, capacity);
+            rollupCorrect = Arrays.copyOf(rollupCorrect, capacity);
+        }
+        rollupDays[rollupCount] = day;
+        rollupExercises[rollupCount] = exerciseIndex;
+        rollupAnswers[rollupCount] = answers;
+        rollupCorrect[rollupCount] = correct;
+        rollupCount++;
+    }
+
+    /**
+     * Add answers to an existing rollup
+     * @param rollup The position of the rollup
+     */
+    void addToRollup(int rollup, int answers, int correct) {
+        rollupAnswers[rollup] += answers;
+        rollupCorrect[rollup] += correct;
+    }
+
+    public int getRollupCount() {
+        return rollupCount;
+    }
+
+    public int getRollupDay(int rollup) {
+        return rollupDays[rollup];
+    }
+
+    public int getRollupExerciseIndex(int rollup) {
+        return rollupExercises[rollup];
+    }
+
+    public int getRollupAnswers(int rollup) {
+        return rollupAnswers[rollup];
+    }
+
+    public int getRollupCorrect(int rollup) {
+        return rollupCorrect[rollup];
+    }
+
+    /**
+     * Copy a range of answers, keeping the base time
+     * @param from The position of the first answer to copy
+     * @param to The position after the last answer to copy
+     * @return A new history with the answers, without rollups
+     */
+    public AnswerHistory copy(int from, int to) {
+        AnswerHistory copy = new AnswerHistory(baseTime, to - from);
+        copy.hasBaseTime = hasBaseTime;
+        for (int i = from; i < to; i++) {
+            copy.addSeconds(exercises[i], results.get(i), seconds[i]);
+        }
+        return copy;
+    }
+
+    /**
+     * @return A cursor positioned before the first answer
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Walks through the answers in order, reading them from the columns.
+     */
+    public class Cursor {
+        private int position = -1;
+
+        /**
+         * Move to the next answer
+         * @return False if there are no more answers
+         */
+        public boolean moveToNext() {
+            if(position + 1 >= size)
+                return false;
+            position++;
+            return true;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public int getExerciseIndex() {
+            return AnswerHistory.this.getExerciseIndex(position);
+        }
+
+        public boolean getResult() {
+            return AnswerHistory.this.getResult(position);
+        }
+
+        public long getTimestamp() {
+            return AnswerHistory.this.getTimestamp(position);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package pk.contender.earmouse;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Convolves a signal with an impulse response using uniformly partitioned FFT convolution.
+ * <p>
+ * The impulse response is split into partitions of {@link #getBlockSize()} samples whose spectra are computed
+ * once. The input is processed one block at a time with overlap-save, the spectrum of every input block is
+ * kept in a frequency domain delay line and multiplied with the matching partition, so the cost per block is
+ * one forward and one inverse FFT plus one complex multiply-add per partition, no matter how long the impulse
+ * response is.<br>
+ * All work buffers are allocated by the constructor, {@link #processBlock} allocates nothing.
+ * <p>
+ * A ConvolutionReverb processes a single channel and keeps state between blocks, use one instance per channel
+ * and {@link #reset()} it before each new signal.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ConvolutionReverb {
+
+    /** Length of the input and output blocks, also the length of a partition */
+    private final int blockSize;
+    /** The amount of frequency bins we store, the upper half of the spectrum of a real signal is implied */
+    private final int bins;
+    /** The amount of partitions the impulse response was split into */
+    private final int partitions;
+    /** The length of the impulse response */
+    private final int impulseLength;
+    private final FFT fft;
+
+    /** Spectra of the impulse response partitions */
+    private final float[][] partitionRe, partitionIm;
+    /** Spectra of the most recent input blocks, partitions long, slot delayHead holds the newest */
+    private final float[][] delayRe, delayIm;
+    private int delayHead = 0;
+    /** The previous input block, the first half of the overlap-save window */
+    private final float[] history;
+    /** FFT work buffers, twice the block size */
+    private final float[] workRe, workIm;
+    /** Spectrum of the output block */
+    private final float[] accRe, accIm;
+
+    /**
+     * Construct a ConvolutionReverb
+     * @param impulse The impulse response
+     * @param blockSize The block size, must be a power of two
+     */
+    public ConvolutionReverb(float[] impulse, int blockSize) {
+        this.blockSize = blockSize;
+        this.impulseLength = impulse.length;
+        int fftSize = blockSize * 2;
+        fft = new FFT(fftSize);
+        bins = blockSize + 1;
+        partitions = Math.max(1, (impulse.length + blockSize - 1) / blockSize);
+
+        workRe = new float[fftSize];
+        workIm = new float[fftSize];
+        accRe = new float[bins];
+        accIm = new float[bins];
+        history = new float[blockSize];
+        delayRe = new float[partitions][bins];
+        delayIm = new float[partitions][bins];
+        partitionRe = new float[partitions][bins];
+        partitionIm = new float[partitions][bins];
+
+        for (int p = 0; p < partitions; p++) {
+            Arrays.fill(workRe, 0f);
+            Arrays.fill(workIm, 0f);
+            int offset = p * blockSize;
+            for (int i = 0; i < blockSize && offset + i < impulse.length; i++) {
+                workRe[i] = impulse[offset + i];
+            }
+            fft.forward(workRe, workIm);
+            System.arraycopy(workRe, 0, partitionRe[p], 0, bins);
+            System.arraycopy(workIm, 0, partitionIm[p], 0, bins);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return The length of the impulse response, the amount of samples the output rings on after the input ends
+     */
+    public int getTailLength() {
+        return impulseLength;
+    }
+
+    /**
+     * Clear the state left by earlier blocks.
+     */
+    public void reset() {
+        for (int p = 0; p < partitions; p++) {
+            Arrays.fill(delayRe[p], 0f);
+            Arrays.fill(delayIm[p], 0f);
+        }
+        Arrays.fill(history, 0f);
+        delayHead = 0;
+    }
+
+    /**
+     * Convolve the next block of the input.
+     * @param in {@link #getBlockSize()} input samples
+     * @param out Receives {@link #getBlockSize()} samples of the convolved signal, may not be the same array as in
+     */
+    public void processBlock(float[] in, float[] out) {
+        // Overlap-save window: the previous block followed by this one
+        System.arraycopy(history, 0, workRe, 0, blockSize);
+        System.arraycopy(in, 0, workRe, blockSize, blockSize);
+        System.arraycopy(in, 0, history, 0, blockSize);
+        Arrays.fill(workIm, 0f);
+        fft.forward(workRe, workIm);
+
+        delayHead = (delayHead + partitions - 1) % partitions;
+        System.arraycopy(workRe, 0, delayRe[delayHead], 0, bins);
+        System.arraycopy(workIm, 0, delayIm[delayHead], 0, bins);
+
+        // Block k - p of the input meets partition p of the impulse response
+        Arrays.fill(accRe, 0f);
+        Arrays.fill(accIm, 0f);
+        for (int p = 0; p < partitions; p++) {
+            float[] xRe = delayRe[(delayHead + p) % partitions];
+            float[] xIm = delayIm[(delayHead + p) % partitions];
+            float[] hRe = partitionRe[p];
+            float[] hIm = partitionIm[p];
+            for (int k = 0; k < bins; k++) {
+                accRe[k] += xRe[k] * hRe[k] - xIm[k] * hIm[k];
+                accIm[k] += xRe[k] * hIm[k] + xIm[k] * hRe[k];
+            }
+        }
+
+        // Rebuild the full spectrum, the output is real so the upper half mirrors the lower half
+        System.arraycopy(accRe, 0, workRe, 0, bins);
+        System.arraycopy(accIm, 0, workIm, 0, bins);
+        for (int k = 1; k < blockSize; k++) {
+            workRe[2 * blockSize - k] = accRe[k];
+            workIm[2 * blockSize - k] = -accIm[k];
+        }
+        fft.inverse(workRe, workIm);
+
+        // Only the second half of the window is free of circular wrap-around
+        System.arraycopy(workRe, blockSize, out, 0, blockSize);
+    }
+
+    /**
+     * Generate the impulse response of a small room: exponentially decaying noise that loses its high
+     * frequencies as it decays, normalized to unit energy.
+     * <p>
+     * The same seed always gives the same response, use different seeds per channel for some stereo width.
+     * @param sampleRate The sampling rate of the signal it will be applied to
+     * @param decaySeconds The time it takes the response to decay by 60dB
+     * @param seed The seed for the noise
+     * @return The impulse response
+     */
+    public static float[] createRoomResponse(int sampleRate, float decaySeconds, long seed) {
+        Random random = new Random(seed);
+        int length = (int) (sampleRate * decaySeconds);
+        // leave a few milliseconds between the direct sound and the first reflections
+        int preDelay = sampleRate / 100;
+        float[] result = new float[length];
+
+        double energy = 0;
+        float lowpass = 0f;
+        for (int i = preDelay; i < length; i++) {
+            double t = (double) i / length;
+            // -60dB at the end of the response
+            float envelope = (float) Math.exp(-6.9 * t);
+            // a one-pole lowpass that closes as the response decays
+            float coefficient = (float) (0.6 - 0.45 * t);
+            lowpass += coefficient * ((float) random.nextGaussian() - lowpass);
+            result[i] = lowpass * envelope;
+            energy += result[i] * result[i];
+        }
+
+        if(energy > 0) {
+            float scale = (float) (1.0 / Math.sqrt(energy));
+            for (int i = 0; i < length; i++) {
+                result[i] *= scale;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,201 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Plays a sustained reference tone (drone) underneath the exercises.
+ * <p>
+ * A short stretch of the sample of the drone note is turned into a seamless loop by cross-fading its end into
+ * the audio just before its start. A dedicated thread streams that loop to an {@link android.media.AudioTrack}
+ * in small chunks, the platform mixes it with the exercise audio played by the MediaPlayer. The loop and chunk
+ * buffers are only reallocated when the drone note changes, so CPU and memory use stay the same no matter how
+ * long the drone plays.
+ * <p>
+ * All AudioTrack calls are made from the streaming thread, the public methods only post requests to it.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class DronePlayer implements Runnable {
+
+    /** Volume of the drone relative to the exercise */
+    private static final float DRONE_GAIN = 0.3f;
+    /** Upper bound on the length of the loop */
+    private static final int LOOP_FRAMES = SampleBank.SAMPLES_RATE / 2;
+    /** Upper bound on the length of the cross-fade that joins the end of the loop to its start */
+    private static final int CROSSFADE_FRAMES = SampleBank.SAMPLES_RATE / 10;
+    /** Frames written to the AudioTrack per iteration, this is also the latency of start/stop requests */
+    private static final int CHUNK_FRAMES = 1024;
+    /** Value of a note that is not set */
+    private static final int NO_NOTE = Integer.MIN_VALUE;
+
+    private final SampleBank mSampleBank;
+    private final Object lock = new Object();
+
+    /* Requested state, guarded by lock */
+    private int requestedNote = NO_NOTE;
+    private boolean playRequested = false;
+    private boolean released = false;
+
+    /* State owned by the streaming thread */
+    private int loopNote = NO_NOTE;
+    private short[] loop = null;
+    private int loopPosition = 0;
+    private final short[] chunk = new short[CHUNK_FRAMES * SampleBank.SAMPLES_CHANNELS];
+
+    private final Thread thread;
+
+    public DronePlayer(Context context) {
+        mSampleBank = new SampleBank(context);
+        thread = new Thread(this, "DronePlayer");
+        thread.start();
+    }
+
+    /**
+     * Set the note the drone plays, takes effect at the next chunk.
+     * @param note The note, 0 refers to C2
+     */
+    public void setNote(int note) {
+        synchronized (lock) {
+            requestedNote = note;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Start playing, the drone stays silent until a note has been set.
+     */
+    public void start() {
+        synchronized (lock) {
+            playRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop playing, the loop is kept so starting again is instantaneous.
+     */
+    public void stop() {
+        synchronized (lock) {
+            playRequested = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop playing and release the AudioTrack and the streaming thread, this instance can not be used afterwards.
+     */
+    public void release() {
+        synchronized (lock) {
+            released = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        int bufferSize = Math.max(AudioTrack.getMinBufferSize(SampleBank.SAMPLES_RATE, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT), chunk.length * 2 * 2);
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, SampleBank.SAMPLES_RATE, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+        boolean trackPlaying = false;
+
+        try {
+            while (true) {
+                int note;
+                synchronized (lock) {
+                    while (!released && (!playRequested || requestedNote == NO_NOTE)) {
+                        if (trackPlaying) {
+                            // Stop straight away rather than after the buffered audio
+                            track.pause();
+                            track.flush();
+                            trackPlaying = false;
+                        }
+                        lock.wait();
+                    }
+                    if (released)
+                        break;
+                    note = requestedNote;
+                }
+
+                if (note != loopNote) {
+                    try {
+                        loop = buildLoop(note);
+                    } catch (IOException e) {
+                        Log.d("DEBUG", "DronePlayer: no sample for note " + note);
+                        synchronized (lock) {
+                            if (requestedNote == note)
+                                requestedNote = NO_NOTE;
+                        }
+                        continue;
+                    }
+                    loopNote = note;
+                    loopPosition = 0;
+                }
+
+                if (!trackPlaying) {
+                    track.play();
+                    trackPlaying = true;
+                }
+
+                // Copy the next chunk out of the loop, wrapping around at its end
+                for (int i = 0; i < chunk.length; i++) {
+                    chunk[i] = loop[loopPosition++];
+                    if (loopPosition == loop.length)
+                        loopPosition = 0;
+                }
+                // Blocks until there is room in the AudioTrack buffer, which paces this loop
+                track.write(chunk, 0, chunk.length);
+            }
+        } catch (InterruptedException e) {
+            Log.d("DEBUG", "DronePlayer interrupted");
+        } finally {
+            track.stop();
+            track.release();
+        }
+    }
+
+    /**
+     * Build a seamless loop out of the sample of the given note.
+     * <p>
+     * The loop starts a fifth into the sample, past the attack. Its last frames are cross-faded with the frames
+     * just before its start, so the end of the loop runs into its first frame without a click.
+     * @param note The note to build the loop for
+     * @return The loop, interleaved 16 bit stereo
+     * @throws IOException If the sample could not be loaded
+     */
+    private short[] buildLoop(int note) throws IOException {
+        short[] sample = mSampleBank.getSample(note);
+        int channels = SampleBank.SAMPLES_CHANNELS;
+        int frames = sample.length / channels;
+
+        int start = frames / 5;
+        int length = Math.min(LOOP_FRAMES, frames - start);
+        int crossfade = Math.min(CROSSFADE_FRAMES, Math.min(start, length / 2));
+        if (length <= 0)
+            throw new IOException("Sample for note " + note + " is too short to loop");
+
+        short[] result = new short[length * channels];
+        int fadeStart = length - crossfade;
+        for (int frame = 0; frame < length; frame++) {
+            for (int channel = 0; channel < channels; channel++) {
+                float value = sample[(start + frame) * channels + channel];
+                if (frame >= fadeStart) {
+                    float t = (float) (frame - fadeStart) / crossfade;
+                    float lead = sample[(start - crossfade + frame - fadeStart) * channels + channel];
+                    value = value * (1.0f - t) + lead * t;
+                }
+                result[frame * channels + channel] = (short) (value * DRONE_GAIN);
+            }
+        }
+        return result;
+    }
+}
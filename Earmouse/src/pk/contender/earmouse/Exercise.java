@@ -1,38 +1,103 @@
 package pk.contender.earmouse;
 
-import java.util.ArrayList;
-import java.util.List;
-
-/** An abstraction of an exercise, contains a List of exercise units, which are in turn Lists of Integers.
+/** An abstraction of an exercise, contains a sequence of exercise units, which are in turn sequences of notes.
  * <p>
- * An exercise is a List of one or more "exercise units", an exercise unit is a List of one or more samples to be played at once.
+ * An exercise is a sequence of one or more "exercise units", an exercise unit is one or more samples to be played at once.
  * In an exercise, the exercise units are played one after the other.<br>
  * This enables the following exercise setups:<br>
  * - A single note (for whatever reason): exerciseUnits = { { note } }<br>
  * - A single chord: exerciseUnits = { { note1, note2, note3 } }<br>
  * - A sequence of single notes or chords: exerciseUnits = { { note1, note2, note3 }, { note1, note2, note3 }, {etc} }
- * 
+ * <p>
+ * In a Module's definition the values relate to each other as follows:<br>
+ * If exerciseUnits = { { note1, note2, note3 }, { note4, note5, note6 } }<br>
+ * note1 is _always_ 0, this is basically the center of the entire exercise.<br>
+ * note2 and note3 are offsets from note1 and can only be positive.<br>
+ * note4 is the offset from note1(so zero) of the lowest note for this exercise unit.<br>
+ * note5 and note6 are offsets from note4 and can only be positive.<br>
+ * As an example a representation of an Exercise with 2 exercise units, a Major chord and then
+ * the same Major chord played a whole tone lower: <br>
+ * exerciseUnits = { { 0, 4, 7}, {-2, 4, 7} }
+ * <p>
+ * Those definitions are kept in an {@link pk.contender.earmouse.ExerciseTable}, an Exercise instance holds
+ * one of them transposed by {@link Module#getExercise} to absolute notes, ready to be rendered. The notes are
+ * kept in flat int arrays that are reused when the Exercise is filled in again.
+ *
  * @author Paul Klinkenberg <pklinken.development@gmail.com>
  */
 public class Exercise {
 
+	/** The absolute notes of all exercise units, one unit after the other */
+	int[] notes;
+	/** unitStart[u] is the index in {@link #notes} of the first note of unit u, unitStart[unitCount] ends the last unit */
+	int[] unitStart;
+	/** The amount of exercise units */
+	int unitCount;
+
+	/**
+	 * The note note1 was transposed to by {@link Module#getExercise}, the intervals of the {@link #tuning}
+	 * are relative to this note.
+	 */
+	public int baseNote = 0;
+
 	/**
-	 * Contains the exercise units of this Exercise.
-	 * <p>
-	 * The values relate to each other as follows:<br>
-	 * If exerciseUnits = { { note1, note2, note3 }, { note4, note5, note6 } }<br>
-	 * note1 is _always_ 0, this is basically the center of the entire exercise.<br>
-	 * note2 and note3 are offsets from note1 and can only be positive.<br>
-	 * note4 is the offset from note1(so zero) of the lowest note for this exercise unit.<br>
-	 * note5 and note6 are offsets from note4 and can only be positive.<br>
-	 * As an example a representation of an Exercise with 2 exercise units, a Major chord and then
-	 * the same Major chord played a whole tone lower: <br>
-	 * exerciseUnits = { { 0, 4, 7}, {-2, 4, 7} }
+	 * The tuning system this Exercise is to be rendered in.
 	 */
-	public final List<List<Integer>> exerciseUnits;
-	
+	public Tuning tuning = Tuning.EQUAL;
+
 	public Exercise() {
-		exerciseUnits = new ArrayList<>();
+		notes = new int[8];
+		unitStart = new int[4];
+		unitCount = 0;
+	}
+
+	/**
+	 * Make room for the given amount of units and notes, growing the arrays only if they are too small
+	 */
+	void reset(int units, int noteCount) {
+		if(notes.length < noteCount)
+			notes = new int[noteCount];
+		if(unitStart.length < units + 1)
+			unitStart = new int[units + 1];
+		unitCount = units;
+		unitStart[units] = noteCount;
 	}
 
+	public int getUnitCount() {
+		return unitCount;
+	}
+
+	/**
+	 * @return The amount of notes played at once in the given exercise unit
+	 */
+	public int getNoteCount(int unit) {
+		return unitStart[unit + 1] - unitStart[unit];
+	}
+
+	/**
+	 * @return The absolute note at index in the given exercise unit
+	 */
+	public int getNote(int unit, int index) {
+		return notes[unitStart[unit] + index];
+	}
+
+	/**
+	 * @return The exercise units in the form { { note1, note2 }, { note3 } }
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("[");
+		for (int unit = 0; unit < unitCount; unit++) {
+			if(unit > 0)
+				builder.append(", ");
+			builder.append('[');
+			for (int i = unitStart[unit]; i < unitStart[unit + 1]; i++) {
+				if(i > unitStart[unit])
+					builder.append(", ");
+				builder.append(notes[i]);
+			}
+			builder.append(']');
+		}
+		return builder.append(']').toString();
+	}
 }
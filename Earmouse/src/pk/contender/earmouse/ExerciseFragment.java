@@ -8,6 +8,7 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Toast;
 
 import java.util.List;
 
@@ -17,7 +18,7 @@ import java.util.List;
  *
  * @author Paul Klinkenberg <pklinken.development@gmail.com>
  */
-public class ExerciseFragment extends Fragment {
+public class ExerciseFragment extends Fragment implements ModuleRegistry.Listener {
 
     /**
      * State in which an exercise is prepared and has been played at least once, the buttons in the
@@ -57,7 +58,7 @@ public class ExerciseFragment extends Fragment {
      */
     private Module mod = null;
     /**
-     * Index of the {@link pk.contender.earmouse.Module} in {@link Main#mModules}
+     * Index of the {@link pk.contender.earmouse.Module} in {@link Main#getModuleList()}
      */
     private int modIndex = -1;
     /**
@@ -121,24 +122,22 @@ public class ExerciseFragment extends Fragment {
                     return;
                 }
                 else {
-                    for (Module m : Main.getModuleList()) {
-                        if(m.getId() == modId) {
-                            mod = m;
-                            modIndex = Main.getModuleList().indexOf(mod);
-
-                        }
-                    }
                     currentExercise = settings.getInt(PREFERENCES_CURRENTEXERCISE, 0);
-                    prepareExercise(false);
+                    Module m = Main.getModuleById(modId);
+                    if(m != null) {
+                        if(!restoreModule(m))
+                            return;
+                    } else if(Main.isModuleListLoaded()) {
+                        setModule(-1);
+                        return;
+                    } else {
+                        // The Module list is still being loaded in the background, restore once our Module is in
+                        Main.getModuleRegistry().addListener(this);
+                        Main.loadModuleList(mCtx);
+                        return;
+                    }
                 }
 
-                ModuleDetailsFragment detailFragment = (ModuleDetailsFragment) getFragmentManager().findFragmentById(R.id.moduledetail);
-                if (detailFragment != null) {
-                    detailFragment.setTitle(mod.getTitle());
-                    detailFragment.setDescription(mod.getDescription());
-                } else
-                    Log.d("DEBUG", "ModuleDetailsFragment is null");
-
 
                 updateFeedbackStatistics();
             }
@@ -272,6 +271,74 @@ public class ExerciseFragment extends Fragment {
         isEmpty = false;
     }
 
+    /**
+     * Restore the state saved in {@link #onPause()} for the given Module
+     * @param m The Module with id {@link #modId}
+     * @return True if the Module was restored, false if it can not be played and the UI was set to 'empty'
+     */
+    private boolean restoreModule(Module m) {
+        if(!canPlay(m)) {
+            setModule(-1);
+            return false;
+        }
+        mod = m;
+        modIndex = Main.getModuleRegistry().indexOf(mod.getId());
+        prepareExercise(false);
+
+        ModuleDetailsFragment detailFragment = (ModuleDetailsFragment) getFragmentManager().findFragmentById(R.id.moduledetail);
+        if (detailFragment != null) {
+            detailFragment.setTitle(mod.getTitle());
+            detailFragment.setDescription(mod.getDescription());
+        } else
+            Log.d("DEBUG", "ModuleDetailsFragment is null");
+        return true;
+    }
+
+    @Override
+    public void onModuleAdded(Module m, int position) {
+        if(mod == null) {
+            if(m.getId() == modId && restoreModule(m))
+                updateFeedbackStatistics();
+        } else if(position <= modIndex)
+            modIndex++;
+    }
+
+    @Override
+    public void onModuleRemoved(Module m, int position) {
+        if(mod != null && position < modIndex)
+            modIndex--;
+    }
+
+    @Override
+    public void onModuleUpdated(Module old, int oldPosition, Module m, int position) {
+        if(m.getId() != modId) {
+            if(mod != null)
+                modIndex = Main.getModuleRegistry().indexOf(modId);
+        } else if(mod == null) {
+            if(restoreModule(m))
+                updateFeedbackStatistics();
+        } else if(m != mod) {
+            // Our Module was reinstalled, its answers and exercises may have changed
+            setModule(position);
+        }
+    }
+
+    @Override
+    public void onModuleListLoaded() {
+        Main.getModuleRegistry().removeListener(this);
+        // Our Module was not among the installed ones
+        if(mod == null)
+            setModule(-1);
+        else
+            modIndex = Main.getModuleRegistry().indexOf(modId);
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        Main.getModuleRegistry().removeListener(this);
+    }
+
     /**
      * Display the Module at position in {@link pk.contender.earmouse.Main#getModuleList()} <p>
      * If position is out of bounds set the UI to 'empty', otherwise load the selected
@@ -287,6 +354,9 @@ public class ExerciseFragment extends Fragment {
             modId = -1;
             setEmpty();
             return;
+        } else if(!canPlay(moduleList.get(position))) {
+            setModule(-1);
+            return;
         } else if (isEmpty)
             setNotEmpty();
         mod = moduleList.get(position);
@@ -311,6 +381,20 @@ public class ExerciseFragment extends Fragment {
         updateFeedbackStatistics();
     }
 
+    /**
+     * Modules installed from the assets or by an older version of the app did not pass the
+     * {@link ModuleCompiler}, refuse the ones that do not, as their exercises can not be served.
+     * @return True if the Module can be practiced, otherwise the user is told it can not
+     */
+    private boolean canPlay(Module m) {
+        ModuleCompiler.Result compiled = m.getCompiled();
+        if(compiled.isValid())
+            return true;
+        Log.d("DEBUG", "Refusing module " + m.getId() + ": " + compiled.getErrors());
+        Toast.makeText(mCtx, R.string.toast_module_invalid, Toast.LENGTH_LONG).show();
+        return false;
+    }
+
     public int getModuleIndex() {
         return modIndex;
     }
@@ -321,9 +405,10 @@ public class ExerciseFragment extends Fragment {
     @Override
     public void onPause() {
         super.onPause();
-        // Possibly superfluous to write to disk here.
+        // Write out the answers still waiting in the StatsWriter
         if(mod != null)
             mod.saveState();
+        StatsWriter.getInstance(mCtx).flush();
 
         SharedPreferences settings = mCtx.getSharedPreferences(Main.PREFS_NAME, Activity.MODE_PRIVATE);
         settings.edit().putBoolean(PREFERENCES_ISEMPTY, isEmpty).putInt(PREFERENCES_MODINDEX, modIndex)
@@ -349,6 +434,10 @@ public class ExerciseFragment extends Fragment {
      */
     private void prepareExercise(boolean playNow){
         currentExercise = mod.getWeightedExerciseIndex();
+        if(currentExercise < 0) {
+            Log.d("DEBUG", "Module " + mod.getId() + " has no playable exercises");
+            return;
+        }
 
         ButtonGridFragment buttonFragment = (ButtonGridFragment) getFragmentManager().findFragmentById(R.id.buttongrid);
         if(buttonFragment != null) {
@@ -457,9 +546,11 @@ public class ExerciseFragment extends Fragment {
      * Update {@link pk.contender.earmouse.FeedbackBarFragment} statistics
      */
     public void updateFeedbackStatistics() {
+        if(mod == null)
+            return;
         FeedbackBarFragment feedbackFragment = (FeedbackBarFragment) getFragmentManager().findFragmentById(R.id.feedbackbar);
         if(feedbackFragment != null) {
-            feedbackFragment.setStatistics(mod.getSuccessRate());
+            feedbackFragment.setStatistics(mod.getRecentSuccessRate(), mod.getAnswersToday());
         } else {
             Log.d("DEBUG", "FeedbackBarFragment is null");
         }
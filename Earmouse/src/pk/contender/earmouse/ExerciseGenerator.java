@@ -0,0 +1,697 @@
+package pk.contender.earmouse;
+
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Describes a family of exercises by rule instead of listing them, e.g. "every interval up to an octave" or
+ * "every chord quality in every inversion".
+ * <p>
+ * Modules can declare generators in their JSON with the "generators" field, an array of objects with a "type":<br>
+ * - "intervals": "intervals" (semitones) and their "answers", one exercise per interval<br>
+ * - "chords": "qualities", each with a "name" and the "intervals" above its root, and optionally "inversions"
+ *   (true to add every inversion) with "inversionNames", one exercise per quality and inversion<br>
+ * - "progressions": "chords", each with a "name", a "root" and "intervals", the progression "length" and
+ *   optionally the allowed "start" chords and per chord the "transitions" to the chords that may follow it,
+ *   one exercise per progression the grammar allows<br>
+ * Intervals and chords also take a "mode": "ascending" and "descending" play their notes one after the other,
+ * "harmonic" plays them at once.
+ * <p>
+ * A generator knows how many exercises it produces without producing them. The Module expands its generators
+ * into its {@link pk.contender.earmouse.ExerciseTable} and answer list when they are first needed, and stores only
+ * the generators themselves, so a Module with thousands of exercises stays small on disk.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public abstract class ExerciseGenerator {
+
+    /** Generator types in the binary format */
+    private static final int TYPE_INTERVALS = 0, TYPE_CHORDS = 1, TYPE_PROGRESSIONS = 2;
+    /** How the notes of an interval or chord are played */
+    static final int MODE_ASCENDING = 0, MODE_DESCENDING = 1, MODE_HARMONIC = 2;
+    private static final String[] MODE_NAMES = { "ascending", "descending", "harmonic" };
+    /** The most exercises a single generator may produce */
+    static final int MAX_EXERCISES = 65536;
+
+    /**
+     * @return The amount of exercises this generator produces
+     */
+    public abstract int getCount();
+
+    /**
+     * @return The answer to the exercise at index
+     */
+    public abstract String getAnswer(int index);
+
+    /**
+     * Add the exercise at index to the builder, in the format described at {@link pk.contender.earmouse.Exercise}
+     */
+    public abstract void generate(int index, ExerciseTable.Builder builder);
+
+    abstract void writeToJson(JsonWriter writer) throws IOException;
+
+    abstract void writeToBinary(DataOutput out) throws IOException;
+
+    /**
+     * Read a generator object
+     * @param reader The reader, positioned at the start of the object
+     * @return The generator
+     * @throws IOException If the object is malformed or of an unknown type
+     */
+    public static ExerciseGenerator readFromJson(JsonReader reader) throws IOException {
+        String type = null;
+        int mode = MODE_ASCENDING;
+        int[] intervals = null;
+        List<String> answers = null;
+        List<Chord> chords = null;
+        boolean inversions = false;
+        List<String> inversionNames = null;
+        int length = 0;
+        int[] start = null;
+        int[][] transitions = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    type = reader.nextString();
+                    break;
+                case "mode":
+                    mode = Arrays.asList(MODE_NAMES).indexOf(reader.nextString());
+                    if(mode < 0)
+                        throw new IOException("Unknown generator mode");
+                    break;
+                case "intervals":
+                    intervals = readIntArray(reader);
+                    break;
+                case "answers":
+                    answers = readStringList(reader);
+                    break;
+                case "qualities":
+                case "chords":
+                    chords = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        chords.add(Chord.readFromJson(reader));
+                    }
+                    reader.endArray();
+                    break;
+                case "inversions":
+                    inversions = reader.nextBoolean();
+                    break;
+                case "inversionNames":
+                    inversionNames = readStringList(reader);
+                    break;
+                case "length":
+                    length = reader.nextInt();
+                    break;
+                case "start":
+                    start = readIntArray(reader);
+                    break;
+                case "transitions":
+                    List<int[]> list = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        list.add(readIntArray(reader));
+                    }
+                    reader.endArray();
+                    transitions = list.toArray(new int[list.size()][]);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if(type == null)
+            throw new IOException("Generator without a type");
+        switch (type) {
+            case "intervals":
+                if(intervals == null || answers == null)
+                    throw new IOException("Interval generator needs intervals and answers");
+                return new Intervals(intervals, answers.toArray(new String[answers.size()]), mode);
+            case "chords":
+                if(chords == null)
+                    throw new IOException("Chord generator needs qualities");
+                String[] names = inversionNames != null ? inversionNames.toArray(new String[inversionNames.size()]) : null;
+                return new Chords(chords.toArray(new Chord[chords.size()]), inversions, names, mode);
+            case "progressions":
+                if(chords == null)
+                    throw new IOException("Progression generator needs chords");
+                return new Progressions(chords.toArray(new Chord[chords.size()]), length, start, transitions);
+            default:
+                throw new IOException("Unknown generator type " + type);
+        }
+    }
+
+    /**
+     * Read a generator as written by {@link #writeToBinary}
+     */
+    static ExerciseGenerator readFromBinary(DataInput in) throws IOException {
+        switch (in.readUnsignedByte()) {
+            case TYPE_INTERVALS: {
+                int mode = in.readUnsignedByte();
+                int[] intervals = new int[Module.readVarInt(in)];
+                String[] answers = new String[intervals.length];
+                for (int i = 0; i < intervals.length; i++) {
+                    intervals[i] = Module.readSignedVarInt(in);
+                    answers[i] = Module.readInlineString(in);
+                }
+                return new Intervals(intervals, answers, mode);
+            }
+            case TYPE_CHORDS: {
+                int mode = in.readUnsignedByte();
+                Chord[] chords = readChords(in);
+                boolean inversions = in.readBoolean();
+                String[] names = null;
+                int nameCount = Module.readVarInt(in);
+                if(nameCount > 0) {
+                    names = new String[nameCount - 1];
+                    for (int i = 0; i < names.length; i++) {
+                        names[i] = Module.readInlineString(in);
+                    }
+                }
+                return new Chords(chords, inversions, names, mode);
+            }
+            case TYPE_PROGRESSIONS: {
+                Chord[] chords = readChords(in);
+                int length = Module.readVarInt(in);
+                int[] start = readIntArray(in);
+                int[][] transitions = null;
+                int transitionCount = Module.readVarInt(in);
+                if(transitionCount > 0) {
+                    transitions = new int[transitionCount - 1][];
+                    for (int i = 0; i < transitions.length; i++) {
+                        transitions[i] = readIntArray(in);
+                    }
+                }
+                return new Progressions(chords, length, start, transitions);
+            }
+            default:
+                throw new IOException("Unknown generator type");
+        }
+    }
+
+    /**
+     * Add a set of notes as an exercise
+     * @param notes The notes in semitones, in any order
+     * @param mode One of the MODE_ constants
+     */
+    private static void emit(int[] notes, int mode, ExerciseTable.Builder builder) {
+        int[] sorted = Arrays.copyOf(notes, notes.length);
+        Arrays.sort(sorted);
+        builder.startExercise();
+        switch (mode) {
+            case MODE_HARMONIC:
+                builder.startUnit();
+                builder.addNote(0);
+                for (int i = 1; i < sorted.length; i++) {
+                    builder.addNote(sorted[i] - sorted[0]);
+                }
+                break;
+            case MODE_DESCENDING:
+                for (int i = sorted.length - 1; i >= 0; i--) {
+                    builder.startUnit();
+                    builder.addNote(sorted[i] - sorted[sorted.length - 1]);
+                }
+                break;
+            default:
+                for (int note : sorted) {
+                    builder.startUnit();
+                    builder.addNote(note - sorted[0]);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Generates one exercise per interval: the base note and the note the interval above it
+     */
+    static class Intervals extends ExerciseGenerator {
+
+        private final int[] intervals;
+        private final String[] answers;
+        private final int mode;
+
+        Intervals(int[] intervals, String[] answers, int mode) throws IOException {
+            if(answers.length != intervals.length)
+                throw new IOException("Interval generator needs one answer per interval");
+            if(intervals.length > MAX_EXERCISES)
+                throw new IOException("Interval generator produces too many exercises");
+            this.intervals = intervals;
+            this.answers = answers;
+            this.mode = mode;
+        }
+
+        @Override
+        public int getCount() {
+            return intervals.length;
+        }
+
+        @Override
+        public String getAnswer(int index) {
+            return answers[index];
+        }
+
+        @Override
+        public void generate(int index, ExerciseTable.Builder builder) {
+            emit(new int[] { 0, intervals[index] }, mode, builder);
+        }
+
+        @Override
+        void writeToJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("type").value("intervals");
+            writer.name("mode").value(MODE_NAMES[mode]);
+            writeIntArray(writer.name("intervals"), intervals);
+            writeStringArray(writer.name("answers"), answers);
+            writer.endObject();
+        }
+
+        @Override
+        void writeToBinary(DataOutput out) throws IOException {
+            out.writeByte(TYPE_INTERVALS);
+            out.writeByte(mode);
+            Module.writeVarInt(out, intervals.length);
+            for (int i = 0; i < intervals.length; i++) {
+                Module.writeSignedVarInt(out, intervals[i]);
+                Module.writeInlineString(out, answers[i]);
+            }
+        }
+    }
+
+    /**
+     * Generates one exercise per chord quality and, if enabled, per inversion of it
+     */
+    static class Chords extends ExerciseGenerator {
+
+        private final Chord[] qualities;
+        private final boolean inversions;
+        /** Names of the inversions, index 0 being root position, may be null */
+        private final String[] inversionNames;
+        private final int mode;
+        /** firstExercise[q] is the index of the first exercise of quality q, the last entry is the count */
+        private final int[] firstExercise;
+
+        Chords(Chord[] qualities, boolean inversions, String[] inversionNames, int mode) throws IOException {
+            this.qualities = qualities;
+            this.inversions = inversions;
+            this.inversionNames = inversionNames;
+            this.mode = mode;
+            firstExercise = new int[qualities.length + 1];
+            for (int q = 0; q < qualities.length; q++) {
+                int variants = inversions ? qualities[q].intervals.length + 1 : 1;
+                firstExercise[q + 1] = firstExercise[q] + variants;
+                if(firstExercise[q + 1] > MAX_EXERCISES)
+                    throw new IOException("Chord generator produces too many exercises");
+            }
+        }
+
+        @Override
+        public int getCount() {
+            return firstExercise[qualities.length];
+        }
+
+        /**
+         * @return The quality of the exercise at index
+         */
+        private int qualityOf(int index) {
+            // Every quality has at least one exercise, so the starts are strictly increasing
+            int q = Arrays.binarySearch(firstExercise, index);
+            return q >= 0 ? q : -q - 2;
+        }
+
+        @Override
+        public String getAnswer(int index) {
+            int q = qualityOf(index);
+            if(!inversions)
+                return qualities[q].name;
+            int inversion = index - firstExercise[q];
+            if(inversionNames != null && inversion < inversionNames.length)
+                return qualities[q].name + " " + inversionNames[inversion];
+            return qualities[q].name + " " + inversion;
+        }
+
+        @Override
+        public void generate(int index, ExerciseTable.Builder builder) {
+            int q = qualityOf(index);
+            int inversion = index - firstExercise[q];
+            int[] notes = qualities[q].getNotes();
+            // Move the lowest notes up an octave
+            Arrays.sort(notes);
+            for (int i = 0; i < inversion; i++) {
+                notes[i] += 12;
+            }
+            emit(notes, mode, builder);
+        }
+
+        @Override
+        void writeToJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("type").value("chords");
+            writer.name("mode").value(MODE_NAMES[mode]);
+            writer.name("qualities");
+            writeChords(writer, qualities);
+            writer.name("inversions").value(inversions);
+            if(inversionNames != null)
+                writeStringArray(writer.name("inversionNames"), inversionNames);
+            writer.endObject();
+        }
+
+        @Override
+        void writeToBinary(DataOutput out) throws IOException {
+            out.writeByte(TYPE_CHORDS);
+            out.writeByte(mode);
+            writeChords(out, qualities);
+            out.writeBoolean(inversions);
+            if(inversionNames == null) {
+                Module.writeVarInt(out, 0);
+            } else {
+                Module.writeVarInt(out, inversionNames.length + 1);
+                for (String name : inversionNames) {
+                    Module.writeInlineString(out, name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates one exercise per chord progression the grammar allows, every chord of a progression is a unit
+     */
+    static class Progressions extends ExerciseGenerator {
+
+        private final Chord[] chords;
+        private final int length;
+        /** The chords a progression may start with, null for all */
+        private final int[] start;
+        /** transitions[c] are the chords that may follow chord c, null for all */
+        private final int[][] transitions;
+        /** counts[n][c] is the amount of progressions of n + 1 chords starting with chord c */
+        private final int[][] counts;
+        private final int count;
+
+        Progressions(Chord[] chords, int length, int[] start, int[][] transitions) throws IOException {
+            if(length < 1 || chords.length == 0)
+                throw new IOException("Progression generator needs chords and a length");
+            if(transitions != null && transitions.length != chords.length)
+                throw new IOException("Progression generator needs transitions for every chord");
+            this.chords = chords;
+            this.length = length;
+            this.start = start;
+            this.transitions = transitions;
+            for (int c : getStart()) {
+                checkChord(c);
+            }
+            for (int c = 0; c < chords.length; c++) {
+                for (int next : getNext(c)) {
+                    checkChord(next);
+                }
+            }
+
+            counts = new int[length][chords.length];
+            Arrays.fill(counts[0], 1);
+            for (int n = 1; n < length; n++) {
+                for (int c = 0; c < chords.length; c++) {
+                    long sum = 0;
+                    for (int next : getNext(c)) {
+                        sum += counts[n - 1][next];
+                    }
+                    if(sum > MAX_EXERCISES)
+                        throw new IOException("Progression generator produces too many exercises");
+                    counts[n][c] = (int) sum;
+                }
+            }
+            long total = 0;
+            for (int c : getStart()) {
+                total += counts[length - 1][c];
+            }
+            if(total > MAX_EXERCISES)
+                throw new IOException("Progression generator produces too many exercises");
+            count = (int) total;
+        }
+
+        private void checkChord(int c) throws IOException {
+            if(c < 0 || c >= chords.length)
+                throw new IOException("Progression generator refers to unknown chord " + c);
+        }
+
+        private int[] getStart() {
+            return start != null ? start : allChords();
+        }
+
+        private int[] getNext(int chord) {
+            return transitions != null ? transitions[chord] : allChords();
+        }
+
+        private int[] allChords() {
+            int[] result = new int[chords.length];
+            for (int c = 0; c < result.length; c++) {
+                result[c] = c;
+            }
+            return result;
+        }
+
+        /**
+         * @return The chords of the progression at index, in the order the grammar lists them
+         */
+        private int[] progression(int index) {
+            int[] result = new int[length];
+            int[] options = getStart();
+            for (int n = 0; n < length; n++) {
+                int remaining = length - 1 - n;
+                for (int c : options) {
+                    if(index < counts[remaining][c]) {
+                        result[n] = c;
+                        break;
+                    }
+                    index -= counts[remaining][c];
+                }
+                options = getNext(result[n]);
+            }
+            return result;
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public String getAnswer(int index) {
+            StringBuilder builder = new StringBuilder();
+            for (int c : progression(index)) {
+                if(builder.length() > 0)
+                    builder.append(" - ");
+                builder.append(chords[c].name);
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public void generate(int index, ExerciseTable.Builder builder) {
+            int[] progression = progression(index);
+            int firstRoot = chords[progression[0]].root;
+            builder.startExercise();
+            for (int c : progression) {
+                builder.startUnit();
+                builder.addNote(chords[c].root - firstRoot);
+                for (int interval : chords[c].intervals) {
+                    builder.addNote(interval);
+                }
+            }
+        }
+
+        @Override
+        void writeToJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("type").value("progressions");
+            writer.name("chords");
+            writeChords(writer, chords);
+            writer.name("length").value(length);
+            if(start != null)
+                writeIntArray(writer.name("start"), start);
+            if(transitions != null) {
+                writer.name("transitions");
+                writer.beginArray();
+                for (int[] next : transitions) {
+                    writeIntArray(writer, next);
+                }
+                writer.endArray();
+            }
+            writer.endObject();
+        }
+
+        @Override
+        void writeToBinary(DataOutput out) throws IOException {
+            out.writeByte(TYPE_PROGRESSIONS);
+            writeChords(out, chords);
+            Module.writeVarInt(out, length);
+            writeIntArray(out, start);
+            if(transitions == null) {
+                Module.writeVarInt(out, 0);
+            } else {
+                Module.writeVarInt(out, transitions.length + 1);
+                for (int[] next : transitions) {
+                    writeIntArray(out, next);
+                }
+            }
+        }
+    }
+
+    /**
+     * A named chord: a root and the intervals above it
+     */
+    static class Chord {
+        final String name;
+        /** The root in semitones, only used by progressions */
+        final int root;
+        /** The intervals above the root in semitones */
+        final int[] intervals;
+
+        Chord(String name, int root, int[] intervals) {
+            this.name = name;
+            this.root = root;
+            this.intervals = intervals;
+        }
+
+        /**
+         * @return The root, 0, followed by the intervals
+         */
+        int[] getNotes() {
+            int[] notes = new int[intervals.length + 1];
+            System.arraycopy(intervals, 0, notes, 1, intervals.length);
+            return notes;
+        }
+
+        static Chord readFromJson(JsonReader reader) throws IOException {
+            String name = null;
+            int root = 0;
+            int[] intervals = new int[0];
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "root":
+                        root = reader.nextInt();
+                        break;
+                    case "intervals":
+                        intervals = readIntArray(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            if(name == null)
+                throw new IOException("Chord without a name");
+            return new Chord(name, root, intervals);
+        }
+    }
+
+    private static void writeChords(JsonWriter writer, Chord[] chords) throws IOException {
+        writer.beginArray();
+        for (Chord chord : chords) {
+            writer.beginObject();
+            writer.name("name").value(chord.name);
+            writer.name("root").value(chord.root);
+            writeIntArray(writer.name("intervals"), chord.intervals);
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    private static void writeChords(DataOutput out, Chord[] chords) throws IOException {
+        Module.writeVarInt(out, chords.length);
+        for (Chord chord : chords) {
+            Module.writeInlineString(out, chord.name);
+            Module.writeSignedVarInt(out, chord.root);
+            writeIntArray(out, chord.intervals);
+        }
+    }
+
+    private static Chord[] readChords(DataInput in) throws IOException {
+        Chord[] chords = new Chord[Module.readVarInt(in)];
+        for (int i = 0; i < chords.length; i++) {
+            String name = Module.readInlineString(in);
+            int root = Module.readSignedVarInt(in);
+            chords[i] = new Chord(name, root, readIntArray(in));
+        }
+        return chords;
+    }
+
+    private static int[] readIntArray(JsonReader reader) throws IOException {
+        List<Integer> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            values.add(reader.nextInt());
+        }
+        reader.endArray();
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    private static List<String> readStringList(JsonReader reader) throws IOException {
+        List<String> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            values.add(reader.nextString());
+        }
+        reader.endArray();
+        return values;
+    }
+
+    private static void writeIntArray(JsonWriter writer, int[] values) throws IOException {
+        writer.beginArray();
+        for (int value : values) {
+            writer.value(value);
+        }
+        writer.endArray();
+    }
+
+    private static void writeStringArray(JsonWriter writer, String[] values) throws IOException {
+        writer.beginArray();
+        for (String value : values) {
+            writer.value(value);
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Write an int array that may be null: its length plus one, 0 meaning null, and its values
+     */
+    private static void writeIntArray(DataOutput out, int[] values) throws IOException {
+        if(values == null) {
+            Module.writeVarInt(out, 0);
+            return;
+        }
+        Module.writeVarInt(out, values.length + 1);
+        for (int value : values) {
+            Module.writeSignedVarInt(out, value);
+        }
+    }
+
+    private static int[] readIntArray(DataInput in) throws IOException {
+        int length = Module.readVarInt(in);
+        if(length == 0)
+            return null;
+        int[] values = new int[length - 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Module.readSignedVarInt(in);
+        }
+        return values;
+    }
+}
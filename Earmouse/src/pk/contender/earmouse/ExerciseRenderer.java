@@ -0,0 +1,405 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.Math.min;
+
+/**
+ * Renders an {@link pk.contender.earmouse.Exercise} to a WAV file in memory.
+ * <p>
+ * Every exercise unit is mixed from the notes provided by {@link pk.contender.earmouse.SampleBank}, after which
+ * the units are concatenated, optionally truncated and cross-faded for fast playback. The result can be slowed down
+ * with a {@link pk.contender.earmouse.TimeStretcher}, after which a room reverb can be applied to the whole exercise
+ * with a {@link pk.contender.earmouse.ConvolutionReverb}.
+ * <p>
+ * Rendered exercises are cached together with the settings they were rendered with, so rendering the same
+ * exercise again, e.g. when returning to it after a practice exercise, costs nothing.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ExerciseRenderer {
+
+    /** the bit rate of the samples we use to generate our exercises */
+    private static final int SAMPLES_BITRATE = 16;
+    /** Decay time of the room reverb */
+    private static final float REVERB_DECAY_SECONDS = 1.2f;
+    /** Block size of the reverb, the trade-off between FFT size and the number of partitions */
+    private static final int REVERB_BLOCK_SIZE = 1024;
+    /** Level of the reverb relative to the dry signal */
+    private static final float REVERB_WET_GAIN = 0.3f;
+    /** Upper bound for the cache of rendered exercises, in bytes */
+    private static final int CACHE_SIZE = 8 * 1024 * 1024;
+
+    /** Source of the PCM data for every note */
+    private final SampleBank mSampleBank;
+
+    /** The length of one sound in samples to make the sequence faster (0 to play the whole unit) */
+    private int sample_length = 0;
+    /** The length of the overlap to smooth the transition (0 for no smoothing) */
+    private int sample_overlap = 0;
+    /** Whether to apply the room reverb */
+    private boolean reverb = false;
+    /** The tempo factor, 1 for the original tempo */
+    private float tempo = 1.0f;
+
+    /** Cache of rendered exercises, keyed on {@link #cacheKey} */
+    private final LruCache<String, byte []> renderCache = new LruCache<String, byte []>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, byte [] value) {
+            return value.length;
+        }
+    };
+    /** Slows down exercises, created when first used */
+    private TimeStretcher mStretcher = null;
+
+    /** One reverb per channel, created when first used */
+    private ConvolutionReverb[] mReverb = null;
+    /** Work buffers for the reverb stage */
+    private float[] reverbIn, reverbOut;
+
+    public ExerciseRenderer(Context context) {
+        mSampleBank = new SampleBank(context);
+    }
+
+    /**
+     * Set the values used for fast playback, truncating every unit but the last one.
+     * @param sampleLength The length of one sound in samples (0 to play the whole unit)
+     * @param sampleOverlap The length of the overlap to smooth the transition (0 for no smoothing)
+     */
+    public synchronized void setUnitLength(int sampleLength, int sampleOverlap) {
+        sample_length = sampleLength;
+        sample_overlap = sampleOverlap;
+    }
+
+    /**
+     * Enable or disable the room reverb.
+     * @param enabled True to apply the reverb to every rendered exercise
+     */
+    public synchronized void setReverb(boolean enabled) {
+        reverb = enabled;
+    }
+
+    /**
+     * Set the tempo exercises are rendered at, without changing their pitch.
+     * @param tempo The tempo factor, 0.5 plays at half speed and 1 at the original tempo
+     */
+    public synchronized void setTempo(float tempo) {
+        this.tempo = tempo;
+    }
+
+    /**
+     * Drop all cached renders.
+     */
+    public void clearCache() {
+        renderCache.evictAll();
+    }
+
+    /**
+     * Generates a WAV file by mixing and concatenating samples, or returns it from the cache if this exercise
+     * was rendered before with the same settings.
+     * @param exercise The Exercise to render
+     * @return The complete WAV file, including its header. The array may be shared, callers must not modify it.
+     * @throws IOException If one of the samples could not be loaded
+     */
+    public byte [] render(Exercise exercise) throws IOException {
+        int sample_length, sample_overlap;
+        boolean reverb;
+        float tempo;
+        synchronized (this) {
+            sample_length = this.sample_length;
+            sample_overlap = this.sample_overlap;
+            reverb = this.reverb;
+            tempo = this.tempo;
+        }
+
+        String key = cacheKey(exercise, sample_length, sample_overlap, reverb, tempo);
+        byte [] result = renderCache.get(key);
+        if(result != null)
+            return result;
+
+        // List of all the samples to be concatenated
+        List<byte []> exerciseUnitBufferList = new ArrayList<>();
+        int outputSamplerate = SampleBank.SAMPLES_RATE , outputBitrate = SAMPLES_BITRATE;
+
+        for (int i=0;i < exercise.getUnitCount();i++)
+            exerciseUnitBufferList.add(prepareExerciseUnit(exercise, i));
+        // At this point we have a list of all the exerciseUnits that are to be
+        // concatenated.
+
+        // start with the length of the WAV header
+        int totalSize = 44;
+        int unitLen = 0;
+        int bufLen = 0;
+        for (byte [] buf : exerciseUnitBufferList) {
+            bufLen = buf.length;
+            unitLen = sample_length > 0 ? min(bufLen, sample_length*4) : bufLen;
+            totalSize += unitLen;
+        }
+        // now add the rest of the last buffer
+        totalSize += bufLen - unitLen;
+        // totalSize is now the total size of our output data + the size of a WAV header (44 bytes)
+
+        byte [] header = createWavHeader(totalSize, outputSamplerate, outputBitrate);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(totalSize);
+        // Write the header to our outputStream
+        outputStream.write(header);
+        // And all the exerciseUnitBuffers
+        int exerciseLen = exerciseUnitBufferList.size();
+        int idx = 0;
+        // buffer has format Lin16 with 2 channels = 4 Bytes per Sample
+        byte [] overlap = new byte[sample_overlap * 4];
+        float delta = 1.0f / (sample_overlap);
+        for(byte [] exerciseUnitBuffer : exerciseUnitBufferList) {
+            int len = exerciseUnitBuffer.length;
+            idx++;
+            // fading can be disabled by setting SAMPLE_OVERLAP to 0
+            // don't fade for the first unit at all
+            if (sample_overlap > 0 && sample_length > 0 && idx > 1) {
+                // fade SAMPLE_OVERLAP from the previous sound out linearly
+                for (int i = 0; i < sample_overlap * 4 && i < overlap.length && i < len; i += 4) {
+                    // handle both channels
+                    for (int j = 0; j < 4; j += 2) {
+                        short s1 = (short) ( (exerciseUnitBuffer[i+j] & 0xff) + ( (exerciseUnitBuffer[i+j + 1] & 0xff) << 8));
+                        short s2 = (short) ( (overlap[i+j] & 0xff) + ( (overlap[i+j + 1] & 0xff) << 8));
+                        int s = (int) (s1 + (1.0f - delta * i/4) * s2);
+                        //clip into range
+                        if (s > Short.MAX_VALUE) {
+                            s = Short.MAX_VALUE;
+                        } else if (s < Short.MIN_VALUE) {
+                            s = Short.MIN_VALUE;
+                        }
+                        exerciseUnitBuffer[i+j] = (byte) (s & 0xff);
+                        exerciseUnitBuffer[i+j + 1] = (byte) ((s >> 8) & 0xff);
+                    }
+                }
+            }
+            if (sample_length == 0 || idx == exerciseLen) {
+                outputStream.write(exerciseUnitBuffer);
+            } else {
+                unitLen = min(len, sample_length * 4);
+                outputStream.write(exerciseUnitBuffer, 0, unitLen);
+                // save overlap part after the one we have just written
+                overlap = Arrays.copyOfRange(exerciseUnitBuffer, unitLen, min (unitLen + sample_overlap * 4, len) );
+            }
+        }
+
+        result = outputStream.toByteArray();
+        if(tempo != 1.0f)
+            result = applyTempo(result, tempo);
+        if(reverb)
+            result = applyReverb(result);
+        renderCache.put(key, result);
+        return result;
+    }
+
+    /**
+     * Identifies an exercise and the settings it is rendered with
+     */
+    private static String cacheKey(Exercise exercise, int sampleLength, int sampleOverlap, boolean reverb, float tempo) {
+        return exercise.toString() + '/' + exercise.tuning.getCentsKey() + '/' + exercise.baseNote
+                + '/' + sampleLength + '/' + sampleOverlap + '/' + reverb + '/' + tempo;
+    }
+
+    /**
+     * Changes the tempo of a rendered exercise without changing its pitch.
+     * @param wav The rendered exercise, including its WAV header
+     * @param tempo The tempo factor, 0.5 plays at half speed
+     * @return A new WAV file, including its header
+     */
+    private synchronized byte [] applyTempo(byte [] wav, float tempo) {
+        int channels = SampleBank.SAMPLES_CHANNELS;
+        if(mStretcher == null)
+            mStretcher = new TimeStretcher(channels);
+
+        int frameSize = channels * 2;
+        int frames = (wav.length - 44) / frameSize;
+        byte [] output = new byte[44 + mStretcher.getOutputFrames(frames, tempo) * frameSize];
+        System.arraycopy(createWavHeader(output.length, SampleBank.SAMPLES_RATE, SAMPLES_BITRATE), 0, output, 0, 44);
+        mStretcher.process(wav, 44, frames, tempo, output, 44);
+        return output;
+    }
+
+    /**
+     * Mixes the room reverb into a rendered exercise, extending it by the length of the reverb tail.
+     * @param wav The rendered exercise, including its WAV header
+     * @return A new WAV file, including its header
+     */
+    private synchronized byte [] applyReverb(byte [] wav) {
+        int channels = SampleBank.SAMPLES_CHANNELS;
+        if(mReverb == null) {
+            mReverb = new ConvolutionReverb[channels];
+            for (int channel = 0; channel < channels; channel++) {
+                // A different seed per channel decorrelates the channels, which gives the room some width
+                float[] impulse = ConvolutionReverb.createRoomResponse(SampleBank.SAMPLES_RATE, REVERB_DECAY_SECONDS, channel + 1);
+                mReverb[channel] = new ConvolutionReverb(impulse, REVERB_BLOCK_SIZE);
+            }
+            reverbIn = new float[REVERB_BLOCK_SIZE];
+            reverbOut = new float[REVERB_BLOCK_SIZE];
+        }
+
+        int frameSize = channels * 2;
+        int frames = (wav.length - 44) / frameSize;
+        int outputFrames = frames + mReverb[0].getTailLength();
+        byte [] output = new byte[44 + outputFrames * frameSize];
+        System.arraycopy(createWavHeader(output.length, SampleBank.SAMPLES_RATE, SAMPLES_BITRATE), 0, output, 0, 44);
+
+        for (int channel = 0; channel < channels; channel++) {
+            ConvolutionReverb reverb = mReverb[channel];
+            reverb.reset();
+            for (int position = 0; position < outputFrames; position += REVERB_BLOCK_SIZE) {
+                for (int i = 0; i < REVERB_BLOCK_SIZE; i++) {
+                    int frame = position + i;
+                    reverbIn[i] = frame < frames ? readSample(wav, 44 + frame * frameSize + channel * 2) : 0f;
+                }
+                reverb.processBlock(reverbIn, reverbOut);
+                for (int i = 0; i < REVERB_BLOCK_SIZE && position + i < outputFrames; i++) {
+                    int s = (int) (reverbIn[i] + reverbOut[i] * REVERB_WET_GAIN);
+                    //clip into range
+                    if (s > Short.MAX_VALUE) {
+                        s = Short.MAX_VALUE;
+                    } else if (s < Short.MIN_VALUE) {
+                        s = Short.MIN_VALUE;
+                    }
+                    int offset = 44 + (position + i) * frameSize + channel * 2;
+                    output[offset] = (byte) (s & 0xff);
+                    output[offset + 1] = (byte) ((s >> 8) & 0xff);
+                }
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Read a little endian 16 bit sample
+     */
+    private static short readSample(byte [] buf, int offset) {
+        return (short) ((buf[offset] & 0xff) | (buf[offset + 1] << 8));
+    }
+
+    /**
+     * Mixes the samples of one exercise unit
+     * <p>
+     * Fetches all the samples associated with the notes of the exercise unit from {@link #mSampleBank}, detuned according
+     * to the {@link Tuning} of the exercise, and mixes them into a single buffer that is the size of the largest
+     * sample in the set.
+     * Also performs some anti-clipping protection.
+     * @param exercise The Exercise the unit belongs to
+     * @param exerciseUnit The index of the exercise unit to mix
+     * @return A buffer containing a mix of all the samples in exerciseUnit, without a WAV header
+     * @throws IOException
+     */
+    private byte [] prepareExerciseUnit(Exercise exercise, int exerciseUnit) throws IOException {
+
+        int outputSize = 0;
+        /** The amount of samples that are to be mixed */
+        int sampleCount = exercise.getNoteCount(exerciseUnit);
+
+        short[][] buf = new short[sampleCount][];
+        for (int i = 0; i < sampleCount; i++) {
+            int note = exercise.getNote(exerciseUnit, i);
+            buf[i] = mSampleBank.getSample(note, exercise.tuning.getCents(note - exercise.baseNote));
+            if(buf[i].length > outputSize) {
+                outputSize = buf[i].length;
+            }
+        }
+        // outputSize is now the length of the longest sample in shorts, our output buffer holds it in bytes
+        byte [] output = new byte [outputSize * 2];
+
+        // Now we go through these, sample by sample, and mix and clip them, if necessary.
+        // reduce the amplitude a bit based on the amount of samples we are mixing to avoid
+        // excessive clipping later
+        float gain = 1.0f - sampleCount * 0.1f;
+        int sum;
+        for (int index = 0; index < outputSize; index++) {
+            sum = 0;
+
+            for (short [] item : buf) {
+                if(index >= item.length) // Array out of bounds, add nothing to sum
+                    continue;
+                sum += (short) (item[index] * gain);
+            }
+            //clip into range
+            if(sum > Short.MAX_VALUE) {
+                sum = Short.MAX_VALUE;
+            } else if(sum < Short.MIN_VALUE) {
+                sum = Short.MIN_VALUE;
+            }
+
+            // Write into output buffer as little endian
+            output[2 * index] = (byte) (sum & 0xff);
+            output[2 * index + 1] = (byte) ((sum >> 8) & 0xff);
+        }
+
+        return output;
+    }
+
+    /**
+     * Returns a WAV header for the given parameters
+     *
+     * @param bufSize The size of the output WAV (header + data) in bytes
+     * @param samplerate The sample rate of the WAV file
+     * @param bitrate The bitrate of the WAV file
+     * @return A 44-byte WAV header
+     */
+    static byte [] createWavHeader(int bufSize, int samplerate, int bitrate) {
+
+        byte [] buf = new byte[44];
+        int chunkSize = bufSize - 8;
+        int byterate = samplerate * 2 * (bitrate / 2);
+
+        buf[0] = 'R';  // RIFF/WAVE header
+        buf[1] = 'I';
+        buf[2] = 'F';
+        buf[3] = 'F';
+        buf[4] = (byte) (chunkSize & 0xff);
+        buf[5] = (byte) ((chunkSize >> 8) & 0xff);
+        buf[6] = (byte) ((chunkSize >> 16) & 0xff);
+        buf[7] = (byte) ((chunkSize >> 24) & 0xff);
+        buf[8] = 'W';
+        buf[9] = 'A';
+        buf[10] = 'V';
+        buf[11] = 'E';
+        buf[12] = 'f';  // 'fmt ' chunk
+        buf[13] = 'm';
+        buf[14] = 't';
+        buf[15] = ' ';
+        buf[16] = 16;  // 4 bytes: size of 'fmt ' chunk
+        buf[17] = 0;
+        buf[18] = 0;
+        buf[19] = 0;
+        buf[20] = 1;  // format = 1 (PCM)
+        buf[21] = 0;
+        buf[22] = (byte) 2;
+        buf[23] = 0;
+        buf[24] = (byte) (samplerate & 0xff);
+        buf[25] = (byte) ((samplerate >> 8) & 0xff);
+        buf[26] = (byte) ((samplerate >> 16) & 0xff);
+        buf[27] = (byte) ((samplerate >> 24) & 0xff);
+        buf[28] = (byte) (byterate & 0xff);
+        buf[29] = (byte) ((byterate >> 8) & 0xff);
+        buf[30] = (byte) ((byterate >> 16) & 0xff);
+        buf[31] = (byte) ((byterate >> 24) & 0xff);
+        buf[32] = (byte) (2 * (bitrate / 2));  // block align
+        buf[33] = 0;
+        buf[34] = (byte) bitrate;  // bits per sample
+        buf[35] = 0;
+        buf[36] = 'd';
+        buf[37] = 'a';
+        buf[38] = 't';
+        buf[39] = 'a';
+        buf[40] = (byte) ((bufSize - 44) & 0xff);
+        buf[41] = (byte) (((bufSize - 44) >> 8) & 0xff);
+        buf[42] = (byte) (((bufSize - 44) >> 16) & 0xff);
+        buf[43] = (byte) (((bufSize - 44) >> 24) & 0xff);
+
+        return buf;
+    }
+}
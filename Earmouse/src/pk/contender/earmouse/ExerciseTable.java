@@ -0,0 +1,217 @@
+package pk.contender.earmouse;
+
+import java.util.Arrays;
+
+/**
+ * The exercises of a {@link pk.contender.earmouse.Module} in a compact, flat form.
+ * <p>
+ * The notes of all exercise units of all exercises are stored one after the other in a single int array, with
+ * the boundaries stored the way a compressed sparse row matrix stores its rows:<br>
+ * - unitStart[u] is the index in notes of the first note of unit u<br>
+ * - exerciseStart[e] is the index in unitStart of the first unit of exercise e<br>
+ * Both have a closing entry, so unit u ends where unit u + 1 starts and the same goes for exercises.
+ * <p>
+ * The notes are stored as defined by the Module, see {@link pk.contender.earmouse.Exercise}: the first note of
+ * a unit is its offset from the first note of the exercise, the other notes are offsets from the first note of
+ * their unit. The lowest and highest offset every exercise reaches are computed once when the table is built, so
+ * {@link #transpose} only has to copy.
+ * <p>
+ * An ExerciseTable is immutable, use a {@link ExerciseTable.Builder} to create one.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ExerciseTable {
+
+    /** A table without exercises */
+    public static final ExerciseTable EMPTY = new Builder().build();
+
+    private final int[] notes;
+    private final int[] unitStart;
+    private final int[] exerciseStart;
+    /** Per exercise the lowest offset from its first note, 0 or less */
+    private final int[] lowestOffset;
+    /** Per exercise the highest offset from its first note, 0 or more */
+    private final int[] highestOffset;
+
+    private ExerciseTable(int[] notes, int[] unitStart, int[] exerciseStart) {
+        this.notes = notes;
+        this.unitStart = unitStart;
+        this.exerciseStart = exerciseStart;
+
+        int exerciseCount = exerciseStart.length - 1;
+        lowestOffset = new int[exerciseCount];
+        highestOffset = new int[exerciseCount];
+        for (int exercise = 0; exercise < exerciseCount; exercise++) {
+            int lowest = 0, highest = 0;
+            for (int unit = exerciseStart[exercise]; unit < exerciseStart[exercise + 1]; unit++) {
+                int first = unitStart[unit], end = unitStart[unit + 1];
+                if(first == end)
+                    continue;
+                int span = 0;
+                for (int i = first + 1; i < end; i++) {
+                    if(notes[i] > span)
+                        span = notes[i];
+                }
+                lowest = Math.min(lowest, notes[first]);
+                highest = Math.max(highest, notes[first] + span);
+            }
+            lowestOffset[exercise] = lowest;
+            highestOffset[exercise] = highest;
+        }
+    }
+
+    public int getExerciseCount() {
+        return exerciseStart.length - 1;
+    }
+
+    /**
+     * @return The amount of exercise units of the given exercise
+     */
+    public int getUnitCount(int exercise) {
+        return exerciseStart[exercise + 1] - exerciseStart[exercise];
+    }
+
+    /**
+     * @return The amount of notes in the given unit of the given exercise
+     */
+    public int getNoteCount(int exercise, int unit) {
+        int u = exerciseStart[exercise] + unit;
+        return unitStart[u + 1] - unitStart[u];
+    }
+
+    /**
+     * @return A note of the given unit of the given exercise as defined by the Module
+     */
+    public int getNote(int exercise, int unit, int index) {
+        return notes[unitStart[exerciseStart[exercise] + unit] + index];
+    }
+
+    /**
+     * @return The lowest offset from its first note the given exercise reaches, 0 or less
+     */
+    public int getLowestOffset(int exercise) {
+        return lowestOffset[exercise];
+    }
+
+    /**
+     * @return The highest offset from its first note the given exercise reaches, 0 or more
+     */
+    public int getHighestOffset(int exercise) {
+        return highestOffset[exercise];
+    }
+
+    /**
+     * Write the given exercise, with its first note placed at baseNote, into result as absolute notes.
+     * @param exercise The index of the exercise
+     * @param baseNote The note the first note of the exercise is transposed to
+     * @param result The Exercise to fill in, its arrays are reused if they are large enough
+     */
+    public void transpose(int exercise, int baseNote, Exercise result) {
+        int firstUnit = exerciseStart[exercise], endUnit = exerciseStart[exercise + 1];
+        int firstNote = unitStart[firstUnit];
+        result.reset(endUnit - firstUnit, unitStart[endUnit] - firstNote);
+        result.baseNote = baseNote;
+
+        for (int unit = firstUnit; unit < endUnit; unit++) {
+            int start = unitStart[unit], end = unitStart[unit + 1];
+            result.unitStart[unit - firstUnit] = start - firstNote;
+            if(start == end)
+                continue;
+            int unitBase = baseNote + notes[start];
+            result.notes[start - firstNote] = unitBase;
+            for (int i = start + 1; i < end; i++) {
+                result.notes[i - firstNote] = unitBase + notes[i];
+            }
+        }
+    }
+
+    /**
+     * @return True if the other table holds the same exercises, unit for unit and note for note
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof ExerciseTable))
+            return false;
+        ExerciseTable other = (ExerciseTable) o;
+        return Arrays.equals(notes, other.notes) && Arrays.equals(unitStart, other.unitStart)
+                && Arrays.equals(exerciseStart, other.exerciseStart);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(notes) + Arrays.hashCode(unitStart)) + Arrays.hashCode(exerciseStart);
+    }
+
+    /**
+     * Builds an {@link ExerciseTable} one note at a time, in order.
+     */
+    public static class Builder {
+
+        private int[] notes = new int[64];
+        private int noteCount = 0;
+        private int[] unitStart = new int[16];
+        private int unitCount = 0;
+        private int[] exerciseStart = new int[8];
+        private int exerciseCount = 0;
+
+        /**
+         * Start a new exercise, the following units belong to it.
+         */
+        public Builder startExercise() {
+            if(exerciseCount == exerciseStart.length)
+                exerciseStart = Arrays.copyOf(exerciseStart, exerciseCount * 2);
+            exerciseStart[exerciseCount++] = unitCount;
+            return this;
+        }
+
+        /**
+         * Start a new unit in the current exercise, the following notes belong to it.
+         */
+        public Builder startUnit() {
+            if(exerciseCount == 0)
+                throw new IllegalStateException("startUnit() before startExercise()");
+            if(unitCount == unitStart.length)
+                unitStart = Arrays.copyOf(unitStart, unitCount * 2);
+            unitStart[unitCount++] = noteCount;
+            return this;
+        }
+
+        /**
+         * Add all exercises of the given table.
+         */
+        public Builder addExercises(ExerciseTable table) {
+            for (int exercise = 0; exercise < table.getExerciseCount(); exercise++) {
+                startExercise();
+                for (int unit = 0; unit < table.getUnitCount(exercise); unit++) {
+                    startUnit();
+                    for (int i = 0; i < table.getNoteCount(exercise, unit); i++) {
+                        addNote(table.getNote(exercise, unit, i));
+                    }
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Add a note to the current unit.
+         */
+        public Builder addNote(int note) {
+            if(unitCount == 0)
+                throw new IllegalStateException("addNote() before startUnit()");
+            if(noteCount == notes.length)
+                notes = Arrays.copyOf(notes, noteCount * 2);
+            notes[noteCount++] = note;
+            return this;
+        }
+
+        public ExerciseTable build() {
+            int[] units = Arrays.copyOf(unitStart, unitCount + 1);
+            units[unitCount] = noteCount;
+            int[] exercises = Arrays.copyOf(exerciseStart, exerciseCount + 1);
+            exercises[exerciseCount] = unitCount;
+            return new ExerciseTable(Arrays.copyOf(notes, noteCount), units, exercises);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package pk.contender.earmouse;
+
+/**
+ * In-place iterative radix-2 FFT on split real and imaginary arrays.
+ * <p>
+ * A FFT instance is constructed for one transform size, the twiddle factors and the bit reversal permutation
+ * are computed once at that point so {@link #forward} and {@link #inverse} allocate nothing.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class FFT {
+
+    /** The transform size, a power of two */
+    private final int size;
+    /** cos(2 * pi * k / size) for k < size / 2 */
+    private final float[] cos;
+    /** sin(2 * pi * k / size) for k < size / 2 */
+    private final float[] sin;
+    /** bitReverse[i] is i with its log2(size) bits reversed */
+    private final int[] bitReverse;
+
+    /**
+     * Construct a FFT for the given size
+     * @param size The transform size, must be a power of two
+     */
+    public FFT(int size) {
+        if(size < 2 || Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        this.size = size;
+
+        cos = new float[size / 2];
+        sin = new float[size / 2];
+        for (int k = 0; k < size / 2; k++) {
+            double angle = 2 * Math.PI * k / size;
+            cos[k] = (float) Math.cos(angle);
+            sin[k] = (float) Math.sin(angle);
+        }
+
+        int bits = Integer.numberOfTrailingZeros(size);
+        bitReverse = new int[size];
+        for (int i = 0; i < size; i++) {
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Forward transform, replaces the contents of re and im with their spectrum.
+     * @param re The real parts, at least {@link #getSize()} long
+     * @param im The imaginary parts, at least {@link #getSize()} long
+     */
+    public void forward(float[] re, float[] im) {
+        transform(re, im, -1);
+    }
+
+    /**
+     * Inverse transform including the 1/size scaling, so forward followed by inverse returns the input.
+     * @param re The real parts, at least {@link #getSize()} long
+     * @param im The imaginary parts, at least {@link #getSize()} long
+     */
+    public void inverse(float[] re, float[] im) {
+        transform(re, im, 1);
+        float scale = 1.0f / size;
+        for (int i = 0; i < size; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    /**
+     * Decimation in time butterflies over the bit reversed input
+     * @param sign -1 for the forward transform, 1 for the inverse
+     */
+    private void transform(float[] re, float[] im, int sign) {
+        for (int i = 0; i < size; i++) {
+            int j = bitReverse[i];
+            if(j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+
+        for (int half = 1; half < size; half <<= 1) {
+            int step = size / (half * 2);
+            for (int start = 0; start < size; start += half * 2) {
+                for (int k = 0; k < half; k++) {
+                    float wr = cos[k * step];
+                    float wi = sign * sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    float tr = re[b] * wr - im[b] * wi;
+                    float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
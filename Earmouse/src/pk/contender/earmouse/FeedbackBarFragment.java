@@ -99,14 +99,16 @@ public class FeedbackBarFragment extends Fragment {
 
     /**
      * Displays and animates the given success rate.
-     * @param successRate The user's success rate in the current Module
+     * @param successRate The user's recent success rate in the current Module, see {@link Module#getRecentSuccessRate()}
+     * @param answersToday The amount of answers the user gave today, see {@link Module#getAnswersToday()}
      */
-    public void setStatistics(int successRate) {
+    public void setStatistics(int successRate, int answersToday) {
         View v = getView();
         final TextView textView = (TextView) (v != null ? v.findViewById(R.id.feedbackbar_stats) : null);
         if(textView != null) {
             final Resources res = mCtx.getResources();
             if(successRate >= 0) {
+                final String today = answersToday > 0 ? res.getString(R.string.feedback_today, answersToday) : "";
                 ValueAnimator animValue = ValueAnimator.ofInt(currentSuccessRate, successRate);
                 animValue.setInterpolator(new DecelerateInterpolator());
                 animValue.setDuration(1000);
@@ -114,7 +116,7 @@ public class FeedbackBarFragment extends Fragment {
 
                     @Override
                     public void onAnimationUpdate(ValueAnimator animation) {
-                        textView.setText((String) res.getText(R.string.feedback_successrate_value) + animation.getAnimatedValue() + "%");
+                        textView.setText((String) res.getText(R.string.feedback_successrate_value) + animation.getAnimatedValue() + "%" + today);
                     }
                 });
                 animValue.start();
@@ -0,0 +1,567 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stores the answers of every Module in an append-only log file, stats_[id].log, so saving only writes the answers
+ * that were added since the last save.
+ * <p>
+ * The log format is:<br>
+ * - header: magic {@link #LOG_MAGIC} (int), format version {@link #LOG_VERSION} (byte), base time in milliseconds
+ *   (long)<br>
+ * - rollups: the amount of rollups (int), followed by {@link #ROLLUP_SIZE} bytes per rollup: the
+ *   local day in days since the epoch, the exercise index, the amount of answers and correct answers (int each)<br>
+ * - records of {@link #RECORD_SIZE} bytes: the exercise index shifted left by one with the result in the lowest
+ *   bit (int), the time of the answer in seconds after the base time (int)<br>
+ * The whole log is read with a single read, a partial record left by an interrupted write is cut off. A log that
+ * is not valid is renamed to stats_[id].log.[time].corrupt and a new one is started, a log of a newer format
+ * version, left by a later version of the app, is left alone and never written to. Statistics of older versions
+ * of the app, stored as JSON in stats_[id].json, are converted on first load.
+ * <p>
+ * A {@link Cursor} reads the log through a small buffer and a {@link Writer} writes a new log next to the current
+ * one, so neither holds more than a few kilobytes regardless of the length of the history.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class LogStatsStore implements StatsStore {
+
+    /** Identifies an answer log, "ESTL" */
+    private static final int LOG_MAGIC = 0x4553544c;
+    /** Version of the log format, bump when the layout changes */
+    private static final int LOG_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    /** Offsets of the base time and the rollup count in the header */
+    private static final int BASE_TIME_OFFSET = 4 + 1, ROLLUP_COUNT_OFFSET = HEADER_SIZE;
+    private static final int ROLLUP_SIZE = 4 * 4;
+    private static final int RECORD_SIZE = 4 + 4;
+
+    private final File dir;
+
+    public LogStatsStore(Context context) {
+        dir = context.getDir("files", Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param dir The directory holding the logs, such as a device's logs in a {@link StatsSnapshot}
+     */
+    LogStatsStore(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public AnswerHistory load(int moduleId) throws IOException {
+        File logFile = getLogFile(moduleId);
+        if(logFile.exists()) {
+            try {
+                return readLog(logFile);
+            } catch (CorruptLogException e) {
+                // Start a new log rather than appending to one that can not be read, but keep it for inspection
+                File asideFile = new File(dir, logFile.getName() + "." + System.currentTimeMillis() + ".corrupt");
+                if(!logFile.renameTo(asideFile))
+                    Log.d("DEBUG", "Could not rename " + logFile.getName());
+                throw e;
+            }
+        }
+
+        File jsonFile = getJsonFile(moduleId);
+        if(!jsonFile.exists())
+            return null;
+        AnswerHistory history = new AnswerHistory();
+        FileReader fr = new FileReader(jsonFile);
+        try {
+            readJson(fr, history);
+        } finally {
+            fr.close();
+        }
+        // Convert to the log, the JSON file goes once the log is written
+        if(history.size() > 0) {
+            append(moduleId, history);
+            if(!jsonFile.delete())
+                Log.d("DEBUG", "Could not delete " + jsonFile.getName());
+        }
+        return history;
+    }
+
+    /**
+     * Appends the answers to the log, the log is started with their base time if there is none.
+     */
+    @Override
+    public void append(int moduleId, AnswerHistory answers) throws IOException {
+        File logFile = getLogFile(moduleId);
+        if(!logFile.exists()) {
+            writeLog(logFile, answers);
+            return;
+        }
+        if(answers.size() == 0)
+            return;
+
+        ByteBuffer buf = ByteBuffer.allocate(answers.size() * RECORD_SIZE);
+        putRecords(buf, answers, readBaseTime(logFile));
+        // A partial append is cut off by the next load, so the log never needs rewriting
+        FileOutputStream out = new FileOutputStream(logFile, true);
+        try {
+            out.write(buf.array());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a new log next to the current one and then replaces it, so the current log stays intact if the write
+     * fails.
+     */
+    @Override
+    public void replace(int moduleId, AnswerHistory history) throws IOException {
+        File logFile = getLogFile(moduleId);
+        checkReplaceable(logFile);
+        File tmpFile = new File(dir, logFile.getName() + ".tmp");
+        writeLog(tmpFile, history);
+        if(!tmpFile.renameTo(logFile)) {
+            if(!tmpFile.delete())
+                Log.d("DEBUG", "Could not delete " + tmpFile.getName());
+            throw new IOException("Could not replace " + logFile.getName());
+        }
+        File jsonFile = getJsonFile(moduleId);
+        if(jsonFile.exists() && !jsonFile.delete())
+            Log.d("DEBUG", "Could not delete " + jsonFile.getName());
+    }
+
+    /**
+     * Writes a complete log with the history's base time, rollups and answers
+     * @throws IOException
+     */
+    private static void writeLog(File file, AnswerHistory history) throws IOException {
+        int rollupCount = history.getRollupCount();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 4 + rollupCount * ROLLUP_SIZE
+                + history.size() * RECORD_SIZE);
+        buf.putInt(LOG_MAGIC);
+        buf.put((byte) LOG_VERSION);
+        buf.putLong(history.getBaseTime());
+        buf.putInt(rollupCount);
+        for (int i = 0; i < rollupCount; i++) {
+            buf.putInt(history.getRollupDay(i));
+            buf.putInt(history.getRollupExerciseIndex(i));
+            buf.putInt(history.getRollupAnswers(i));
+            buf.putInt(history.getRollupCorrect(i));
+        }
+        putRecords(buf, history, history.getBaseTime());
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buf.array());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Puts the answers of the history in the buffer as records with times relative to the given base time
+     */
+    private static void putRecords(ByteBuffer buf, AnswerHistory answers, long baseTime) {
+        for (int i = 0; i < answers.size(); i++) {
+            long secondsAfterBase = Math.max(0, answers.getTimestamp(i) - baseTime) / 1000;
+            buf.putInt((answers.getExerciseIndex(i) << 1) | (answers.getResult(i) ? 1 : 0));
+            buf.putInt((int) Math.min(secondsAfterBase, 0xffffffffL));
+        }
+    }
+
+    @Override
+    public Cursor open(int moduleId) throws IOException {
+        File logFile = getLogFile(moduleId);
+        // Statistics of an older version of the app are converted to a log first
+        if(!logFile.exists() && (!getJsonFile(moduleId).exists() || load(moduleId) == null || !logFile.exists()))
+            return null;
+        return new LogCursor(logFile);
+    }
+
+    @Override
+    public Writer startReplace(int moduleId) throws IOException {
+        return new LogWriter(moduleId);
+    }
+
+    @Override
+    public Set<Integer> listModules() {
+        Set<Integer> ids = new HashSet<>();
+        String[] filenames = dir.list();
+        if(filenames == null)
+            return ids;
+        for (String filename : filenames) {
+            if(!filename.startsWith("stats_") || !(filename.endsWith(".log") || filename.endsWith(".json")))
+                continue;
+            try {
+                ids.add(Integer.parseInt(filename.substring("stats_".length(), filename.lastIndexOf('.'))));
+            } catch (NumberFormatException e) {
+                Log.d("DEBUG", "LogStatsStore: ignoring " + filename);
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public boolean purge(int moduleId) {
+        File logFile = getLogFile(moduleId);
+        File jsonFile = getJsonFile(moduleId);
+        boolean deleted = logFile.exists() && logFile.delete();
+        if(jsonFile.exists() && jsonFile.delete())
+            deleted = true;
+        return deleted;
+    }
+
+    /**
+     * Reads an answer log in one go
+     * @throws IOException
+     */
+    private static AnswerHistory readLog(File logFile) throws IOException {
+        byte[] data = new byte[(int) logFile.length()];
+        FileInputStream in = new FileInputStream(logFile);
+        try {
+            int read = 0;
+            while(read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if(n < 0)
+                    break;
+                read += n;
+            }
+            if(read < data.length)
+                data = Arrays.copyOf(data, read);
+        } finally {
+            in.close();
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if(data.length < HEADER_SIZE || buf.getInt() != LOG_MAGIC)
+            throw new CorruptLogException(logFile.getName() + " is not an answer log");
+        checkVersion(logFile, buf.get() & 0xff);
+        long baseTime = buf.getLong();
+
+        if(buf.remaining() < 4)
+            throw new CorruptLogException(logFile.getName() + " has no rollup section");
+        int rollupCount = buf.getInt();
+        if(rollupCount < 0 || buf.remaining() / ROLLUP_SIZE < rollupCount)
+            throw new CorruptLogException(logFile.getName() + " has a truncated rollup section");
+        int recordCount = (buf.remaining() - rollupCount * ROLLUP_SIZE) / RECORD_SIZE;
+        AnswerHistory history = new AnswerHistory(baseTime, recordCount);
+        for (int i = 0; i < rollupCount; i++) {
+            history.addRollup(buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt());
+        }
+        for (int i = 0; i < recordCount; i++) {
+            int packed = buf.getInt();
+            history.addSeconds(packed >> 1, (packed & 1) != 0, buf.getInt());
+        }
+
+        int validLength = buf.position();
+        if(validLength < data.length) {
+            // An interrupted append left part of a record, drop it so the next one lines up
+            Log.d("DEBUG", "Truncating " + logFile.getName() + " to " + validLength + " bytes");
+            RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Reads the base time from the header of an answer log, answers are appended relative to it
+     * @throws IOException If the log is not valid or of a newer format version
+     */
+    private static long readBaseTime(File logFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            if(raf.length() < HEADER_SIZE || raf.readInt() != LOG_MAGIC)
+                throw new CorruptLogException(logFile.getName() + " is not an answer log");
+            checkVersion(logFile, raf.readUnsignedByte());
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Checks the format version of a log
+     * @throws CorruptLogException If the version is not valid
+     * @throws NewerLogException If the log is of a newer format version than this version of the app knows
+     */
+    private static void checkVersion(File logFile, int version) throws IOException {
+        if(version < LOG_VERSION)
+            throw new CorruptLogException(logFile.getName() + " has invalid version " + version);
+        if(version > LOG_VERSION)
+            throw new NewerLogException(logFile.getName() + " has newer version " + version);
+    }
+
+    /**
+     * Makes sure replacing the log does not discard one of a newer format version, a log that is not valid is
+     * replaced
+     * @throws NewerLogException If the log is of a newer format version
+     */
+    private static void checkReplaceable(File logFile) throws IOException {
+        if(!logFile.exists())
+            return;
+        try {
+            readBaseTime(logFile);
+        } catch (CorruptLogException e) {
+            Log.d("DEBUG", "Replacing " + logFile.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the answers of an older version of the app from a JSON file
+     * @param fr The FileReader to read from
+     * @param history The history to add the answers to
+     * @throws IOException
+     */
+    private static void readJson(FileReader fr, AnswerHistory history) throws IOException {
+        JsonReader reader = new JsonReader(fr);
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            int exerciseIndex = -1;
+            boolean result = true;
+            long timestamp = -1;
+
+            while (reader.hasNext()){
+                String name = reader.nextName();
+                switch (name) {
+                    case "exerciseIndex":
+                        exerciseIndex = reader.nextInt();
+                        break;
+                    case "result":
+                        result = reader.nextBoolean();
+                        break;
+                    case "timestamp":
+                        timestamp = reader.nextLong();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            history.add(exerciseIndex, result, timestamp);
+            reader.endObject();
+        }
+        reader.endArray();
+        reader.close();
+    }
+
+    private File getLogFile(int moduleId) {
+        return new File(dir, "stats_" + moduleId + ".log");
+    }
+
+    private File getJsonFile(int moduleId) {
+        return new File(dir, "stats_" + moduleId + ".json");
+    }
+
+    /**
+     * Reads a log through a buffer, a partial record at the end is ignored the way {@link #readLog} cuts it off.
+     */
+    private static class LogCursor implements Cursor {
+        private final DataInputStream in;
+        private final long baseTime;
+        private int rollupsLeft;
+        private boolean rollup;
+        private int exerciseIndex, day, answers, correct;
+        private long timestamp;
+
+        LogCursor(File logFile) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+            try {
+                if(in.readInt() != LOG_MAGIC)
+                    throw new CorruptLogException(logFile.getName() + " is not an answer log");
+                checkVersion(logFile, in.readUnsignedByte());
+                baseTime = in.readLong();
+                rollupsLeft = in.readInt();
+                if(rollupsLeft < 0)
+                    throw new CorruptLogException(logFile.getName() + " has a corrupt rollup section");
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean moveToNext() throws IOException {
+            if(rollupsLeft > 0) {
+                rollupsLeft--;
+                rollup = true;
+                day = in.readInt();
+                exerciseIndex = in.readInt();
+                answers = in.readInt();
+                correct = in.readInt();
+                return true;
+            }
+            int packed;
+            long secondsAfterBase;
+            try {
+                packed = in.readInt();
+                secondsAfterBase = in.readInt() & 0xffffffffL;
+            } catch (EOFException e) {
+                return false;
+            }
+            rollup = false;
+            exerciseIndex = packed >> 1;
+            answers = 1;
+            correct = packed & 1;
+            timestamp = baseTime + secondsAfterBase * 1000;
+            return true;
+        }
+
+        @Override
+        public boolean isRollup() {
+            return rollup;
+        }
+
+        @Override
+        public int getExerciseIndex() {
+            return exerciseIndex;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public int getDay() {
+            return day;
+        }
+
+        @Override
+        public int getAnswers() {
+            return answers;
+        }
+
+        @Override
+        public int getCorrect() {
+            return correct;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a new log next to the current one and renames it over the current one on commit. The base time is the
+     * time of the first answer, it and the rollup count are filled in on commit.
+     */
+    private class LogWriter implements Writer {
+        private final int moduleId;
+        private final File tmpFile;
+        private final DataOutputStream out;
+        private long baseTime = 0;
+        private boolean hasAnswers = false;
+        private int rollupCount = 0;
+
+        LogWriter(int moduleId) throws IOException {
+            this.moduleId = moduleId;
+            tmpFile = new File(dir, getLogFile(moduleId).getName() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(LOG_MAGIC);
+            out.writeByte(LOG_VERSION);
+            out.writeLong(0);
+            out.writeInt(0);
+        }
+
+        @Override
+        public void addRollup(int day, int exerciseIndex, int answers, int correct) throws IOException {
+            if(hasAnswers)
+                throw new IllegalStateException("addRollup() after addAnswer()");
+            out.writeInt(day);
+            out.writeInt(exerciseIndex);
+            out.writeInt(answers);
+            out.writeInt(correct);
+            rollupCount++;
+        }
+
+        @Override
+        public void addAnswer(int exerciseIndex, boolean result, long timestamp) throws IOException {
+            if(!hasAnswers) {
+                baseTime = timestamp;
+                hasAnswers = true;
+            }
+            long secondsAfterBase = Math.max(0, timestamp - baseTime) / 1000;
+            out.writeInt((exerciseIndex << 1) | (result ? 1 : 0));
+            out.writeInt((int) Math.min(secondsAfterBase, 0xffffffffL));
+        }
+
+        @Override
+        public void commit() throws IOException {
+            try {
+                out.close();
+                RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+                try {
+                    raf.seek(BASE_TIME_OFFSET);
+                    raf.writeLong(baseTime);
+                    raf.seek(ROLLUP_COUNT_OFFSET);
+                    raf.writeInt(rollupCount);
+                } finally {
+                    raf.close();
+                }
+                checkReplaceable(getLogFile(moduleId));
+                if(!tmpFile.renameTo(getLogFile(moduleId)))
+                    throw new IOException("Could not replace " + getLogFile(moduleId).getName());
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            File jsonFile = getJsonFile(moduleId);
+            if(jsonFile.exists() && !jsonFile.delete())
+                Log.d("DEBUG", "Could not delete " + jsonFile.getName());
+        }
+
+        @Override
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if(tmpFile.exists() && !tmpFile.delete())
+                Log.d("DEBUG", "Could not delete " + tmpFile.getName());
+        }
+    }
+
+    /**
+     * Thrown when a log is not valid, it can not be read or appended to
+     */
+    private static class CorruptLogException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptLogException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when a log was written by a later version of the app, it is kept as it is
+     */
+    private static class NewerLogException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NewerLogException(String message) {
+            super(message);
+        }
+    }
+}
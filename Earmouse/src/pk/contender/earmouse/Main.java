@@ -11,6 +11,7 @@ import android.content.SharedPreferences;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.media.AudioManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.StrictMode;
 import android.support.annotation.Nullable;
@@ -36,6 +37,7 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
@@ -47,6 +49,9 @@ import java.util.Locale;
  *
  * Also has code that will install a given set of Modules on the first
  * launch of the app.
+ * <p>
+ * The installed Modules are loaded in the background by a {@link Main.ModuleLoaderTask}, which adds them to
+ * the {@link pk.contender.earmouse.ModuleRegistry} as they are read.
  *
  * @author Paul Klinkenberg <pklinken.development@gmail.com>
  */
@@ -82,8 +87,18 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
     /* SharedPreferences constants */
     private static final String PREFS_FIRSTLAUNCH = "prefs_firstlaunch";
     public static final String PREFS_FASTPLAY = "prefs_fastplay";
+    public static final String PREFS_DRONE = "prefs_drone";
+    public static final String PREFS_REVERB = "prefs_reverb";
+    public static final String PREFS_TEMPO = "prefs_tempo";
+    public static final String PREFS_SQLITE_STATS = "prefs_sqlite_stats";
+    public static final String PREFS_STATS_KEEP_DAYS = "prefs_stats_keep_days";
+    public static final String PREFS_DEVICE_ID = "prefs_device_id";
     //private static final String PREFS_SELECTIONINDEX = "prefs_main_selectionindex";
     public static final String PREFS_NAME = "EarmousePrefs";
+    /** The file statistics are exported to and imported from, in the app's external files directory */
+    private static final String STATS_TRANSFER_FILENAME = "earmouse_stats.csv";
+    /** The {@link StatsSnapshot} directory statistics are synced through, in the app's external files directory */
+    private static final String STATS_SNAPSHOT_DIRNAME = "earmouse_snapshot";
     private static final String PREFS_USE_CUSTOM_HOST = "prefs_custom_host_toggle";
     private static final String PREFS_CUSTOM_HOSTNAME = "prefs_custom_host";
     private static final String PREFS_CUSTOM_PATH = "prefs_custom_path";
@@ -99,10 +114,13 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
      */
     private List<Module> selection = null;
     /**
-     * Lists all the Modules currently installed, used by the Main Activity's ListView
-     * adapter.
+     * All the Modules currently installed, used by the Main Activity's ListView adapter. Filled in by
+     * {@link Main.ModuleLoaderTask}.
      */
-    private static List<Module> mModules;
+    private static final ModuleRegistry moduleRegistry = new ModuleRegistry();
+    /** The running loader, null if none. A loader that is no longer the current one discards its results. */
+    private static volatile ModuleLoaderTask moduleLoader = null;
+
     /**
      * Adapter used by the Main Activity's ListView.
      */
@@ -138,18 +156,10 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
         }
         super.onCreate(savedInstanceState);
 
-        SharedPreferences settings = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        boolean firstLaunch = settings.getBoolean(PREFS_FIRSTLAUNCH, true);
         //selectionIndex = settings.getInt(PREFS_SELECTIONINDEX, -2);
 
-        if(firstLaunch) {
-            // This is the first time the App runs, install the default modules and set up empty fragment view
-            Log.d("DEBUG", "First launch of app");
-            installDefaultModules();
-            settings.edit().putBoolean(PREFS_FIRSTLAUNCH, false).apply();
-        }
-
-        refreshModuleList(this);
+        // Modules are installed and read in the background, the list fills up as they come in
+        loadModuleList(this);
 
         setContentView(R.layout.activity_main);
 
@@ -256,6 +266,27 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
         //settings.edit().putInt(PREFS_SELECTIONINDEX, selectionIndex).apply();
     }
 
+    /**
+     * Write out pending statistics before the system may kill the process.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        StatsWriter writer = StatsWriter.getInstance(this);
+        writer.flush();
+        if (DEVELOPER_MODE) {
+            Log.d("DEBUG", "StatsWriter: " + writer.getQueueDepth() + " module(s) waiting, "
+                    + writer.getFlushCount() + " flush(es), last " + writer.getLastFlushMillis() + " ms, average "
+                    + writer.getAverageFlushMillis() + " ms, slowest " + writer.getMaxFlushMillis() + " ms");
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        StatsWriter.getInstance(this).flush();
+    }
+
     @Override
     protected void onSaveInstanceState(@SuppressWarnings("NullableProblems") Bundle outState) {
         // If we are in ActionMode save this state
@@ -314,6 +345,15 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
                 intent.setClass(getApplicationContext(), SettingsActivity.class);
                 startActivity(intent);
                 return true;
+            case R.id.action_export_stats:
+                new StatsTransferTask(getApplicationContext(), true).execute();
+                return true;
+            case R.id.action_import_stats:
+                new StatsTransferTask(getApplicationContext(), false).execute();
+                return true;
+            case R.id.action_sync_stats:
+                new StatsSyncTask(getApplicationContext()).execute();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -351,10 +391,11 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
      * Loads all the locally installed modules, and returns them as a sorted list.
      *
      * @param ctx The context used for the File functions and the Module constructor.
+     * @param loader If not null, every Module is published to the UI thread by this loader as soon as it is read.
      * @return A List<Module> of all the modules locally installed on the device,
      * can be empty.
      */
-    static private List<Module> loadModulesList(Context ctx) {
+    static private List<Module> loadModulesList(Context ctx, @Nullable ModuleLoaderTask loader) {
 
         List<Module> moduleList = new ArrayList<>();
         File currentDir = ctx.getDir("files", MODE_PRIVATE);
@@ -362,13 +403,30 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
 
             @Override
             public boolean accept(File dir, String filename) {
-                return filename.startsWith("module" + getLocaleSuffix());
+                return filename.startsWith("module" + getLocaleSuffix())
+                        && (filename.endsWith(Module.BINARY_SUFFIX) || filename.endsWith(Module.JSON_SUFFIX));
             }
         };
         File moduleFileList [] = currentDir.listFiles(moduleFilter);
 
         for (File moduleFile : moduleFileList) {
-            moduleList.add(new Module(ctx, moduleFile));
+            String filename = moduleFile.getName();
+            if(filename.endsWith(Module.JSON_SUFFIX)) {
+                File binaryFile = new File(currentDir, filename.substring(0, filename.length() - Module.JSON_SUFFIX.length()) + Module.BINARY_SUFFIX);
+                // Already converted, the binary file is loaded instead
+                if(binaryFile.exists())
+                    continue;
+            }
+            Module mod = new Module(ctx, moduleFile);
+            moduleList.add(mod);
+            if(loader != null)
+                loader.publish(mod);
+        }
+
+        for (Module mod : moduleList) {
+            // Installed from the assets or by an older version, convert it so the next start is faster
+            if(mod.needsConversion() && !mod.writeModuleFile())
+                Log.d("DEBUG", "Could not convert module " + mod.getId());
         }
 
         Collections.sort(moduleList);
@@ -377,20 +435,216 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
     }
 
     /**
-     * Refreshes {@link Main#mModules} to contain all the locally installed modules.
-     * Invalidates the current adapter used for the ListView in {@link pk.contender.earmouse.Main}.
+     * Add freshly installed Modules to the {@link pk.contender.earmouse.ModuleRegistry}, replacing older versions
+     * of them, without reading the other installed Modules again. Must be called on the UI thread.
+     * @param ctx A context, used to restart a background load that would miss the new Modules
+     * @param installed The installed Modules, already recorded in the {@link pk.contender.earmouse.ModuleCatalog}
+     */
+    static void addInstalledModules(Context ctx, List<Module> installed) {
+        if(!moduleRegistry.isLoaded()) {
+            // A running loader may have read the catalog before these were added, start over
+            if(moduleLoader != null) {
+                moduleLoader = null;
+                loadModuleList(ctx);
+            }
+            return;
+        }
+        moduleRegistry.putAll(installed);
+    }
+
+    /**
+     * Start loading the installed Modules in the background, unless they are loaded or being loaded already.
+     * On the first launch of the app the default Modules are installed first. Must be called on the UI thread.
+     * @param ctx A context, the loader only holds on to its application context
      */
-    static public void refreshModuleList(Context ctx) {
-        mModules = loadModulesList(ctx);
+    static public void loadModuleList(Context ctx) {
+        if(moduleRegistry.isLoaded() || moduleLoader != null)
+            return;
+        moduleRegistry.clear();
+        moduleLoader = new ModuleLoaderTask(ctx.getApplicationContext());
+        moduleLoader.execute();
     }
 
+    /**
+     * @return True if all installed Modules are in the {@link pk.contender.earmouse.ModuleRegistry}
+     */
+    static public boolean isModuleListLoaded() {
+        return moduleRegistry.isLoaded();
+    }
+
+    /**
+     * @return The registry of installed Modules
+     */
+    static public ModuleRegistry getModuleRegistry() {
+        return moduleRegistry;
+    }
 
     /**
-     * Returns the value of {@link Main#mModules}.
-     * @return the value of {@link Main#mModules}.
+     * Installs the default Modules on first launch and reads all installed Modules, handing each one to the UI
+     * thread as soon as it is read. Modules come from the {@link pk.contender.earmouse.ModuleCatalog} if it is
+     * up to date, otherwise the Module files are scanned and the catalog is rebuilt.
+     */
+    private static class ModuleLoaderTask extends AsyncTask<Void, Module, List<Module>> {
+
+        private final Context mCtx;
+        private boolean installFailed = false;
+
+        ModuleLoaderTask(Context context) {
+            mCtx = context;
+        }
+
+        @Override
+        protected List<Module> doInBackground(Void... params) {
+            SharedPreferences settings = mCtx.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+            if(settings.getBoolean(PREFS_FIRSTLAUNCH, true)) {
+                // This is the first time the App runs, install the default modules
+                Log.d("DEBUG", "First launch of app");
+                installFailed = !installDefaultModules(mCtx);
+                settings.edit().putBoolean(PREFS_FIRSTLAUNCH, false).apply();
+            }
+            // The Module list adds the answers given on other devices to its success rates
+            StatsSnapshot.loadRemoteCounts(mCtx);
+
+            List<Module> moduleList = ModuleCatalog.load(mCtx);
+            if(moduleList != null) {
+                publishProgress(moduleList.toArray(new Module[moduleList.size()]));
+            } else {
+                moduleList = loadModulesList(mCtx, this);
+                ModuleCatalog.write(mCtx, moduleList);
+            }
+            return moduleList;
+        }
+
+        /**
+         * Hand a Module to the UI thread
+         */
+        void publish(Module mod) {
+            publishProgress(mod);
+        }
+
+        @Override
+        protected void onProgressUpdate(Module... values) {
+            if(moduleLoader != this)
+                return;
+            moduleRegistry.putAll(Arrays.asList(values));
+        }
+
+        @Override
+        protected void onPostExecute(List<Module> result) {
+            if(installFailed)
+                Toast.makeText(mCtx, "Error loading default modules", Toast.LENGTH_LONG).show();
+            // A superseded loader leaves the registry to the loader that replaced it
+            if(moduleLoader != this)
+                return;
+            moduleLoader = null;
+            moduleRegistry.setLoaded();
+
+            if (DEVELOPER_MODE) {
+                List<Module> modules = moduleRegistry.getModules();
+                new RenderBenchmark(mCtx).execute(modules.toArray(new Module[modules.size()]));
+                new StatsBenchmark(mCtx).execute(modules.toArray(new Module[modules.size()]));
+            }
+        }
+    }
+
+    /**
+     * Exports the statistics of all Modules to {@link #STATS_TRANSFER_FILENAME} or imports them from it, and shows
+     * the outcome in a Toast.
+     * @see StatsTransfer
+     */
+    private static class StatsTransferTask extends AsyncTask<Void, Void, Integer> {
+
+        private static final int RESULT_OK = 0, RESULT_ERROR = 1, RESULT_NOFILE = 2;
+        private final Context mCtx;
+        private final boolean export;
+        private File file = null;
+
+        StatsTransferTask(Context context, boolean export) {
+            mCtx = context;
+            this.export = export;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            File dir = mCtx.getExternalFilesDir(null);
+            if(dir == null)
+                return RESULT_ERROR;
+            file = new File(dir, STATS_TRANSFER_FILENAME);
+            try {
+                if(export) {
+                    StatsTransfer.exportStats(mCtx, file);
+                } else {
+                    if(!file.exists())
+                        return RESULT_NOFILE;
+                    StatsTransfer.importStats(mCtx, file);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return RESULT_ERROR;
+            }
+            return RESULT_OK;
+        }
+
+        @Override
+        protected void onPostExecute(Integer result) {
+            String text;
+            if(result == RESULT_OK)
+                text = mCtx.getString(export ? R.string.toast_stats_exported : R.string.toast_stats_imported, file.getPath());
+            else if(result == RESULT_NOFILE)
+                text = mCtx.getString(R.string.toast_stats_nofile, file.getPath());
+            else
+                text = mCtx.getString(export ? R.string.toast_error_exporting_stats : R.string.toast_error_importing_stats);
+            Toast.makeText(mCtx, text, Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Merges the statistics of this device with the {@link StatsSnapshot} in {@link #STATS_SNAPSHOT_DIRNAME} both
+     * ways, and shows the outcome in a Toast. Syncing that directory between devices by any means combines their
+     * progress.
+     */
+    private static class StatsSyncTask extends AsyncTask<Void, Void, Boolean> {
+
+        private final Context mCtx;
+        private File dir = null;
+
+        StatsSyncTask(Context context) {
+            mCtx = context;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            File parent = mCtx.getExternalFilesDir(null);
+            if(parent == null)
+                return false;
+            dir = new File(parent, STATS_SNAPSHOT_DIRNAME);
+            try {
+                StatsSnapshot.sync(mCtx, dir);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean result) {
+            String text;
+            if(result)
+                text = mCtx.getString(R.string.toast_stats_synced, dir.getPath());
+            else
+                text = mCtx.getString(R.string.toast_error_syncing_stats);
+            Toast.makeText(mCtx, text, Toast.LENGTH_LONG).show();
+        }
+    }
+
+
+    /**
+     * Returns the installed Modules.
+     * @return The current snapshot of the {@link pk.contender.earmouse.ModuleRegistry}, which does not change.
      */
     static public List<Module> getModuleList() {
-        return mModules;
+        return moduleRegistry.getModules();
     }
 
     /**
@@ -400,27 +654,24 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
      */
     @Nullable
     static public Module getModuleById(int id) {
-        for(Module mod : mModules) {
-            if (mod.getId() == id) {
-                return mod;
-            }
-        }
-        return null;
+        return moduleRegistry.get(id);
     }
 
     /**
      * Install the default module_*.json files from the assets.
      * Called only the first time the application runs to provide the user
-     * with a basic selection of Modules.
+     * with a basic selection of Modules, from a background thread.
+     * @param ctx The context used for the assets and File functions
+     * @return True on success, false otherwise
      */
-    private void installDefaultModules() {
-        AssetManager assetMan = getAssets();
+    private static boolean installDefaultModules(Context ctx) {
+        AssetManager assetMan = ctx.getAssets();
         String localizedAssetDir = "modules" + getLocaleSuffix();
 
         try {
             String [] assetList = assetMan.list(localizedAssetDir);
 
-            File currentDir = getDir("files", Context.MODE_PRIVATE);
+            File currentDir = ctx.getDir("files", Context.MODE_PRIVATE);
             for(String item : assetList) {
                 InputStream in = assetMan.open(localizedAssetDir + "/" + item, AssetManager.ACCESS_BUFFER);
                 File outputFile = new File(currentDir, item);
@@ -435,8 +686,9 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
             }
         } catch (IOException e) {
             e.printStackTrace();
-            Toast.makeText(this,"Error loading default modules", Toast.LENGTH_LONG).show();
+            return false;
         }
+        return true;
     }
 
     /**
@@ -486,8 +738,8 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
 
         for (Module mod : selection) {
             if(mod != null) {
-                mAdapter.remove(mod);
                 mod.purgeModule();
+                moduleRegistry.remove(mod.getId());
                 deleted++;
             }
         }
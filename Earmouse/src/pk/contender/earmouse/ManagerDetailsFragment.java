@@ -99,17 +99,10 @@ public class ManagerDetailsFragment extends Fragment {
     public void onButtonClick(@SuppressWarnings("UnusedParameters") View view) {
         if(mod != null){
             // User request to install this module
-            if(mod.writeModuleToJson()) {
+            if(mod.writeModule()) {
                 Toast toast = Toast.makeText(mCtx, mCtx.getString(R.string.toast_module_installed), Toast.LENGTH_LONG);
                 toast.show();
-                // FIXME: Should check for null here, apparently static isn't so holy.
-                for(Module mod : ModuleManagerActivity.shownModuleList) {
-                    if(mod.getId() == id) {
-                        ModuleManagerActivity.mAdapter.remove(mod);
-                        ModuleManagerActivity.mAdapter.notifyDataSetChanged();
-                        break;
-                    }
-                }
+                // ModuleManagerActivity takes the Module off its list when the registry reports it
                 mod = null;
                 id = -1;
                 //update();
@@ -4,17 +4,30 @@ import android.content.Context;
 import android.util.JsonReader;
 import android.util.JsonWriter;
 import android.util.Log;
+import android.util.SparseArray;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -22,12 +35,41 @@ import java.util.Random;
  * <p>
  * Manages a module's data and state, generates exercises and has several I/O methods
  * for reading and writing Module objects.
+ * <p>
+ * Modules are exchanged as JSON, but installed Modules are stored in a compact binary format that is much faster
+ * to load. Installed JSON files (from the assets or an older version of the app) are converted on first load.
+ * The exercises are the same in every translation of a Module, they are stored once per Module id and version in
+ * its {@link ModuleCore}, the binary file of each installed translation holds the rest:<br>
+ * - header: magic {@link #BINARY_MAGIC} (int), format version {@link #BINARY_VERSION} (byte), offset of the
+ *   content section (int)<br>
+ * - properties: id, title, description, shortDescription, toolVersion, lowestNote, highestNote, difficulty,
+ *   moduleVersion, tuning<br>
+ * - content: string table (count, then per string its length in bytes and its UTF-8 bytes), answer table
+ *   (count, then per answer its index in the string table), generators (count, then per
+ *   {@link ExerciseGenerator} its type and parameters)<br>
+ * All integers after the header are varints, signed values are zigzag encoded. String references are the index
+ * in the string table plus one, strings in the properties are stored inline as their length plus one, in both
+ * cases 0 means null.
+ * <p>
+ * Modules are loaded lazily: the properties are read up front, from the {@link ModuleCatalog} or the
+ * properties section, the content section is read on first access and the {@link ModuleStats} are read when
+ * first needed. Exercises declared by {@link ExerciseGenerator}s are expanded into the exercise table and answer
+ * list together with the content and are never stored expanded.
  * @author Paul Klinkenberg <pklinken.development@gmail.com>
  */
 public class Module implements Comparable<Module>{
 
 	/** Constants referring to the difficulty of a Module */
 	final static public int DIFF_BEGINNER = 1, DIFF_AMATEUR = 2, DIFF_INTERMEDIATE = 3, DIFF_EXPERT = 4;
+	/** File name suffixes of installed Modules */
+	final static public String JSON_SUFFIX = ".json", BINARY_SUFFIX = ".bin";
+	/** Identifies a binary Module file, "EMOD" */
+	private static final int BINARY_MAGIC = 0x454d4f44;
+	/** Version of the binary format, bump when the layout changes */
+	private static final int BINARY_VERSION = 1;
+	/** Tuning kinds in the binary format */
+	private static final int TUNING_EQUAL = 0, TUNING_JUST = 1, TUNING_PYTHAGOREAN = 2, TUNING_CUSTOM = 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 	
 	private final Context mCtx;
 	/** The unique ID of this Module */
@@ -37,12 +79,13 @@ public class Module implements Comparable<Module>{
 	/** The description of this Module's contents or purpose */
 	private String description;
 	/** The lowest and highest notes this Module is allowed to use in its exercises (lowestNote, highestNote)
-	 * In these variable, 0 refers to C2 and 41 to E5 */
+	 * In these variable, 0 refers to C2 and 41 to E5, notes down to {@link SampleBank#NOTE_MIN} and up to
+	 * {@link SampleBank#NOTE_MAX} can be used as well, those are derived from the nearest available sample. */
 	private int lowestNote, highestNote;
 	/** The difficulty of this Module */
 	private int difficulty;
-    /** Reference to this Module's statistics */
-	private ModuleStats stats;
+    /** Reference to this Module's statistics, null until first used, always access through {@link #getStats()} */
+	private volatile ModuleStats stats;
 	/** The version of create_module.py used to create this Module */
 	private String toolVersion;
 
@@ -51,16 +94,41 @@ public class Module implements Comparable<Module>{
      * Not currently used for anything, planned use is for Module updates.
      */
     private int moduleVersion = 1;
+    /** The tuning system this Module's exercises are rendered in */
+    private Tuning tuning = Tuning.EQUAL;
+
     /** A short description on the Module contents
      * <p>
      * Used in ListViews to give the user an indication of a Module's contents beyond the title
      */
     private String shortDescription;
 
-	/** List of the answers for this Module's exercises */
+    /** True if this Module was read from a file without errors */
+    private boolean loaded = false;
+    /** True if this Module was read from JSON and should be written in the binary format */
+    private boolean sourceOutdated = false;
+    /** The binary file the answer list and exercise table are still to be read from, null once they are loaded */
+    private File pendingContentFile = null;
+    /** Offset of the content section in the binary file */
+    private int contentOffset = 0;
+    /** Statistics summary from the {@link ModuleCatalog} or the summary file, used until the full statistics are
+     * loaded, null until first needed */
+    private volatile StatsSummary summary = null;
+
+	/** List of the answers for this Module's listed exercises */
 	private List<String> answerList = new ArrayList<>();
-	/** List of this Module's Exercises */
-	private final List<Exercise> exerciseList = new ArrayList<>();
+	/** This Module's listed Exercises, the generated ones follow them */
+	private ExerciseTable exerciseTable = ExerciseTable.EMPTY;
+	/** Generators declaring exercises in addition to the listed ones */
+	private List<ExerciseGenerator> generators = new ArrayList<>();
+	/** The generated exercises that have been drawn, keyed on their index in this Module, each in a table of its own */
+	private SparseArray<ExerciseTable> generatedExercises = new SparseArray<>();
+	/** The listed answers followed by those of the generators, null until first needed */
+	private List<String> allAnswers = null;
+	/** Random numbers for picking and transposing exercises */
+	private final Random rng = new Random();
+	/** The validated transposition ranges of the exercises, null until the content is compiled */
+	private ModuleCompiler.Result compiled = null;
 
     /**
      * Contructs an empty (and useless) Module
@@ -79,23 +147,58 @@ public class Module implements Comparable<Module>{
 	}
 
 	/**
-	 * Constructs a Module by reading a JSON from the given filename
+	 * Constructs a Module by reading an installed Module file
+	 * <p>
+	 * Files ending in {@link #BINARY_SUFFIX} are read as binary, if that fails and there is a JSON file for the
+	 * same Module, that is read instead. All other files are read as JSON.
 	 * @param context The application context
-	 * @param moduleFile The File from which to read the JSON data
+	 * @param moduleFile The File from which to read the Module data
 	 */
 	public Module (Context context, File moduleFile) {
 		mCtx = context;
-		try {
-			FileInputStream fis = new FileInputStream(moduleFile);
-			FileReader filereader = new FileReader(fis.getFD());
-			initModuleFromJson(filereader);
-			filereader.close();
-			fis.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		String name = moduleFile.getName();
+		if(name.endsWith(BINARY_SUFFIX)) {
+			try {
+				initModuleFromBinary(moduleFile, false);
+				pendingContentFile = moduleFile;
+				loaded = true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				moduleFile = new File(moduleFile.getParentFile(), name.substring(0, name.length() - BINARY_SUFFIX.length()) + JSON_SUFFIX);
+				Log.d("DEBUG", "Falling back to " + moduleFile.getName());
+			}
+		}
+		if(!loaded) {
+			try {
+				FileInputStream fis = new FileInputStream(moduleFile);
+				FileReader filereader = new FileReader(fis.getFD());
+				initModuleFromJson(filereader);
+				filereader.close();
+				fis.close();
+				loaded = true;
+				sourceOutdated = true;
+			} catch (IOException e) {
+				e.printStackTrace();
 
-        }
-		stats = new ModuleStats(mCtx, id);
+			}
+		}
+	}
+
+	/**
+	 * Constructs an installed Module from its {@link ModuleCatalog} record, without touching its file.
+	 * @param context The application context
+	 * @param properties The properties as written by {@link #writeProperties}
+	 * @param contentOffset The offset of the content section in the Module's binary file
+	 * @param summary The last known statistics summary
+	 * @throws IOException If the properties can not be read
+	 */
+	Module(Context context, DataInput properties, int contentOffset, StatsSummary summary) throws IOException {
+		mCtx = context;
+		readProperties(properties);
+		this.contentOffset = contentOffset;
+		this.summary = summary;
+		pendingContentFile = getModuleFile(BINARY_SUFFIX);
+		loaded = true;
 	}
 
 	/**
@@ -114,18 +217,236 @@ public class Module implements Comparable<Module>{
 	}
 
 	/**
-	 * Save a Module's statistics
-	 * @see ModuleStats#saveModuleStats()
+	 * @return True if this Module was read from a file without errors
+	 */
+	boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * @return True if this Module was read without errors from JSON, and should be written in the binary format with
+	 * {@link #writeModuleFile()}
+	 */
+	boolean needsConversion() {
+		return loaded && sourceOutdated;
+	}
+
+	/**
+	 * @return The offset of the content section in this Module's binary file, valid once it was read or written
+	 */
+	int getContentOffset() {
+		return contentOffset;
+	}
+
+	/**
+	 * Save a Module's statistics in the background, returns immediately
+	 * @see StatsWriter#markDirty(Module)
 	 */
 	public void saveState () {
-        stats.saveModuleStats();
+        StatsWriter.getInstance(mCtx).markDirty(this);
 	}
 
 	/**
-	 * Reload this Module's statistics 
+	 * Write this Module's new answers to disk, called by the {@link StatsWriter}
+	 * @see ModuleStats#saveModuleStats()
+	 */
+	void flushStats() {
+		getStats().saveModuleStats();
+	}
+
+	/**
+	 * Make sure this Module's statistics are loaded.
+	 * <p>
+	 * Loaded statistics are not read again: answers are written behind by the {@link StatsWriter}, so the
+	 * statistics in memory are newer than the ones on disk.
+	 */
+	public synchronized void refreshState() {
+		if(stats == null)
+			stats = new ModuleStats(mCtx, id);
+	}
+
+	/**
+	 * Take over the loaded statistics of the instance this one replaces, so the answers to a Module are always
+	 * kept by a single {@link ModuleStats}, which is never read back while it has answers waiting to be written.
+	 * @param old The replaced instance of this Module
+	 */
+	synchronized void takeStats(Module old) {
+		ModuleStats loaded = old.stats;
+		if(stats == null && loaded != null && old.id == id)
+			stats = loaded;
+	}
+
+	/**
+	 * @return This Module's statistics, read from disk on first use
+	 */
+	private synchronized ModuleStats getStats() {
+		if(stats == null)
+			stats = new ModuleStats(mCtx, id);
+		return stats;
+	}
+
+	/**
+	 * Returns the totals of this Module's statistics on this device without loading them if they are not loaded yet.
+	 * <p>
+	 * Statistics saved by older versions of the app have no summary file, they are loaded once to write one.
+	 * @return The statistics summary
 	 */
-	public void refreshState() {
-		stats = new ModuleStats(mCtx, id);
+	StatsSummary getSummary() {
+		// Answered without locking, so the list never waits for statistics being loaded or imported
+		ModuleStats loaded = stats;
+		if(loaded != null)
+			return loaded.getSummary();
+		StatsSummary known = summary;
+		if(known != null)
+			return known;
+		synchronized (this) {
+			if(stats != null)
+				return stats.getSummary();
+			if(summary == null)
+				summary = StatsSummary.read(mCtx, id);
+			if(summary == null) {
+				summary = getStats().getSummary();
+				summary.write(mCtx, id);
+			}
+			return summary;
+		}
+	}
+
+	/**
+	 * Merge imported answers into this Module's statistics, without loading them if they are not loaded yet.
+	 * @param imported The answers to merge in
+	 * @throws IOException If the merged statistics could not be stored
+	 * @see ModuleStats#mergeStored
+	 */
+	synchronized void importStats(StatsStore.Cursor imported) throws IOException {
+		if(stats != null)
+			stats.importAnswers(imported);
+		else
+			summary = ModuleStats.mergeStored(mCtx, ModuleStats.getStore(mCtx), id, imported);
+	}
+
+	/**
+	 * Pick up the answers given on other devices after a {@link StatsSnapshot} was imported
+	 */
+	void refreshRemoteStats() {
+		ModuleStats loaded = stats;
+		if(loaded != null)
+			loaded.setRemoteCounts(StatsSnapshot.getRemoteCounts(mCtx, id));
+	}
+
+	/**
+	 * Read the answer list and exercise table if that has not happened yet.
+	 * <p>
+	 * Called by every method that needs them, so the parts of the Module the list does not show are only
+	 * read once the Module is opened.
+	 */
+	private synchronized void ensureContentLoaded() {
+		if(pendingContentFile != null) {
+			try {
+				initContentFromBinary(pendingContentFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+				loaded = false;
+			}
+			pendingContentFile = null;
+		}
+	}
+
+	/**
+	 * @return The amount of exercises the {@link #generators} declare, they follow the listed exercises
+	 */
+	private int getGeneratedCount() {
+		int count = 0;
+		for (ExerciseGenerator generator : generators) {
+			count += generator.getCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Generate one of the exercises the {@link #generators} declare, each is only generated once.
+	 * @param exerciseIndex The index of the exercise in this Module, past the listed exercises
+	 * @return A table holding just that exercise
+	 */
+	private synchronized ExerciseTable getGeneratedExercise(int exerciseIndex) {
+		ExerciseTable result = generatedExercises.get(exerciseIndex);
+		if(result != null)
+			return result;
+		int index = exerciseIndex - exerciseTable.getExerciseCount();
+		for (ExerciseGenerator generator : generators) {
+			if(index < generator.getCount()) {
+				ExerciseTable.Builder builder = new ExerciseTable.Builder();
+				generator.generate(index, builder);
+				result = builder.build();
+				generatedExercises.put(exerciseIndex, result);
+				return result;
+			}
+			index -= generator.getCount();
+		}
+		throw new IndexOutOfBoundsException("Module " + id + " has no exercise " + exerciseIndex);
+	}
+
+	/**
+	 * The listed answers followed by those of the {@link #generators}, which are only worked out when asked for
+	 */
+	private class AnswerList extends AbstractList<String> {
+		private final int size = answerList.size() + getGeneratedCount();
+		private final SparseArray<String> generated = new SparseArray<>();
+
+		@Override
+		public String get(int location) {
+			if(location < answerList.size())
+				return answerList.get(location);
+			if(location >= size)
+				throw new IndexOutOfBoundsException("Module " + id + " has no answer " + location);
+			String answer = generated.get(location);
+			if(answer != null)
+				return answer;
+			int index = location - answerList.size();
+			for (ExerciseGenerator generator : generators) {
+				if(index < generator.getCount()) {
+					answer = generator.getAnswer(index);
+					break;
+				}
+				index -= generator.getCount();
+			}
+			generated.put(location, answer);
+			return answer;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * Place the given exercise if it is a generated one that has not been drawn before.
+	 * @return True if the exercise fits the Module's note range and can be served
+	 */
+	private boolean isPlayable(ModuleCompiler.Result compiled, int exerciseIndex) {
+		if(!compiled.isCompiled(exerciseIndex)) {
+			synchronized (this) {
+				compiled.compileExercise(exerciseIndex, getGeneratedExercise(exerciseIndex), 0);
+			}
+		}
+		return compiled.isPlayable(exerciseIndex);
+	}
+
+	/**
+	 * Compile this Module's content if that has not happened yet.
+	 * @return The validated transposition ranges of the exercises
+	 * @see ModuleCompiler
+	 */
+	synchronized ModuleCompiler.Result getCompiled() {
+		ensureContentLoaded();
+		if(compiled == null) {
+			int generatedCount = getGeneratedCount();
+			int answerCount = answerList != null ? answerList.size() + generatedCount : 0;
+			compiled = ModuleCompiler.compile(id, exerciseTable, generatedCount, answerCount, lowestNote,
+					highestNote, new SampleBank(mCtx));
+		}
+		return compiled;
 	}
 
 	/**
@@ -167,22 +488,34 @@ public class Module implements Comparable<Module>{
                 case "moduleVersion":
                     this.moduleVersion = reader.nextInt();
                     break;
+                case "tuning":
+                    this.tuning = Tuning.readFromJson(reader);
+                    break;
                 case "exerciseList":
+                    ExerciseTable.Builder builder = new ExerciseTable.Builder();
                     reader.beginArray();
-                    for (int i = 0; reader.hasNext(); i++) {
-                        this.exerciseList.add(new Exercise());
+                    while (reader.hasNext()) {
+                        builder.startExercise();
                         reader.beginArray();
-                        for (int j = 0; reader.hasNext(); j++) {
-                            this.exerciseList.get(i).exerciseUnits.add(new ArrayList<Integer>());
+                        while (reader.hasNext()) {
+                            builder.startUnit();
                             reader.beginArray();
                             while (reader.hasNext()) {
-                                this.exerciseList.get(i).exerciseUnits.get(j).add(reader.nextInt());
+                                builder.addNote(reader.nextInt());
                             }
                             reader.endArray();
                         }
                         reader.endArray();
                     }
                     reader.endArray();
+                    this.exerciseTable = builder.build();
+                    break;
+                case "generators":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        this.generators.add(ExerciseGenerator.readFromJson(reader));
+                    }
+                    reader.endArray();
                     break;
                 case "answerList":
                     reader.beginArray();
@@ -200,6 +533,354 @@ public class Module implements Comparable<Module>{
 		reader.close();
 	}
 
+	/**
+	 * Loads this Module's properties and optionally its content from a file in the binary format
+	 * @param moduleFile The file to read
+	 * @param content Whether to read the answer list and exercise table as well
+	 * @throws IOException If the file can not be read, is not a binary Module or is of an unknown version
+	 */
+	private void initModuleFromBinary(File moduleFile, boolean content) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(moduleFile)));
+		try {
+			if(in.readInt() != BINARY_MAGIC)
+				throw new IOException(moduleFile.getName() + " is not a binary Module");
+			int version = in.readUnsignedByte();
+			if(version != BINARY_VERSION)
+				throw new IOException(moduleFile.getName() + " has unsupported version " + version);
+
+			contentOffset = in.readInt();
+			readProperties(in);
+			if(content)
+				readContent(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the Module version of an installed binary Module, which selects the {@link ModuleCore} it uses
+	 * @param moduleFile The file to read
+	 * @return The Module version
+	 * @throws IOException If the file can not be read, is not a binary Module or is of an unknown version
+	 */
+	static int readCoreVersion(File moduleFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(moduleFile)));
+		try {
+			if(in.readInt() != BINARY_MAGIC)
+				throw new IOException(moduleFile.getName() + " is not a binary Module");
+			int version = in.readUnsignedByte();
+			if(version != BINARY_VERSION)
+				throw new IOException(moduleFile.getName() + " has unsupported version " + version);
+			// The content offset, then the properties up to moduleVersion, see readProperties
+			in.readInt();
+			readVarInt(in);
+			for (int i = 0; i < 4; i++) {
+				readInlineString(in);
+			}
+			for (int i = 0; i < 3; i++) {
+				readSignedVarInt(in);
+			}
+			return readSignedVarInt(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the answer list and exercise table of a binary Module whose properties are already known
+	 * @param moduleFile The file to read
+	 * @throws IOException
+	 */
+	private void initContentFromBinary(File moduleFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(moduleFile)));
+		try {
+			int skip = contentOffset;
+			while(skip > 0) {
+				int skipped = in.skipBytes(skip);
+				if(skipped <= 0)
+					throw new IOException(moduleFile.getName() + " is truncated");
+				skip -= skipped;
+			}
+			readContent(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the properties section of the binary format, this is also how {@link ModuleCatalog} stores them
+	 * @param in The stream to read from
+	 * @throws IOException
+	 */
+	private void readProperties(DataInput in) throws IOException {
+		id = readVarInt(in);
+		title = readInlineString(in);
+		description = readInlineString(in);
+		shortDescription = readInlineString(in);
+		toolVersion = readInlineString(in);
+		lowestNote = readSignedVarInt(in);
+		highestNote = readSignedVarInt(in);
+		difficulty = readSignedVarInt(in);
+		moduleVersion = readSignedVarInt(in);
+		switch (in.readUnsignedByte()) {
+			case TUNING_JUST:
+				tuning = Tuning.JUST;
+				break;
+			case TUNING_PYTHAGOREAN:
+				tuning = Tuning.PYTHAGOREAN;
+				break;
+			case TUNING_CUSTOM:
+				String tuningName = readInlineString(in);
+				float[] cents = new float[12];
+				for (int i = 0; i < cents.length; i++) {
+					cents[i] = in.readFloat();
+				}
+				tuning = new Tuning(tuningName, cents);
+				break;
+			default:
+				tuning = Tuning.EQUAL;
+				break;
+		}
+	}
+
+	/**
+	 * Writes the properties section of the binary format
+	 * @param out The stream to write to
+	 * @throws IOException
+	 */
+	void writeProperties(DataOutput out) throws IOException {
+		writeVarInt(out, id);
+		writeInlineString(out, title);
+		writeInlineString(out, description);
+		writeInlineString(out, shortDescription);
+		writeInlineString(out, toolVersion);
+		writeSignedVarInt(out, lowestNote);
+		writeSignedVarInt(out, highestNote);
+		writeSignedVarInt(out, difficulty);
+		writeSignedVarInt(out, moduleVersion);
+		if(tuning == Tuning.JUST) {
+			out.writeByte(TUNING_JUST);
+		} else if(tuning == Tuning.PYTHAGOREAN) {
+			out.writeByte(TUNING_PYTHAGOREAN);
+		} else if(tuning.isEqualTemperament()) {
+			out.writeByte(TUNING_EQUAL);
+		} else {
+			out.writeByte(TUNING_CUSTOM);
+			writeInlineString(out, tuning.getName());
+			for (int i = 0; i < 12; i++) {
+				out.writeFloat(tuning.getCents(i));
+			}
+		}
+	}
+
+	/**
+	 * Reads the content section of the binary format: the string table, answer list and generators, and the
+	 * exercise table from this Module's {@link ModuleCore}
+	 * @param in The stream to read from
+	 * @throws IOException
+	 */
+	private void readContent(DataInput in) throws IOException {
+		String[] strings = readStringTable(in);
+
+		int answerCount = readVarInt(in);
+		answerList = new ArrayList<>(answerCount);
+		for (int i = 0; i < answerCount; i++) {
+			answerList.add(readString(in, strings));
+		}
+
+		exerciseTable = ModuleCore.get(mCtx, id, moduleVersion).getExercises();
+
+		int generatorCount = readVarInt(in);
+		generators = new ArrayList<>(generatorCount);
+		for (int i = 0; i < generatorCount; i++) {
+			generators.add(ExerciseGenerator.readFromBinary(in));
+		}
+		generatedExercises = new SparseArray<>();
+		allAnswers = null;
+	}
+
+	/**
+	 * Writes the content section of the binary format, the exercises go to the {@link ModuleCore}
+	 * @param out The stream to write to
+	 * @throws IOException
+	 */
+	private void writeContent(DataOutput out) throws IOException {
+		// Build the string table, every distinct string is stored once
+		Map<String, Integer> stringIndex = new HashMap<>();
+		List<String> strings = new ArrayList<>();
+		// Generated exercises and answers are not stored, only their generators
+		for (String answer : answerList) {
+			addString(answer, strings, stringIndex);
+		}
+
+		writeVarInt(out, strings.size());
+		for (String value : strings) {
+			byte[] bytes = value.getBytes(UTF8);
+			writeVarInt(out, bytes.length);
+			out.write(bytes);
+		}
+
+		writeVarInt(out, answerList.size());
+		for (String answer : answerList) {
+			writeString(out, answer, stringIndex);
+		}
+
+		writeVarInt(out, generators.size());
+		for (ExerciseGenerator generator : generators) {
+			generator.writeToBinary(out);
+		}
+	}
+
+	/**
+	 * Reads an exercise table as written by {@link #writeExerciseTable}
+	 * @param in The stream to read from
+	 * @return The table
+	 * @throws IOException
+	 */
+	static ExerciseTable readExerciseTable(DataInput in) throws IOException {
+		int exerciseCount = readVarInt(in);
+		ExerciseTable.Builder builder = new ExerciseTable.Builder();
+		for (int i = 0; i < exerciseCount; i++) {
+			builder.startExercise();
+			int unitCount = readVarInt(in);
+			for (int j = 0; j < unitCount; j++) {
+				builder.startUnit();
+				int noteCount = readVarInt(in);
+				for (int k = 0; k < noteCount; k++) {
+					builder.addNote(readSignedVarInt(in));
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Writes an exercise table: its count, then per exercise its unit count and per unit its note count and notes
+	 * @param out The stream to write to
+	 * @param table The table to write
+	 * @throws IOException
+	 */
+	static void writeExerciseTable(DataOutput out, ExerciseTable table) throws IOException {
+		int exerciseCount = table.getExerciseCount();
+		writeVarInt(out, exerciseCount);
+		for (int exercise = 0; exercise < exerciseCount; exercise++) {
+			int unitCount = table.getUnitCount(exercise);
+			writeVarInt(out, unitCount);
+			for (int unit = 0; unit < unitCount; unit++) {
+				int noteCount = table.getNoteCount(exercise, unit);
+				writeVarInt(out, noteCount);
+				for (int i = 0; i < noteCount; i++) {
+					writeSignedVarInt(out, table.getNote(exercise, unit, i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes this Module in the binary format
+	 * @param out The stream to write to
+	 * @throws IOException
+	 */
+	private void writeModuleToBinary(DataOutput out) throws IOException {
+		ByteArrayOutputStream properties = new ByteArrayOutputStream();
+		writeProperties(new DataOutputStream(properties));
+
+		out.writeInt(BINARY_MAGIC);
+		out.writeByte(BINARY_VERSION);
+		// magic, version and the offset itself
+		contentOffset = 4 + 1 + 4 + properties.size();
+		out.writeInt(contentOffset);
+		out.write(properties.toByteArray());
+		writeContent(out);
+	}
+
+	private static String[] readStringTable(DataInput in) throws IOException {
+		String[] strings = new String[readVarInt(in)];
+		byte[] buf = new byte[64];
+		for (int i = 0; i < strings.length; i++) {
+			int len = readVarInt(in);
+			if(len > buf.length)
+				buf = new byte[len];
+			in.readFully(buf, 0, len);
+			strings[i] = new String(buf, 0, len, UTF8);
+		}
+		return strings;
+	}
+
+	/**
+	 * Write a string that is not in the string table: its length in bytes plus one, 0 meaning null, and its UTF-8 bytes
+	 */
+	static void writeInlineString(DataOutput out, String value) throws IOException {
+		if(value == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		writeVarInt(out, bytes.length + 1);
+		out.write(bytes);
+	}
+
+	static String readInlineString(DataInput in) throws IOException {
+		int len = readVarInt(in);
+		if(len == 0)
+			return null;
+		byte[] bytes = new byte[len - 1];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void addString(String value, List<String> strings, Map<String, Integer> stringIndex) {
+		if(value != null && !stringIndex.containsKey(value)) {
+			stringIndex.put(value, strings.size());
+			strings.add(value);
+		}
+	}
+
+	private static void writeString(DataOutput out, String value, Map<String, Integer> stringIndex) throws IOException {
+		writeVarInt(out, value == null ? 0 : stringIndex.get(value) + 1);
+	}
+
+	private static String readString(DataInput in, String[] strings) throws IOException {
+		int index = readVarInt(in);
+		if(index > strings.length)
+			throw new IOException("String index out of range: " + index);
+		return index == 0 ? null : strings[index - 1];
+	}
+
+	/**
+	 * Write an unsigned LEB128 varint, 7 bits per byte with the high bit set on all but the last byte
+	 */
+	static void writeVarInt(DataOutput out, int value) throws IOException {
+		while((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt(DataInput in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			result |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+				return result;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Write a zigzag encoded varint, so small negative values take as little space as small positive ones
+	 */
+	static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+		writeVarInt(out, (value << 1) ^ (value >> 31));
+	}
+
+	static int readSignedVarInt(DataInput in) throws IOException {
+		int value = readVarInt(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
     /**
      * Generate a random number between [0 - limit>, with a linearly descending distribution from 0 to limit.
      * <p>Example distribution of 10000 calls with limit == 5:
@@ -213,7 +894,6 @@ public class Module implements Comparable<Module>{
      * @return a random number between [0 - limit> in a linearly descending distribution from 0 to limit.
      */
     private int getLinearRandomNumber(int limit) {
-        Random rng = new Random();
         int randomMultiplier = limit * (limit + 1) / 2;
         int randomNumber = rng.nextInt(randomMultiplier);
 
@@ -228,10 +908,12 @@ public class Module implements Comparable<Module>{
 	/**
 	 * Returns an index to one of this Module's exercises that is random but weighted towards certain properties.
      * <p>
-     * Specifically, it sorts all available exercises first on success rate and then on how often they were attempted.
+     * Specifically, it sorts all available exercises first on their recent success rate and then on how often they
+     * were attempted.
      * It then uses {@link #getLinearRandomNumber} to pick one, thus preferring items higher on the list.
      *
-	 * @return A weighted index to one of this Module's exercises.
+	 * @return A weighted index to one of this Module's exercises, or -1 if none of them can be played, which is
+	 * only the case for a Module that does not pass the {@link ModuleCompiler}.
 	 */
 	public int getWeightedExerciseIndex() {
 
@@ -266,14 +948,27 @@ public class Module implements Comparable<Module>{
             }
         }
 
+        ModuleCompiler.Result compiled = getCompiled();
+        ModuleStats stats = getStats();
         List<ratedExercise> ratedExerciseList = new ArrayList<>();
-        for(int index = 0; index < exerciseList.size(); index++) {
-            ratedExerciseList.add(new ratedExercise(index, stats.exerciseSuccessRate(index), stats.exerciseCount(index)));
+        int exerciseCount = exerciseTable.getExerciseCount() + getGeneratedCount();
+        for(int index = 0; index < exerciseCount; index++) {
+            // Exercises that do not fit the Module's note range are never served, generated ones are only
+            // placed once they are drawn
+            if(!compiled.isCompiled(index) || compiled.isPlayable(index))
+                ratedExerciseList.add(new ratedExercise(index, stats.recentExerciseSuccessRate(index), stats.exerciseCount(index)));
         }
         Collections.sort(ratedExerciseList);
         // ratedExerciseList is now the list of all exercises in this module sorted by success rate and count
 
-        return ratedExerciseList.get(getLinearRandomNumber(ratedExerciseList.size())).getExerciseIndex();
+        while(!ratedExerciseList.isEmpty()) {
+            int pick = getLinearRandomNumber(ratedExerciseList.size());
+            int index = ratedExerciseList.get(pick).getExerciseIndex();
+            if(isPlayable(compiled, index))
+                return index;
+            ratedExerciseList.remove(pick);
+        }
+        return -1;
 	}
 
 	/**
@@ -300,60 +995,52 @@ public class Module implements Comparable<Module>{
 	/**
 	 * @return The Module's answer list
 	 */
-	public List<String> getAnswerList() {
-		return answerList;
+	public synchronized List<String> getAnswerList() {
+		ensureContentLoaded();
+		if(generators.isEmpty() || answerList == null)
+			return answerList;
+		if(allAnswers == null)
+			allAnswers = new AnswerList();
+		return allAnswers;
 	}
 
 	/**
 	 * Generates an Exercise that can be used by {@link pk.contender.earmouse.MediaFragment} to generate
      * a WAV sample.
 	 * <p> 
-	 * The Exercise objects in {@link #exerciseList} are an abstract representation of a sequence of notes/chords.
-     * This function maps the Exercise at the given index to a random point between {@link #lowestNote} and {@link #highestNote}.
+	 * The exercises in {@link #exerciseTable} and those of the {@link #generators} are an abstract representation
+	 * of a sequence of notes/chords, a generated exercise is generated the first time it is asked for.
+     * This function maps the exercise at the given index to a random point between {@link #lowestNote} and {@link #highestNote}.
      * The result can be used by {@link pk.contender.earmouse.MediaFragment} to generate a WAV sample.
      * @param exerciseIndex The index of the Exercise to generate.
-	 * @return An Exercise instance that can be used to prepare a WAV sample.
+	 * @return A new Exercise instance that can be used to prepare a WAV sample.
 	 */
 	public Exercise getExercise(int exerciseIndex) {
 		Exercise resultExercise = new Exercise();
-		
-		int positiveOffset = 0;
-		int negativeOffset = 0;
-		for(List<Integer> exerciseUnit : exerciseList.get(exerciseIndex).exerciseUnits) {
-			if(exerciseUnit.get(0) < negativeOffset)
-				negativeOffset = exerciseUnit.get(0);
-			int span = 0;
-			for(int i = 1;i < exerciseUnit.size(); i++) {
-				if(exerciseUnit.get(i) > span) 
-					span = exerciseUnit.get(i);
-			}
-			if((exerciseUnit.get(0) + span) > positiveOffset)
-				positiveOffset = (exerciseUnit.get(0) + span);
-		}
-		// At this point negativeOffset is the largest negative offset to be found in this exercise
-		// and positiveOffset is the largest positive offset.
-		
-		// So now we can generate a random baseOffset that will not exceed the bounds of highestNote
-		// or lowestNote as prescribed by the Module.
-		
-		Random rng = new Random();
-		int delta = (highestNote - positiveOffset) - (lowestNote - negativeOffset);
-		int baseOffset = rng.nextInt(delta) + (lowestNote - negativeOffset);
-		
-		Log.d("Debug", "exerciseIndex: " + exerciseIndex + " positiveOffset:" + positiveOffset
-				+ " negativeOffset:" + negativeOffset + " delta: " + delta + "baseOffset: " + baseOffset);
-		
-		// Now we can derive the values for the resultExercise using the baseOffset
-		for(int i = 0;i < exerciseList.get(exerciseIndex).exerciseUnits.size(); i++) {
-			resultExercise.exerciseUnits.add(new ArrayList<Integer>());
-			resultExercise.exerciseUnits.get(i).add(baseOffset + exerciseList.get(exerciseIndex).exerciseUnits.get(i).get(0));
-			for(int j = 1;j < exerciseList.get(exerciseIndex).exerciseUnits.get(i).size(); j++) {
-				resultExercise.exerciseUnits.get(i).add(resultExercise.exerciseUnits.get(i).get(0) + exerciseList.get(exerciseIndex).exerciseUnits.get(i).get(j)); 
-			}
-		}
-		
+		getExercise(exerciseIndex, resultExercise);
 		return resultExercise;
 	}
+
+	/**
+	 * Like {@link #getExercise(int)}, but fills in the given Exercise instead of creating one, its arrays are
+	 * reused if they are large enough.
+	 * @param exerciseIndex The index of the Exercise to generate.
+	 * @param resultExercise The Exercise to fill in
+	 */
+	public void getExercise(int exerciseIndex, Exercise resultExercise) {
+		ModuleCompiler.Result compiled = getCompiled();
+		// The compiler worked out the notes the exercise may start on without exceeding highestNote or
+		// lowestNote as prescribed by the Module, an exercise that does not fit gets the lowest one
+		int baseOffset = compiled.getLowestBase(exerciseIndex);
+		if(isPlayable(compiled, exerciseIndex))
+			baseOffset += rng.nextInt(compiled.getBaseChoices(exerciseIndex));
+
+		if(exerciseIndex < exerciseTable.getExerciseCount())
+			exerciseTable.transpose(exerciseIndex, baseOffset, resultExercise);
+		else
+			getGeneratedExercise(exerciseIndex).transpose(0, baseOffset, resultExercise);
+		resultExercise.tuning = tuning;
+	}
 	
 	/**
 	 * Register an answer with the ModuleStats instance
@@ -361,7 +1048,7 @@ public class Module implements Comparable<Module>{
 	 * @param result The correctness of the answer
 	 */
 	public void registerAnswer(int exerciseIndex, boolean result) {
-		stats.addAnswer(exerciseIndex, result);
+		getStats().addAnswer(exerciseIndex, result);
 	}
 
 	/**
@@ -369,7 +1056,30 @@ public class Module implements Comparable<Module>{
 	 * @see ModuleStats#calculateSuccessRate()
 	 */
 	public int getSuccessRate() {
-		return stats.calculateSuccessRate();
+		return StatsSnapshot.addRemote(id, getSummary()).getSuccessRate();
+	}
+
+	/**
+	 * @return The time of the last answer to this Module in milliseconds, 0 if there is none
+	 */
+	public long getLastPracticed() {
+		return getSummary().getLastPracticed();
+	}
+
+	/**
+	 * @return The success rate of the recent answers to this Module
+	 * @see ModuleStats#recentSuccessRate()
+	 */
+	public int getRecentSuccessRate() {
+		return getStats().recentSuccessRate();
+	}
+
+	/**
+	 * @return The amount of answers given to this Module today
+	 * @see ModuleStats#answersOnDay(int)
+	 */
+	public int getAnswersToday() {
+		return getStats().answersOnDay(0);
 	}
 
 	/**
@@ -406,113 +1116,185 @@ public class Module implements Comparable<Module>{
    	/**
 	 * Attempts to write this Module to the device's local storage.
 	 * <p>
-	 * Write this Module to disk as a JSON file, does not save the value of ModuleStats
-	 * @return True on success, false otherwise (this happens if an exception occurs)
+	 * Write this Module to disk in the binary format, does not save the value of ModuleStats.
+	 * Modules that do not pass the {@link ModuleCompiler} are not installed. Must be called on the UI thread, use
+	 * a {@link ModuleInstallBatch} to install several Modules at once.
+	 * @return True on success, false otherwise (this happens if an exception occurs or the Module is invalid)
 	 */
-	public boolean writeModuleToJson() {
-		
-		File currentDir = mCtx.getDir("files", Context.MODE_PRIVATE);
-		File modFile = new File(currentDir, "module" +
-				Main.getLocaleSuffix() + "_" +
-				id + ".json");
-		
-		if (!modFile.exists()) {
+	public boolean writeModule() {
+		ModuleInstallBatch batch = new ModuleInstallBatch(mCtx);
+		if(!batch.install(this))
+			return false;
+		batch.publish();
+		return true;
+	}
+
+	/**
+	 * Write this Module to disk in the binary format without adding it to the {@link ModuleRegistry}, replacing any
+	 * JSON file of this Module. Its exercises are stored in the {@link ModuleCore} of its version, which is left
+	 * alone if another translation of that version already installed the same one.
+	 * <p>
+	 * The file is written under a temporary name and then renamed, so a failed write never leaves a
+	 * truncated Module behind.
+	 * @return True on success, false otherwise
+	 */
+	boolean writeModuleFile() {
+		ensureContentLoaded();
+		if(!ModuleCore.put(mCtx, new ModuleCore(id, moduleVersion, lowestNote, highestNote, exerciseTable)))
+			return false;
+		File modFile = getModuleFile(BINARY_SUFFIX);
+		File tmpFile = new File(modFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
 			try {
-                //noinspection ResultOfMethodCallIgnored
-                modFile.createNewFile();
-			} catch (IOException e) {
-				e.printStackTrace();
-				return false;
+				writeModuleToBinary(out);
+			} finally {
+				out.close();
 			}
-		}
-		FileWriter fw;
-		try {
-			fw = new FileWriter(modFile);
 		} catch (IOException e) {
 			e.printStackTrace();
+			//noinspection ResultOfMethodCallIgnored
+			tmpFile.delete();
+			return false;
+		}
+		if(!tmpFile.renameTo(modFile)) {
+			Log.d("DEBUG", "Could not rename " + tmpFile.getName());
+			//noinspection ResultOfMethodCallIgnored
+			tmpFile.delete();
 			return false;
 		}
-        try {
-            JsonWriter writer = new JsonWriter(fw);
-
-            writer.beginObject();
-            writer.name("moduleId");
-            writer.value(this.getId());
-            writer.name("title");
-            writer.value(this.getTitle());
-            writer.name("description");
-            writer.value(this.getDescription());
-            writer.name("shortDescription");
-            writer.value(this.getShortDescription());
-            writer.name("lowestNote");
-            writer.value(this.lowestNote);
-            writer.name("highestNote");
-            writer.value(this.highestNote);
-            writer.name("difficulty");
-            writer.value(this.getDifficulty());
-            writer.name("version");
-            writer.value(this.getToolVersion());
-            writer.name("moduleVersion");
-            writer.value(this.getModuleVersion());
-            writer.name("answerList");
-            writer.beginArray();
-            for(String answer : answerList) {
-                writer.value(answer);
-            }
-            writer.endArray();
-            writer.name("exerciseList");
-            writer.beginArray();
-            for(Exercise exercise : exerciseList) {
-                writer.beginArray();
-                for(List<Integer> exerciseUnit : exercise.exerciseUnits) {
-                    writer.beginArray();
-                    for(Integer value : exerciseUnit) {
-                        writer.value(value);
-                    }
-                    writer.endArray();
-                }
-                writer.endArray();
-            }
-            writer.endArray();
-            writer.endObject();
-            writer.close();
-            fw.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
 
-        // Since we changed the local contents we should reload Main.mModules.
-        Main.refreshModuleList(mCtx);
-		
+		sourceOutdated = false;
+
+		File jsonFile = getModuleFile(JSON_SUFFIX);
+		if(jsonFile.exists() && !jsonFile.delete())
+			Log.d("DEBUG", "Could not delete " + jsonFile.getName());
+		// The core of the version this file replaced may not be used by any translation anymore
+		ModuleCore.removeIfUnused(mCtx, id);
 		return true;
 	}
 
+	/**
+	 * Returns the file this Module is installed as
+	 * @param suffix {@link #BINARY_SUFFIX} or {@link #JSON_SUFFIX}
+	 * @return The file, which may not exist
+	 */
+	private File getModuleFile(String suffix) {
+		File currentDir = mCtx.getDir("files", Context.MODE_PRIVATE);
+		return new File(currentDir, "module" +
+				Main.getLocaleSuffix() + "_" +
+				id + suffix);
+	}
+
+	/**
+	 * Write this Module as JSON, the format Modules are exchanged in.
+	 * @param w The Writer to write to, is closed when done
+	 * @throws IOException
+	 */
+	public void writeModuleToJson(Writer w) throws IOException {
+		ensureContentLoaded();
+		JsonWriter writer = new JsonWriter(w);
+
+		writer.beginObject();
+		writer.name("moduleId");
+		writer.value(this.getId());
+		writer.name("title");
+		writer.value(this.getTitle());
+		writer.name("description");
+		writer.value(this.getDescription());
+		writer.name("shortDescription");
+		writer.value(this.getShortDescription());
+		writer.name("lowestNote");
+		writer.value(this.lowestNote);
+		writer.name("highestNote");
+		writer.value(this.highestNote);
+		writer.name("difficulty");
+		writer.value(this.getDifficulty());
+		writer.name("version");
+		writer.value(this.getToolVersion());
+		writer.name("moduleVersion");
+		writer.value(this.getModuleVersion());
+		if(!tuning.isEqualTemperament()) {
+			writer.name("tuning");
+			tuning.writeToJson(writer);
+		}
+		writer.name("answerList");
+		writer.beginArray();
+		for(String answer : answerList) {
+			writer.value(answer);
+		}
+		writer.endArray();
+		if(!generators.isEmpty()) {
+			writer.name("generators");
+			writer.beginArray();
+			for(ExerciseGenerator generator : generators) {
+				generator.writeToJson(writer);
+			}
+			writer.endArray();
+		}
+		writer.name("exerciseList");
+		writer.beginArray();
+		for(int exercise = 0; exercise < exerciseTable.getExerciseCount(); exercise++) {
+			writer.beginArray();
+			for(int unit = 0; unit < exerciseTable.getUnitCount(exercise); unit++) {
+				writer.beginArray();
+				for(int i = 0; i < exerciseTable.getNoteCount(exercise, unit); i++) {
+					writer.value(exerciseTable.getNote(exercise, unit, i));
+				}
+				writer.endArray();
+			}
+			writer.endArray();
+		}
+		writer.endArray();
+		writer.endObject();
+		writer.close();
+	}
+
 	/**
 	 * Remove this Module and its associated ModuleStats file from local storage
 	 * @return True if successful, false otherwise.
 	 */
 	@SuppressWarnings("UnusedReturnValue")
     public boolean purgeModule() {
-		File currentDir = mCtx.getDir("files", Context.MODE_PRIVATE);
-        File modFile = new File(currentDir, "module" +
-                Main.getLocaleSuffix() + "_" +
-                id + ".json");
-		
-		if(!stats.purgeStats())
+		StatsWriter.getInstance(mCtx).forget(this);
+		if(!purgeStats())
 			Log.d("DEBUG", "stats.purgeStats() returned false");
+		ModuleCatalog.remove(mCtx, id);
 
-        return modFile.exists() && modFile.delete();
+        boolean deleted = false;
+        for (String suffix : new String[] { BINARY_SUFFIX, JSON_SUFFIX }) {
+            File modFile = getModuleFile(suffix);
+            if(modFile.exists() && modFile.delete())
+                deleted = true;
+        }
+        // Other translations of this Module share its core
+        ModuleCore.removeIfUnused(mCtx, id);
+        return deleted;
     }
 
     /**
      * Reset the statistics for this Module
      */
-    public void resetStats() {
-        if(stats != null)
-            if(!stats.purgeStats())
-                Log.d("DEBUG", "Error deleting statistics");
-        stats = new ModuleStats(mCtx, id);
+    public synchronized void resetStats() {
+        StatsWriter.getInstance(mCtx).forget(this);
+        if(!purgeStats())
+            Log.d("DEBUG", "Error deleting statistics");
+        ModuleCatalog.put(mCtx, this);
+    }
+
+    /**
+     * Delete this Module's statistics without reading them from disk if they are not loaded, the next use starts
+     * from none
+     * @return True if there were statistics to delete
+     * @see ModuleStats#purgeStats()
+     */
+    private synchronized boolean purgeStats() {
+        ModuleStats loaded = stats;
+        stats = null;
+        summary = StatsSummary.EMPTY;
+        if(loaded != null)
+            return loaded.purgeStats();
+        return ModuleStats.purgeStored(mCtx, id);
     }
 
   	/**
@@ -541,7 +1323,7 @@ public class Module implements Comparable<Module>{
 	 * @see ModuleStats#exercisesCompleted
 	 */
 	public int getExercisesCompleted() {
-		return stats.exercisesCompleted();
+		return StatsSnapshot.addRemote(id, getSummary()).getExercisesCompleted();
 	}
 
     public String getShortDescription() {
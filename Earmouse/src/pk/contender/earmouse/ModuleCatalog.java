@@ -0,0 +1,320 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A single file describing all installed Modules, so the Module list can be built without opening every
+ * Module file.
+ * <p>
+ * There is one record per installed Module and locale, holding the Module's id, locale, the properties section of
+ * its binary file (title, short description, difficulty, version etc.), a summary of its statistics and the
+ * offset of the content section in its binary file.<br>
+ * The catalog is updated by {@link ModuleInstallBatch#commit()}, {@link Module#purgeModule()} and whenever a Module's
+ * statistics are saved. It is always written to a temporary file that is then renamed over the old one, so it is
+ * either the old or the new version, never a partial one.
+ * <p>
+ * {@link #load} returns null if the catalog is missing, of another version or does not match the Module files
+ * on disk, e.g. because Modules were installed from the assets. {@link pk.contender.earmouse.Main} then scans
+ * the Module files and rebuilds it with {@link #write}.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ModuleCatalog {
+
+    private static final String CATALOG_FILENAME = "module_catalog.bin";
+    /** Identifies a catalog file, "ECAT" */
+    private static final int CATALOG_MAGIC = 0x45434154;
+    /** Version of the catalog format, bump when the layout changes */
+    private static final int CATALOG_VERSION = 1;
+
+    /** A catalog record */
+    private static class Record {
+        int id;
+        /** The value of {@link Main#getLocaleSuffix()} the Module was installed under */
+        String locale;
+        int contentOffset;
+        /** The Module's {@link StatsSummary} */
+        int answers;
+        int correct;
+        long lastPracticed;
+        /** The Module's properties as written by {@link Module#writeProperties} */
+        byte[] properties;
+    }
+
+    /**
+     * Build the Modules of the current locale from the catalog.
+     * @param ctx The application context
+     * @return The sorted list of installed Modules, or null if the catalog is missing or stale
+     */
+    static synchronized List<Module> load(Context ctx) {
+        List<Record> records = readRecords(ctx);
+        if(records == null)
+            return null;
+
+        String locale = Main.getLocaleSuffix();
+        Set<Integer> catalogIds = new HashSet<>();
+        for (Record record : records) {
+            if(record.locale.equals(locale))
+                catalogIds.add(record.id);
+        }
+        if(!catalogIds.equals(listInstalledIds(ctx, locale))) {
+            Log.d("DEBUG", "ModuleCatalog: stale, rebuilding");
+            return null;
+        }
+
+        List<Module> modules = new ArrayList<>();
+        try {
+            for (Record record : records) {
+                if(!record.locale.equals(locale))
+                    continue;
+                DataInputStream properties = new DataInputStream(new ByteArrayInputStream(record.properties));
+                modules.add(new Module(ctx, properties, record.contentOffset,
+                        new StatsSummary(record.answers, record.correct, record.lastPracticed)));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        Collections.sort(modules);
+        return modules;
+    }
+
+    /**
+     * Replace the records of the current locale with the given Modules.
+     * @param ctx The application context
+     * @param modules All installed Modules of the current locale
+     */
+    static synchronized void write(Context ctx, List<Module> modules) {
+        List<Record> records = readRecords(ctx);
+        if(records == null)
+            records = new ArrayList<>();
+
+        String locale = Main.getLocaleSuffix();
+        for (Iterator<Record> it = records.iterator(); it.hasNext();) {
+            if(it.next().locale.equals(locale))
+                it.remove();
+        }
+        try {
+            for (Module mod : modules) {
+                // Modules that could not be read or converted stay out, so the next start tries them again
+                if(mod.isLoaded() && !mod.needsConversion())
+                    records.add(createRecord(mod, locale));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        writeRecords(ctx, records);
+    }
+
+    /**
+     * Add or update the record of the given Module.
+     * @param ctx The application context
+     * @param mod The installed Module
+     */
+    static synchronized void put(Context ctx, Module mod) {
+        putAll(ctx, Collections.singletonList(mod));
+    }
+
+    /**
+     * Add or update the records of all given Modules, writing the catalog once.
+     * @param ctx The application context
+     * @param mods The installed Modules
+     */
+    static synchronized void putAll(Context ctx, List<Module> mods) {
+        List<Record> records = readRecords(ctx);
+        // No catalog, it will be rebuilt on the next load
+        if(records == null)
+            return;
+
+        String locale = Main.getLocaleSuffix();
+        try {
+            for (Module mod : mods) {
+                removeRecord(records, locale, mod.getId());
+                records.add(createRecord(mod, locale));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            invalidate(ctx);
+            return;
+        }
+        writeRecords(ctx, records);
+    }
+
+    /**
+     * Remove the record of the Module with the given id.
+     * @param ctx The application context
+     * @param id The id of the purged Module
+     */
+    static synchronized void remove(Context ctx, int id) {
+        List<Record> records = readRecords(ctx);
+        if(records == null)
+            return;
+        if(removeRecord(records, Main.getLocaleSuffix(), id))
+            writeRecords(ctx, records);
+    }
+
+    /**
+     * Delete the catalog, forcing a rebuild on the next load.
+     * @param ctx The application context
+     */
+    static synchronized void invalidate(Context ctx) {
+        File catalogFile = getCatalogFile(ctx);
+        if(catalogFile.exists() && !catalogFile.delete())
+            Log.d("DEBUG", "ModuleCatalog: could not delete catalog");
+    }
+
+    private static boolean removeRecord(List<Record> records, String locale, int id) {
+        for (Iterator<Record> it = records.iterator(); it.hasNext();) {
+            Record record = it.next();
+            if(record.id == id && record.locale.equals(locale)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Record createRecord(Module mod, String locale) throws IOException {
+        Record record = new Record();
+        record.id = mod.getId();
+        record.locale = locale;
+        record.contentOffset = mod.getContentOffset();
+        StatsSummary summary = mod.getSummary();
+        record.answers = summary.getAnswers();
+        record.correct = summary.getCorrect();
+        record.lastPracticed = summary.getLastPracticed();
+        ByteArrayOutputStream properties = new ByteArrayOutputStream();
+        mod.writeProperties(new DataOutputStream(properties));
+        record.properties = properties.toByteArray();
+        return record;
+    }
+
+    /**
+     * Lists the ids of the installed Modules by file name, without opening any of them.
+     * @return The ids of all binary Module files of the given locale, or null if there are JSON Module files
+     * that still need converting
+     */
+    private static Set<Integer> listInstalledIds(Context ctx, String locale) {
+        String prefix = "module" + locale + "_";
+        Set<Integer> ids = new HashSet<>();
+        String[] filenames = ctx.getDir("files", Context.MODE_PRIVATE).list();
+        if(filenames == null)
+            return ids;
+        for (String filename : filenames) {
+            if(!filename.startsWith(prefix))
+                continue;
+            if(filename.endsWith(Module.JSON_SUFFIX))
+                return null;
+            if(!filename.endsWith(Module.BINARY_SUFFIX))
+                continue;
+            try {
+                ids.add(Integer.parseInt(filename.substring(prefix.length(), filename.length() - Module.BINARY_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                Log.d("DEBUG", "ModuleCatalog: ignoring " + filename);
+            }
+        }
+        return ids;
+    }
+
+    private static File getCatalogFile(Context ctx) {
+        return new File(ctx.getDir("files", Context.MODE_PRIVATE), CATALOG_FILENAME);
+    }
+
+    /**
+     * @return All records in the catalog, or null if there is no readable catalog of the current version
+     */
+    private static List<Record> readRecords(Context ctx) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(getCatalogFile(ctx))));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if(in.readInt() != CATALOG_MAGIC || in.readUnsignedByte() != CATALOG_VERSION)
+                return null;
+            int count = in.readInt();
+            List<Record> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Record record = new Record();
+                record.id = in.readInt();
+                record.locale = in.readUTF();
+                record.contentOffset = in.readInt();
+                record.answers = in.readInt();
+                record.correct = in.readInt();
+                record.lastPracticed = in.readLong();
+                record.properties = new byte[in.readInt()];
+                in.readFully(record.properties);
+                records.add(record);
+            }
+            return records;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Write the catalog to a temporary file and rename it over the current one
+     */
+    private static void writeRecords(Context ctx, List<Record> records) {
+        File catalogFile = getCatalogFile(ctx);
+        File tmpFile = new File(catalogFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(CATALOG_MAGIC);
+                out.writeByte(CATALOG_VERSION);
+                out.writeInt(records.size());
+                for (Record record : records) {
+                    out.writeInt(record.id);
+                    out.writeUTF(record.locale);
+                    out.writeInt(record.contentOffset);
+                    out.writeInt(record.answers);
+                    out.writeInt(record.correct);
+                    out.writeLong(record.lastPracticed);
+                    out.writeInt(record.properties.length);
+                    out.write(record.properties);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        if(!tmpFile.renameTo(catalogFile)) {
+            Log.d("DEBUG", "ModuleCatalog: could not rename " + tmpFile.getName());
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package pk.contender.earmouse;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks a {@link pk.contender.earmouse.Module}'s exercises and works out where each of them may be transposed to.
+ * <p>
+ * An exercise fits if it can be placed with all of its notes between the Module's lowestNote and highestNote, and
+ * on notes the {@link SampleBank} can render as reported by {@link SampleBank#isNoteAvailable}. For every exercise
+ * that fits the lowest note its first note may be transposed to and the amount of choices are stored, so
+ * {@link Module#getExercise} only has to draw a random number in that range. Should the samples leave gaps, the
+ * longest run of placements that avoids them is used.
+ * <p>
+ * A Module is compiled when it is installed, which refuses Modules with errors, and when its content is first
+ * used. Installed Modules with errors are still shown, their exercises that do not fit are never served. Exercises
+ * declared by an {@link ExerciseGenerator} are only placed once drawn, so a large generator costs nothing until
+ * it is practiced.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ModuleCompiler {
+
+    /** Marks a generated exercise that has not been placed yet in {@link Result#baseChoices} */
+    private static final int PENDING = -1;
+
+    /**
+     * The outcome of compiling a Module
+     */
+    public static class Result {
+        private final int moduleId;
+        /** The lowest and highest note the exercises may use */
+        private final int low, high;
+        /** available[note - low] is true if the SampleBank can render the note */
+        private final boolean[] available;
+        /** Per exercise the lowest note its first note may be transposed to */
+        private final int[] lowestBase;
+        /** Per exercise the amount of notes its first note may be transposed to, 0 if it does not fit, PENDING
+         * for a generated exercise that has not been placed yet */
+        private final int[] baseChoices;
+        private final List<String> errors;
+
+        private Result(int moduleId, int low, int high, boolean[] available, int[] lowestBase, int[] baseChoices,
+                       List<String> errors) {
+            this.moduleId = moduleId;
+            this.low = low;
+            this.high = high;
+            this.available = available;
+            this.lowestBase = lowestBase;
+            this.baseChoices = baseChoices;
+            this.errors = errors;
+        }
+
+        /**
+         * @return True if the Module has no errors, generated exercises that do not fit are not counted as they
+         * are only placed once drawn
+         */
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+
+        /**
+         * @return A description of every error found, empty if the Module is valid
+         */
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        /**
+         * @return True if the exercise has been placed, false for a generated exercise that has not been drawn yet
+         */
+        public boolean isCompiled(int exercise) {
+            return baseChoices[exercise] != PENDING;
+        }
+
+        /**
+         * Place a generated exercise, if that has not happened yet.
+         * @param exercise The index of the exercise in the Module
+         * @param table The table holding the generated exercise
+         * @param tableIndex The index of the exercise in that table
+         */
+        void compileExercise(int exercise, ExerciseTable table, int tableIndex) {
+            if(isCompiled(exercise))
+                return;
+            baseChoices[exercise] = 0;
+            String error = place(table, tableIndex, low, high, available, lowestBase, baseChoices, exercise);
+            if(error != null)
+                Log.d("DEBUG", "ModuleCompiler: module " + moduleId + ": generated " + error);
+        }
+
+        /**
+         * @return True if the exercise fits the Module's note range and can be served
+         */
+        public boolean isPlayable(int exercise) {
+            return baseChoices[exercise] > 0;
+        }
+
+        public int getLowestBase(int exercise) {
+            return lowestBase[exercise];
+        }
+
+        /**
+         * @return The amount of notes the first note of the exercise may be transposed to, counting up from
+         * {@link #getLowestBase}, 0 if the exercise does not fit
+         */
+        public int getBaseChoices(int exercise) {
+            return baseChoices[exercise];
+        }
+    }
+
+    /**
+     * Validate a Module's exercises and compute their transposition ranges.
+     * <p>
+     * Generated exercises follow the listed ones and are only counted here, each of them is placed with
+     * {@link Result#compileExercise} when it is first drawn.
+     * @param moduleId The id of the Module, used in the error descriptions
+     * @param table The Module's listed exercises
+     * @param generatedCount The amount of exercises the Module's generators declare
+     * @param answerCount The amount of answers of the Module, there must be one per exercise
+     * @param lowestNote The lowest note the Module may use
+     * @param highestNote The highest note the Module may use
+     * @param sampleBank The SampleBank the exercises will be rendered with
+     * @return The Result, never null
+     */
+    public static Result compile(int moduleId, ExerciseTable table, int generatedCount, int answerCount,
+                                 int lowestNote, int highestNote, SampleBank sampleBank) {
+        List<String> errors = new ArrayList<>();
+        int listedCount = table.getExerciseCount();
+        int exerciseCount = listedCount + generatedCount;
+        int[] lowestBase = new int[exerciseCount];
+        int[] baseChoices = new int[exerciseCount];
+        Arrays.fill(baseChoices, listedCount, exerciseCount, PENDING);
+
+        if(exerciseCount == 0)
+            errors.add("no exercises");
+        if(answerCount != exerciseCount)
+            errors.add(exerciseCount + " exercises but " + answerCount + " answers");
+
+        int low = Math.max(lowestNote, SampleBank.NOTE_MIN);
+        int high = Math.min(highestNote, SampleBank.NOTE_MAX);
+        if(low >= high)
+            errors.add("note range " + lowestNote + " - " + highestNote + " can not be rendered");
+
+        // available[note - low] is true if the SampleBank can render the note
+        boolean[] available = new boolean[Math.max(high - low + 1, 0)];
+        for (int note = low; note <= high; note++) {
+            available[note - low] = sampleBank.isNoteAvailable(note);
+        }
+
+        for (int exercise = 0; exercise < listedCount; exercise++) {
+            String error = place(table, exercise, low, high, available, lowestBase, baseChoices, exercise);
+            if(error != null)
+                errors.add(error);
+        }
+
+        for (String error : errors) {
+            Log.d("DEBUG", "ModuleCompiler: module " + moduleId + ": " + error);
+        }
+        return new Result(moduleId, low, high, available, lowestBase, baseChoices, errors);
+    }
+
+    /**
+     * Work out where an exercise may be transposed to and store that in lowestBase and baseChoices.
+     * @param table The table holding the exercise
+     * @param tableIndex The index of the exercise in table
+     * @param exercise The index of the exercise in the Module, where the result is stored
+     * @return A description of the error if the exercise does not fit, otherwise null
+     */
+    private static String place(ExerciseTable table, int tableIndex, int low, int high, boolean[] available,
+                                int[] lowestBase, int[] baseChoices, int exercise) {
+        if(isEmpty(table, tableIndex))
+            return "exercise " + exercise + " has an empty unit";
+        // Same bounds as the Module has always used: the highest note of the exercise stays below high
+        lowestBase[exercise] = low - table.getLowestOffset(tableIndex);
+        int choices = (high - table.getHighestOffset(tableIndex)) - lowestBase[exercise];
+        if(choices <= 0)
+            return "exercise " + exercise + " spans " + (table.getHighestOffset(tableIndex) - table.getLowestOffset(tableIndex))
+                    + " notes, does not fit in " + low + " - " + high;
+        int[] offsets = getOffsets(table, tableIndex);
+        int runStart = 0, runLength = 0, bestStart = 0, bestLength = 0;
+        for (int base = lowestBase[exercise]; base < lowestBase[exercise] + choices; base++) {
+            if(!fits(offsets, base, low, available)) {
+                runLength = 0;
+                continue;
+            }
+            if(runLength++ == 0)
+                runStart = base;
+            if(runLength > bestLength) {
+                bestStart = runStart;
+                bestLength = runLength;
+            }
+        }
+        if(bestLength == 0)
+            return "exercise " + exercise + " uses notes that can not be rendered anywhere in " + low + " - " + high;
+        lowestBase[exercise] = bestStart;
+        baseChoices[exercise] = bestLength;
+        return null;
+    }
+
+    /**
+     * @return The offset of every note of the exercise from its first note, as {@link ExerciseTable#transpose}
+     * places them
+     */
+    private static int[] getOffsets(ExerciseTable table, int exercise) {
+        int unitCount = table.getUnitCount(exercise);
+        int total = 0;
+        for (int unit = 0; unit < unitCount; unit++) {
+            total += table.getNoteCount(exercise, unit);
+        }
+        int[] offsets = new int[total];
+        int i = 0;
+        for (int unit = 0; unit < unitCount; unit++) {
+            int unitBase = table.getNote(exercise, unit, 0);
+            offsets[i++] = unitBase;
+            for (int note = 1; note < table.getNoteCount(exercise, unit); note++) {
+                offsets[i++] = unitBase + table.getNote(exercise, unit, note);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * @return True if every note of the exercise is available when its first note is placed at base
+     */
+    private static boolean fits(int[] offsets, int base, int low, boolean[] available) {
+        for (int offset : offsets) {
+            int index = base + offset - low;
+            if(index < 0 || index >= available.length || !available[index])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the exercise has no units or a unit without notes
+     */
+    private static boolean isEmpty(ExerciseTable table, int exercise) {
+        int unitCount = table.getUnitCount(exercise);
+        if(unitCount == 0)
+            return true;
+        for (int unit = 0; unit < unitCount; unit++) {
+            if(table.getNoteCount(exercise, unit) == 0)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,234 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The locale independent part of an installed {@link pk.contender.earmouse.Module}: its exercises, note range and
+ * version.
+ * <p>
+ * The translations of a Module only differ in their strings, so the exercises are stored once per Module id and
+ * version in core_[id]_[version].bin, while every installed translation has its own small Module file holding the
+ * strings and generators, see {@link Module}. Translations of different versions of a Module each get their own
+ * core, as their answer lists only match the exercises of their own version. The core format is:<br>
+ * - header: magic {@link #CORE_MAGIC} (int), format version {@link #CORE_VERSION} (byte)<br>
+ * - id, moduleVersion, lowestNote, highestNote, exercise table as in the Module format<br>
+ * All integers after the header are varints, signed values are zigzag encoded.
+ * <p>
+ * Parsed cores are kept for the lifetime of the process, so switching the locale or installing another
+ * translation of a Module reuses the exercise table that is already in memory. A cached core is dropped when its
+ * file is rewritten or deleted.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ModuleCore {
+
+    private static final String CORE_PREFIX = "core_";
+    private static final String CORE_SUFFIX = Module.BINARY_SUFFIX;
+    /** Identifies a core file, "ECOR" */
+    private static final int CORE_MAGIC = 0x45434f52;
+    /** Version of the core format, bump when the layout changes */
+    private static final int CORE_VERSION = 1;
+
+    /** The parsed cores by file name */
+    private static final Map<String, ModuleCore> cache = new HashMap<>();
+
+    private final int id;
+    private final int moduleVersion;
+    private final int lowestNote, highestNote;
+    /** The listed exercises, generated exercises are never stored */
+    private final ExerciseTable exercises;
+    /** The modification time of the file this core was read from or written to */
+    private long lastModified;
+
+    ModuleCore(int id, int moduleVersion, int lowestNote, int highestNote, ExerciseTable exercises) {
+        this.id = id;
+        this.moduleVersion = moduleVersion;
+        this.lowestNote = lowestNote;
+        this.highestNote = highestNote;
+        this.exercises = exercises;
+    }
+
+    int getModuleVersion() {
+        return moduleVersion;
+    }
+
+    int getLowestNote() {
+        return lowestNote;
+    }
+
+    int getHighestNote() {
+        return highestNote;
+    }
+
+    ExerciseTable getExercises() {
+        return exercises;
+    }
+
+    /**
+     * @return True if the given core describes the same exercises as this one
+     */
+    private boolean sameAs(ModuleCore other) {
+        return other.id == id && other.moduleVersion == moduleVersion && other.lowestNote == lowestNote
+                && other.highestNote == highestNote && other.exercises.equals(exercises);
+    }
+
+    /**
+     * Return the core of the given version of the Module with the given id, reading it from disk if it is not
+     * cached or the file changed since.
+     * @param ctx The application context
+     * @param id The Module id
+     * @param moduleVersion The Module version
+     * @return The core
+     * @throws IOException If the core file is missing or can not be read
+     */
+    static ModuleCore get(Context ctx, int id, int moduleVersion) throws IOException {
+        File coreFile = getCoreFile(ctx, id, moduleVersion);
+        synchronized (cache) {
+            ModuleCore core = cache.get(coreFile.getName());
+            if(core != null && core.lastModified == coreFile.lastModified())
+                return core;
+        }
+        ModuleCore core = read(coreFile);
+        if(core.id != id || core.moduleVersion != moduleVersion)
+            throw new IOException(coreFile.getName() + " belongs to module " + core.id + " version "
+                    + core.moduleVersion);
+        synchronized (cache) {
+            cache.put(coreFile.getName(), core);
+        }
+        return core;
+    }
+
+    /**
+     * Store the given core, unless an identical one is already installed, which is the case when another
+     * translation of the same Module version is installed.
+     * @param ctx The application context
+     * @param core The core to store
+     * @return True on success, false otherwise
+     */
+    static boolean put(Context ctx, ModuleCore core) {
+        File coreFile = getCoreFile(ctx, core.id, core.moduleVersion);
+        if(coreFile.exists()) {
+            try {
+                if(get(ctx, core.id, core.moduleVersion).sameAs(core))
+                    return true;
+            } catch (IOException e) {
+                Log.d("DEBUG", "Replacing unreadable " + coreFile.getName());
+            }
+        }
+
+        File tmpFile = new File(coreFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(CORE_MAGIC);
+                out.writeByte(CORE_VERSION);
+                Module.writeVarInt(out, core.id);
+                Module.writeSignedVarInt(out, core.moduleVersion);
+                Module.writeSignedVarInt(out, core.lowestNote);
+                Module.writeSignedVarInt(out, core.highestNote);
+                Module.writeExerciseTable(out, core.exercises);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return false;
+        }
+        if(!tmpFile.renameTo(coreFile)) {
+            Log.d("DEBUG", "Could not rename " + tmpFile.getName());
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return false;
+        }
+
+        core.lastModified = coreFile.lastModified();
+        synchronized (cache) {
+            cache.put(coreFile.getName(), core);
+        }
+        return true;
+    }
+
+    /**
+     * Delete the cores of the Module with the given id that no installed translation of that Module uses anymore.
+     * @param ctx The application context
+     * @param id The Module id
+     */
+    static void removeIfUnused(Context ctx, int id) {
+        File dir = ctx.getDir("files", Context.MODE_PRIVATE);
+        String[] filenames = dir.list();
+        if(filenames == null)
+            return;
+        Set<Integer> usedVersions = new HashSet<>();
+        for (String filename : filenames) {
+            if(filename.startsWith("module") && filename.endsWith("_" + id + Module.BINARY_SUFFIX)) {
+                try {
+                    usedVersions.add(Module.readCoreVersion(new File(dir, filename)));
+                } catch (IOException e) {
+                    // Can not tell which core it uses, keep them all
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+
+        String versionPrefix = CORE_PREFIX + id + "_";
+        for (String filename : filenames) {
+            if(!filename.startsWith(versionPrefix) || !filename.endsWith(CORE_SUFFIX))
+                continue;
+            try {
+                if(usedVersions.contains(Integer.parseInt(
+                        filename.substring(versionPrefix.length(), filename.length() - CORE_SUFFIX.length()))))
+                    continue;
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            synchronized (cache) {
+                cache.remove(filename);
+            }
+            if(!new File(dir, filename).delete())
+                Log.d("DEBUG", "Could not delete " + filename);
+        }
+    }
+
+    private static ModuleCore read(File coreFile) throws IOException {
+        long lastModified = coreFile.lastModified();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(coreFile)));
+        try {
+            if(in.readInt() != CORE_MAGIC)
+                throw new IOException(coreFile.getName() + " is not a Module core");
+            int version = in.readUnsignedByte();
+            if(version != CORE_VERSION)
+                throw new IOException(coreFile.getName() + " has unsupported version " + version);
+            int id = Module.readVarInt(in);
+            int moduleVersion = Module.readSignedVarInt(in);
+            int lowestNote = Module.readSignedVarInt(in);
+            int highestNote = Module.readSignedVarInt(in);
+            ModuleCore core = new ModuleCore(id, moduleVersion, lowestNote, highestNote, Module.readExerciseTable(in));
+            core.lastModified = lastModified;
+            return core;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File getCoreFile(Context ctx, int id, int moduleVersion) {
+        return new File(ctx.getDir("files", Context.MODE_PRIVATE),
+                CORE_PREFIX + id + "_" + moduleVersion + CORE_SUFFIX);
+    }
+}
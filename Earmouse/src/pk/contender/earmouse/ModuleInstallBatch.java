@@ -0,0 +1,75 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Installs any number of Modules as a single transaction.
+ * <p>
+ * {@link #install} writes each Module's files, {@link #commit} then updates the {@link ModuleCatalog} once for
+ * all of them and {@link #publish} adds them to {@link Main#getModuleList()} without reading back the Modules
+ * that were already installed. The first two do file I/O and belong on a background thread, the last one must
+ * be called on the UI thread.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ModuleInstallBatch {
+
+    private final Context mCtx;
+    /** The Modules whose files were written */
+    private final List<Module> installed = new ArrayList<>();
+    private boolean committed = false;
+
+    public ModuleInstallBatch(Context context) {
+        mCtx = context;
+    }
+
+    /**
+     * Write the given Module to local storage, Modules that do not pass the {@link ModuleCompiler} are refused.
+     * @param mod The Module to install
+     * @return True on success, false otherwise
+     */
+    public boolean install(Module mod) {
+        if(committed)
+            throw new IllegalStateException("install() after commit()");
+        if(!mod.getCompiled().isValid()) {
+            Log.d("DEBUG", "Refusing to install invalid module " + mod.getId());
+            return false;
+        }
+        if(!mod.writeModuleFile())
+            return false;
+        installed.add(mod);
+        return true;
+    }
+
+    /**
+     * @return The amount of Modules installed so far
+     */
+    public int getInstalledCount() {
+        return installed.size();
+    }
+
+    /**
+     * Record all installed Modules in the {@link ModuleCatalog}, once.
+     */
+    public void commit() {
+        if(committed)
+            return;
+        committed = true;
+        if(!installed.isEmpty())
+            ModuleCatalog.putAll(mCtx, installed);
+    }
+
+    /**
+     * Commit if that has not happened yet and add the installed Modules to {@link Main#getModuleList()}, must
+     * be called on the UI thread.
+     */
+    public void publish() {
+        commit();
+        if(!installed.isEmpty())
+            Main.addInstalledModules(mCtx, installed);
+    }
+}
@@ -13,10 +13,13 @@ import java.util.List;
 
 /**
  * Adapter used for displaying a List of Modules in a ListView
+ * <p>
+ * In the Main activity it is registered with the {@link pk.contender.earmouse.ModuleRegistry} and applies every
+ * change to its own copy of the Module list, so only the affected rows change.
  *
  * @author Paul Klinkenberg <pklinken.development@gmail.com>
  */
-public class ModuleListAdapter extends ArrayAdapter<Module> {
+public class ModuleListAdapter extends ArrayAdapter<Module> implements ModuleRegistry.Listener {
 
 	private final Context context;
 	private final List<Module> moduleList;
@@ -45,6 +48,29 @@ public class ModuleListAdapter extends ArrayAdapter<Module> {
         return moduleList != null ? moduleList.size() : 0;
     }
 
+    @Override
+    public void onModuleAdded(Module mod, int position) {
+        insert(mod, position);
+    }
+
+    @Override
+    public void onModuleRemoved(Module mod, int position) {
+        remove(mod);
+    }
+
+    @Override
+    public void onModuleUpdated(Module old, int oldPosition, Module mod, int position) {
+        // One redraw for both changes, notifyDataSetChanged() turns notifying on again
+        setNotifyOnChange(false);
+        remove(old);
+        insert(mod, position);
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public void onModuleListLoaded() {
+    }
+
     @Override
 	public View getView(int position, View convertView, ViewGroup parent) {
 
@@ -6,10 +6,14 @@ import android.os.Bundle;
 import android.view.View;
 import android.widget.ListView;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Fragment for the setup and display of a ListView of Module objects.
+ * <p>
+ * While {@link pk.contender.earmouse.Main} is still loading the installed Modules the empty list says so, the
+ * list itself is kept up to date by its {@link pk.contender.earmouse.ModuleListAdapter}.
  * 
  * @author Paul Klinkenberg <pklinken.development@gmail.com>
  */
@@ -17,6 +21,29 @@ public class ModuleListFragment extends ListFragment {
 
 	private OnModuleSelectedListener moduleSelectedListener;
 
+	/**
+	 * Switches the empty text once all Modules are loaded
+	 */
+	private final ModuleRegistry.Listener moduleListListener = new ModuleRegistry.Listener() {
+		@Override
+		public void onModuleAdded(Module mod, int position) {
+		}
+
+		@Override
+		public void onModuleRemoved(Module mod, int position) {
+		}
+
+		@Override
+		public void onModuleUpdated(Module old, int oldPosition, Module mod, int position) {
+		}
+
+		@Override
+		public void onModuleListLoaded() {
+			if(getView() != null)
+				setEmptyText(getString(R.string.list_no_modules_installed));
+		}
+	};
+
 	/**
 	 * Listener interface for ListView clicks, any activity that attaches this Fragment must implement this.
 	 */
@@ -44,14 +71,26 @@ public class ModuleListFragment extends ListFragment {
 					+ " must implement ModuleListFragment.OnModuleSelectedListener");
 		}
 
-        List<Module> moduleList = Main.getModuleList();
+        // The adapter works on its own copy and follows the registry from here on
+        ModuleRegistry registry = Main.getModuleRegistry();
+        List<Module> moduleList = new ArrayList<>(registry.getModules());
         ModuleListAdapter arrayAdap = new ModuleListAdapter(getActivity(), moduleList, ModuleListAdapter.TARGET_MAINACTIVITY);
         setListAdapter(arrayAdap);
+        registry.addListener(arrayAdap);
+        registry.addListener(moduleListListener);
+	}
+
+	@Override
+	public void onDetach() {
+		super.onDetach();
+		ModuleRegistry registry = Main.getModuleRegistry();
+		registry.removeListener((ModuleListAdapter) getListAdapter());
+		registry.removeListener(moduleListListener);
 	}
 
 	@Override
 	public void onActivityCreated(Bundle savedInstanceState) {
-        setEmptyText(this.getString(R.string.list_no_modules_installed));
+        setEmptyText(this.getString(Main.isModuleListLoaded() ? R.string.list_no_modules_installed : R.string.list_loading_modules));
 		super.onActivityCreated(savedInstanceState);
 	}
 }
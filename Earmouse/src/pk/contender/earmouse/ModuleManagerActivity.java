@@ -63,6 +63,30 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
     /** List of currently shown Modules in the ListView,  */
     public static final List<Module> shownModuleList = new ArrayList<>();
 
+    /**
+     * Takes Modules off the list as soon as they are installed, whether that happened here or in
+     * {@link pk.contender.earmouse.ManagerDetailActivity}
+     */
+    private final ModuleRegistry.Listener installedListener = new ModuleRegistry.Listener() {
+        @Override
+        public void onModuleAdded(Module mod, int position) {
+            removeShownModule(mod);
+        }
+
+        @Override
+        public void onModuleRemoved(Module mod, int position) {
+        }
+
+        @Override
+        public void onModuleUpdated(Module old, int oldPosition, Module mod, int position) {
+            removeShownModule(mod);
+        }
+
+        @Override
+        public void onModuleListLoaded() {
+        }
+    };
+
     /**
      * Loads saved state and preferences and sets up the context actionbar (CAB).
      * Fetches a list of available modules from the server.
@@ -76,6 +100,8 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
         SharedPreferences settings = getSharedPreferences(Main.PREFS_NAME, Activity.MODE_PRIVATE);
         selectionPosition = settings.getInt(PREFERENCES_MODULEMANAGERACTIVITY_SELECTIONPOSITION, -1);
 
+        Main.getModuleRegistry().addListener(installedListener);
+
         ListView lv = null;
         ManagerListFragment managerListFragment = (ManagerListFragment) getFragmentManager().findFragmentById(R.id.fragmentModuleList);
         if(managerListFragment != null){
@@ -168,6 +194,26 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        Main.getModuleRegistry().removeListener(installedListener);
+    }
+
+    /**
+     * Remove the shown entry of the given installed Module, unless the shown one is a newer version
+     * @param installed The installed Module
+     */
+    private void removeShownModule(Module installed) {
+        for (Module mod : shownModuleList) {
+            if(mod.getId() == installed.getId()) {
+                if(mod.getModuleVersion() <= installed.getModuleVersion())
+                    mAdapter.remove(mod);
+                break;
+            }
+        }
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
@@ -231,15 +277,24 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
     }
 
     /**
-     * Downloads and installs all the modules in {@link #selection}
+     * Downloads and installs all the modules in {@link #selection} as one {@link pk.contender.earmouse.ModuleInstallBatch}
      */
     private class fetchAndInstallSelection extends AsyncTask<Void, Void, Integer> {
 
         private Context mCtx;
-        private List<Module> removals;
+        private ModuleInstallBatch batch;
 
         @Override
         protected Integer doInBackground(Void... params) {
+            try {
+                return installSelection();
+            } finally {
+                // Record whatever was installed, also when a download failed halfway
+                batch.commit();
+            }
+        }
+
+        private Integer installSelection() {
 
             Integer installed = 0;
 
@@ -275,17 +330,10 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
                     reader = new InputStreamReader(urlConn.getInputStream());
                     Module result = new Module(mCtx, reader);
 
-                    // TODO: If an error occurred during the read, this module should not be written to disk ...
-                    if(result.writeModuleToJson()) {
+                    // install() refuses Modules that do not compile, which includes ones that could not be read
+                    // The list entry goes once the batch is published, see installedListener
+                    if(batch.install(result))
                         installed++;
-                        for (Module listMod : shownModuleList) {
-                            if (listMod.getId() == mod.getId()) {
-                                // We want to remove the items from the adapter straight away but have to do this on the UI thread.
-                                removals.add(listMod);
-                                break;
-                            }
-                        }
-                    }
                     reader.close();
                 } catch (IllegalStateException | IOException e) {
                     e.printStackTrace();
@@ -305,17 +353,14 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
         protected void onPreExecute() {
 
             mCtx = getApplicationContext();
-            removals = new ArrayList<>(selection.size());
+            batch = new ModuleInstallBatch(mCtx);
         }
 
         @Override
         protected void onPostExecute(Integer installed) {
 
-            // update ListView
-            for(Module mod : removals)
-                mAdapter.remove(mod);
-
-            // FIXME: Returning to main before installation is completed will not update ListView in Main with new modules.
+            // Add the new modules to Main's list in one go, which also takes them off this list
+            batch.publish();
 
             // Inform user of amount of successfully installed modules
             Resources res = mCtx.getResources();
@@ -333,6 +378,7 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
 
         @Override
         protected void onCancelled(Integer integer) {
+            batch.publish();
             Toast toast = Toast.makeText(mCtx, mCtx.getString(R.string.toast_error_installing_module), Toast.LENGTH_LONG);
             toast.show();
         }
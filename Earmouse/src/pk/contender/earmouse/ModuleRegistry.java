@@ -0,0 +1,228 @@
+package pk.contender.earmouse;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The installed Modules, sorted as {@link Module#compareTo} sorts them and indexed by id.
+ * <p>
+ * Readers get an immutable snapshot that is replaced, never modified, on every change, so they can be used from
+ * any thread without locking. Changes can be requested from any thread but are applied on the UI thread, one at a
+ * time, and every registered {@link Listener} is told about each of them right after it was applied. A listener
+ * that copies {@link #getModules()} on the UI thread and then applies the events it receives therefore always
+ * mirrors the registry.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ModuleRegistry {
+
+    /**
+     * Listener interface for changes to the registry, all calls are made on the UI thread.
+     */
+    public interface Listener {
+        /**
+         * Called when a Module was added
+         * @param mod The Module
+         * @param position Its position in {@link #getModules()}
+         */
+        public void onModuleAdded(Module mod, int position);
+
+        /**
+         * Called when a Module was removed
+         * @param mod The Module
+         * @param position The position it had in {@link #getModules()}
+         */
+        public void onModuleRemoved(Module mod, int position);
+
+        /**
+         * Called when a Module was replaced by a newer instance with the same id, e.g. because it was reinstalled
+         * @param old The replaced Module
+         * @param oldPosition The position old had in {@link #getModules()}
+         * @param mod The new Module
+         * @param position The position of mod in {@link #getModules()}, with old already removed
+         */
+        public void onModuleUpdated(Module old, int oldPosition, Module mod, int position);
+
+        /**
+         * Called when all installed Modules are in the registry
+         */
+        public void onModuleListLoaded();
+    }
+
+    /** An immutable state of the registry */
+    private static class Snapshot {
+        final List<Module> modules;
+        /** Module id to its position in modules */
+        final Map<Integer, Integer> positions;
+
+        Snapshot(List<Module> modules) {
+            this.modules = Collections.unmodifiableList(modules);
+            positions = new HashMap<>(modules.size() * 2);
+            for (int i = 0; i < modules.size(); i++) {
+                positions.put(modules.get(i).getId(), i);
+            }
+        }
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile Snapshot snapshot = new Snapshot(new ArrayList<Module>());
+    /** True once all installed Modules are in the registry */
+    private volatile boolean loaded = false;
+    /** Only accessed on the UI thread */
+    private final List<Listener> listeners = new ArrayList<>();
+
+    /**
+     * @return All Modules, sorted, as an unmodifiable list that does not change
+     */
+    public List<Module> getModules() {
+        return snapshot.modules;
+    }
+
+    /**
+     * @return The Module with the given id or null if it is not installed
+     */
+    public Module get(int id) {
+        Snapshot current = snapshot;
+        Integer position = current.positions.get(id);
+        return position != null ? current.modules.get(position) : null;
+    }
+
+    /**
+     * @return The position of the Module with the given id in {@link #getModules()}, or -1
+     */
+    public int indexOf(int id) {
+        Integer position = snapshot.positions.get(id);
+        return position != null ? position : -1;
+    }
+
+    public int size() {
+        return snapshot.modules.size();
+    }
+
+    /**
+     * @return True once all installed Modules are in the registry
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Register a listener, must be called on the UI thread.
+     */
+    public void addListener(Listener listener) {
+        if(!listeners.contains(listener))
+            listeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener registered with {@link #addListener}, must be called on the UI thread.
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add the given Modules, replacing the ones with the same id.
+     */
+    public void putAll(final List<Module> mods) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Module mod : mods) {
+                    List<Module> modules = new ArrayList<>(snapshot.modules);
+                    Module old = null;
+                    int oldPosition = indexOf(mod.getId());
+                    if(oldPosition >= 0)
+                        old = modules.remove(oldPosition);
+                    if(old != null && old != mod)
+                        mod.takeStats(old);
+                    int position = Collections.binarySearch(modules, mod);
+                    if(position < 0)
+                        position = -position - 1;
+                    modules.add(position, mod);
+                    snapshot = new Snapshot(modules);
+                    for (Listener listener : new ArrayList<>(listeners)) {
+                        if(old != null)
+                            listener.onModuleUpdated(old, oldPosition, mod, position);
+                        else
+                            listener.onModuleAdded(mod, position);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Add the given Module, replacing the one with the same id.
+     */
+    public void put(Module mod) {
+        putAll(Collections.singletonList(mod));
+    }
+
+    /**
+     * Remove the Module with the given id, if there is one.
+     */
+    public void remove(final int id) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                int position = indexOf(id);
+                if(position < 0)
+                    return;
+                List<Module> modules = new ArrayList<>(snapshot.modules);
+                Module old = modules.remove(position);
+                snapshot = new Snapshot(modules);
+                for (Listener listener : new ArrayList<>(listeners)) {
+                    listener.onModuleRemoved(old, position);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove all Modules and mark the registry as not loaded, before it is filled again.
+     */
+    public void clear() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                loaded = false;
+                List<Module> modules = new ArrayList<>(snapshot.modules);
+                snapshot = new Snapshot(new ArrayList<Module>());
+                for (int position = modules.size() - 1; position >= 0; position--) {
+                    for (Listener listener : new ArrayList<>(listeners)) {
+                        listener.onModuleRemoved(modules.get(position), position);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Mark the registry as holding all installed Modules.
+     */
+    public void setLoaded() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                loaded = true;
+                for (Listener listener : new ArrayList<>(listeners)) {
+                    listener.onModuleListLoaded();
+                }
+            }
+        });
+    }
+
+    private void runOnUiThread(Runnable change) {
+        if(Looper.myLooper() == Looper.getMainLooper())
+            change.run();
+        else
+            mainHandler.post(change);
+    }
+}
@@ -1,30 +1,92 @@
 package pk.contender.earmouse;
 
 import android.content.Context;
-import android.util.JsonReader;
-import android.util.JsonWriter;
+import android.content.SharedPreferences;
+import android.util.Log;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
 
 /**
  * Keeps track of all the answers a user has given to exercises of a specific Module.
  * <p>Provides methods for entering answers and obtaining useful information about this data and
  * for reading and writing recorded statistical data to local storage.
+ * <p>
+ * The answers are kept in a {@link StatsStore}, saving only stores the answers that were added since the last
+ * save. That is a {@link SqliteStatsStore} if {@link Main#PREFS_SQLITE_STATS} is set and a {@link LogStatsStore}
+ * otherwise, answers found in the other store are merged in on load.
+ * <p>
+ * The totals and per exercise counts are kept up to date as answers are added, so none of the queries depend on
+ * the length of the history. The same goes for recent performance: the results of the last {@link #MODULE_WINDOW}
+ * answers to the Module and the last {@link #EXERCISE_WINDOW} answers to each exercise are kept as bits in a
+ * long, shifted along as answers come in, and the answers of the last {@link #DAY_BUCKETS} days are counted per
+ * day in a ring of buckets.
+ * <p>
+ * Every save also writes a {@link StatsSummary}, so the totals are available without loading the history.
+ * <p>
+ * The answers given on other devices, as far as they were imported through a {@link StatsSnapshot}, are counted
+ * separately and added to the totals and per exercise counts. They are never stored here, so they are not part of
+ * the summary either.
+ * <p>
+ * Once more than {@link #COMPACT_THRESHOLD} answers are kept one by one, saving also compacts the history: answers
+ * older than {@link Main#PREFS_STATS_KEEP_DAYS} are folded into per exercise daily rollups and the store is
+ * rewritten. The answers the recent windows cover are never folded, so every query answers the same after
+ * compaction as before.
  *
  * @author Paul Klinkenberg <pklinken.development@gmail.com>
  */
 public class ModuleStats {
 
+    /** The amount of answers {@link #recentSuccessRate()} covers, at most 64 */
+    public static final int MODULE_WINDOW = 50;
+    /** The amount of answers {@link #recentExerciseSuccessRate} covers, at most 64 */
+    public static final int EXERCISE_WINDOW = 10;
+    /** The amount of days the daily counts are kept for */
+    public static final int DAY_BUCKETS = 30;
+    /** The amount of individually kept answers that triggers compaction */
+    public static final int COMPACT_THRESHOLD = 10000;
+    /** How long answers are kept individually if {@link Main#PREFS_STATS_KEEP_DAYS} is not set, in days */
+    private static final String DEFAULT_KEEP_DAYS = "90";
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
     /** All the recorded answers */
-    private List<ModuleAnswer> moduleAnswerList;
+    private AnswerHistory answers;
+    /** Per exercise index the amount of answers and correct answers, grown as needed */
+    private int[] exerciseAnswers = new int[0], exerciseCorrect = new int[0];
+    /** The amount of answers and correct answers in {@link #answers} */
+    private int totalAnswers = 0, totalCorrect = 0;
+    /** The time of the last answer in milliseconds, 0 if there is none */
+    private long lastPracticed = 0;
+    /** The answers given on other devices, see {@link StatsSnapshot#getRemoteCounts} */
+    private int[] remoteAnswers = new int[0], remoteCorrect = new int[0];
+    private int remoteTotalAnswers = 0, remoteTotalCorrect = 0;
+    /** The results of the last answers, the newest in the lowest bit, and how many of the bits are answers */
+    private long recentResults = 0;
+    private int recentCount = 0;
+    /** Per exercise index the results of its last answers and how many of the bits are answers, grown as needed */
+    private long[] exerciseRecentResults = new long[0];
+    private int[] exerciseRecentCount = new int[0];
+    /** Per bucket the local day it counts, in days since the epoch, and the amount of answers and correct answers */
+    private final long[] bucketDay = new long[DAY_BUCKETS];
+    private final int[] bucketAnswers = new int[DAY_BUCKETS], bucketCorrect = new int[DAY_BUCKETS];
+    /** The amount of answers in {@link #answers} that are in the store */
+    private int savedCount = 0;
+    /** Held while the store is written or purged, the answers and counts are guarded by this instance */
+    private final Object ioLock = new Object();
+    private final Context mCtx;
+    /** The id of the Module this instance is associated with */
+    private final int moduleId;
     /** Reference to local storage */
-	private final File statsFile;
+    private final StatsStore store;
+    /** How long answers are kept individually before they are compacted, in milliseconds */
+    private final long keepMillis;
+    /** The size of {@link #answers} at which to try compacting next */
+    private int nextCompaction = COMPACT_THRESHOLD;
 
 	/**
 	 * Construct an instance to be associated with the given Module {@link Module#id}, attempts to load from local storage if the file
@@ -34,145 +96,531 @@ public class ModuleStats {
 	 */
 	public ModuleStats(Context context, int id) {
 
-        moduleAnswerList = new ArrayList<>();
-		File currentDir = context.getDir("files", Context.MODE_PRIVATE);
-		statsFile = new File(currentDir, "stats_" + id + ".json");
-		
-		if (statsFile.exists()) {
-			FileReader fr = null;
-			try {
-				fr = new FileReader(statsFile);
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
+        mCtx = context;
+        moduleId = id;
+        store = getStore(context);
+        SharedPreferences settings = context.getSharedPreferences(Main.PREFS_NAME, Context.MODE_PRIVATE);
+        long keepDays;
+        try {
+            keepDays = Long.parseLong(settings.getString(Main.PREFS_STATS_KEEP_DAYS, DEFAULT_KEEP_DAYS));
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            keepDays = Long.parseLong(DEFAULT_KEEP_DAYS);
+        }
+        keepMillis = keepDays * DAY_MS;
+
+        mergeOtherStore(context, store, moduleId);
+        answers = load(store);
+        setAnswers(answers != null ? answers : new AnswerHistory());
+        setRemoteCounts(StatsSnapshot.getRemoteCounts(context, id));
+	}
+
+	/**
+	 * @return The store statistics are kept in, depending on {@link Main#PREFS_SQLITE_STATS}
+	 */
+	static StatsStore getStore(Context context) {
+		SharedPreferences settings = context.getSharedPreferences(Main.PREFS_NAME, Context.MODE_PRIVATE);
+		if(settings.getBoolean(Main.PREFS_SQLITE_STATS, false))
+			return SqliteStatsStore.getInstance(context);
+		return new LogStatsStore(context);
+	}
+
+	/**
+	 * @return The store statistics were kept in before {@link Main#PREFS_SQLITE_STATS} was changed, or null if there
+	 * can not be any statistics there
+	 */
+	static StatsStore getOtherStore(Context context) {
+		SharedPreferences settings = context.getSharedPreferences(Main.PREFS_NAME, Context.MODE_PRIVATE);
+		if(settings.getBoolean(Main.PREFS_SQLITE_STATS, false))
+			return new LogStatsStore(context);
+		return SqliteStatsStore.exists(context) ? SqliteStatsStore.getInstance(context) : null;
+	}
+
+	/**
+	 * Replace the answers of this instance and count them, the answers are considered saved
+	 */
+	private synchronized void setAnswers(AnswerHistory history) {
+		answers = history;
+		savedCount = history.size();
+		resetCounts();
+		// Rollups precede the individual answers in time
+		for (int i = 0; i < history.getRollupCount(); i++) {
+			countRollup(history.getRollupDay(i), history.getRollupExerciseIndex(i), history.getRollupAnswers(i),
+					history.getRollupCorrect(i));
+		}
+		AnswerHistory.Cursor cursor = history.cursor();
+		while (cursor.moveToNext()) {
+			count(cursor.getExerciseIndex(), cursor.getResult(), cursor.getTimestamp());
+		}
+	}
+
+	/**
+	 * Replace the counts of the answers given on other devices
+	 * @param remote The counts, or null if no other device answered this Module
+	 */
+	synchronized void setRemoteCounts(StatsSnapshot.RemoteCounts remote) {
+		if(remote == null) {
+			remoteAnswers = remoteCorrect = new int[0];
+			remoteTotalAnswers = remoteTotalCorrect = 0;
+		} else {
+			remoteAnswers = remote.exerciseAnswers;
+			remoteCorrect = remote.exerciseCorrect;
+			remoteTotalAnswers = remote.totalAnswers;
+			remoteTotalCorrect = remote.totalCorrect;
+		}
+	}
+
+	/**
+	 * @return The answers of this Module in the given store, or null if it has none or they can not be read
+	 */
+	private AnswerHistory load(StatsStore from) {
+		try {
+			return from.load(moduleId);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Save this instance to local storage by appending the answers added since the last save to the store and
+	 * writing the {@link StatsSummary}, and compact the history once it grows past {@link #nextCompaction}.
+	 * <p>
+	 * Called on the {@link StatsWriter} thread, answers can be added while the store is written.
+	 */
+	public void saveModuleStats() {
+		synchronized (ioLock) {
+			boolean compact;
+			synchronized (this) {
+				compact = answers.size() >= nextCompaction;
 			}
-			if(fr != null) {
-				try {
-					initModuleStatsFromJson(fr);
-					fr.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+			if(!appendUnsaved())
+				return;
+			if(compact)
+				compactStats();
+		}
+	}
+
+	/**
+	 * Append the answers added since the last save to the store and write the summary, called with {@link #ioLock}
+	 * held.
+	 * @return False if the answers could not be stored
+	 */
+	private boolean appendUnsaved() {
+		AnswerHistory history, added;
+		int end;
+		synchronized (this) {
+			history = answers;
+			end = history.size();
+			if(savedCount == end)
+				return true;
+			added = history.copy(savedCount, end);
+		}
+
+		try {
+			store.append(moduleId, added);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		StatsSummary summary;
+		synchronized (this) {
+			if(answers == history)
+				savedCount = end;
+			summary = getSummary();
+		}
+		summary.write(mCtx, moduleId);
+		return true;
+	}
+
+	/**
+	 * Merge imported answers into the history of this instance, see {@link #mergeStored}. Answers that are added
+	 * while the merge runs are kept.
+	 * @param imported The answers to merge in, the cursor is read to the end
+	 * @throws IOException If the merged history could not be stored, the stored history is left as it was
+	 */
+	public void importAnswers(StatsStore.Cursor imported) throws IOException {
+		synchronized (ioLock) {
+			// The merge reads the store, so it needs every answer that is in memory
+			if(!appendUnsaved())
+				throw new IOException("Could not save the statistics of module " + moduleId);
+			int end;
+			synchronized (this) {
+				end = savedCount;
+			}
+			mergeStored(mCtx, store, moduleId, imported);
+			AnswerHistory merged = store.load(moduleId);
+			if(merged == null)
+				merged = new AnswerHistory();
+			synchronized (this) {
+				AnswerHistory history = answers;
+				setAnswers(merged);
+				for (int i = end; i < history.size(); i++) {
+					addAnswer(history.getExerciseIndex(i), history.getResult(i), history.getTimestamp(i));
 				}
+				nextCompaction = merged.size() + COMPACT_THRESHOLD;
 			}
 		}
 	}
 
 	/**
-	 * Reads an existing ModuleStats instance from a JSON file
-	 * @param fr The FileReader to read from
-	 * @throws IOException
+	 * Merge imported answers into the stored history of a Module and write its {@link StatsSummary}.
+	 * <p>
+	 * The stored and the imported answers are streamed side by side and written in order of time to a new
+	 * history, so memory use does not depend on the length of either. An imported answer with the same second,
+	 * exercise and result as a stored one is taken to be that answer, as are rollups of the same day and
+	 * exercise, of which the larger is kept. Rollups have no source, so this drops the smaller of two rollups
+	 * that came from different devices, and imported answers that a stored rollup already covers are counted
+	 * again, see {@link StatsTransfer}. Answers found in the other store, see {@link #getOtherStore}, are
+	 * merged in first. Must not be used for a Module whose statistics are loaded, use {@link #importAnswers} for
+	 * those.
+	 * @param context The application context
+	 * @param store The store to merge into
+	 * @param moduleId The id of the Module
+	 * @param imported The answers to merge in, rollups first and answers in order of time, read to the end
+	 * @return The summary of the merged history
+	 * @throws IOException If the merged history could not be stored, the stored history is left as it was
 	 */
-	private void initModuleStatsFromJson(FileReader fr) throws IOException {
-		JsonReader reader = new JsonReader(fr);
-
-		reader.beginArray();
-		while (reader.hasNext()) {
-			reader.beginObject();
-			int exerciseIndex = -1;
-			boolean result = true;
-			long timestamp = -1;
-
-			while (reader.hasNext()){
-				String name = reader.nextName();
-                switch (name) {
-                    case "exerciseIndex":
-                        exerciseIndex = reader.nextInt();
-                        break;
-                    case "result":
-                        result = reader.nextBoolean();
-                        break;
-                    case "timestamp":
-                        timestamp = reader.nextLong();
-                        break;
-                    default:
-                        reader.skipValue();
-                        break;
-                }
-			}
-			moduleAnswerList.add(new ModuleAnswer(exerciseIndex, result, timestamp));
-			reader.endObject();
+	static StatsSummary mergeStored(Context context, StatsStore store, int moduleId, StatsStore.Cursor imported)
+			throws IOException {
+		mergeOtherStore(context, store, moduleId);
+		StatsSummary summary = merge(store, moduleId, imported);
+		summary.write(context, moduleId);
+		return summary;
+	}
 
-		} 
-		reader.endArray();
-		reader.close();
+	/**
+	 * Merge the answers the other store has for a Module into the given store and purge them from the other one,
+	 * see {@link #getOtherStore}. Both stores have answers once {@link Main#PREFS_SQLITE_STATS} was switched back
+	 * and forth. They are merged like an import, so answers that were merged before but could not be purged are
+	 * not counted twice. If the merge fails the answers stay where they are, it is retried on the next load.
+	 * @param context The application context
+	 * @param store The store to merge into
+	 * @param moduleId The id of the Module
+	 */
+	private static void mergeOtherStore(Context context, StatsStore store, int moduleId) {
+		StatsStore other = getOtherStore(context);
+		if(other == null || other.getClass() == store.getClass())
+			return;
+		try {
+			StatsStore.Cursor moved = other.open(moduleId);
+			if(moved == null)
+				return;
+			try {
+				merge(store, moduleId, moved).write(context, moduleId);
+			} finally {
+				moved.close();
+			}
+			other.purge(moduleId);
+			Log.d("DEBUG", "Merged the statistics of module " + moduleId + " from the other store");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
-	 * Save moduleAnswerList to the given FileWriter as a JSON stream
-	 * @param fw The FileWriter to save to
-	 * @throws IOException
+	 * Merge imported answers into the stored history of a Module, see {@link #mergeStored}
+	 * @return The summary of the merged history
 	 */
-	private void saveModuleStatsToJson(FileWriter fw) throws IOException {
-		JsonWriter writer = new JsonWriter(fw);
+	static StatsSummary merge(StatsStore store, int moduleId, StatsStore.Cursor imported)
+			throws IOException {
+		StatsStore.Cursor stored = store.open(moduleId);
+		int answers = 0, correct = 0;
+		long lastPracticed = 0;
+		StatsStore.Writer writer;
+		try {
+			writer = store.startReplace(moduleId);
+		} catch (IOException e) {
+			if(stored != null)
+				stored.close();
+			throw e;
+		}
+		try {
+			// Rollups come first and are few, one per day and exercise, merge them in memory
+			Map<Long, int[]> rollups = new LinkedHashMap<>();
+			boolean hasStored = readRollups(stored, rollups);
+			boolean hasImported = readRollups(imported, rollups);
+			for (Map.Entry<Long, int[]> rollup : rollups.entrySet()) {
+				int day = (int) (rollup.getKey() >> 32);
+				int exerciseIndex = (int) (long) rollup.getKey();
+				writer.addRollup(day, exerciseIndex, rollup.getValue()[0], rollup.getValue()[1]);
+				answers += rollup.getValue()[0];
+				correct += rollup.getValue()[1];
+			}
 
-		writer.beginArray();
-		for (ModuleAnswer item : moduleAnswerList) {
-			writer.beginObject();
-			writer.name("exerciseIndex");
-			writer.value(item.getExerciseIndex());
-			writer.name("result");
-			writer.value(item.getResult());
-			writer.name("timestamp");
-			writer.value(item.getTimestamp());
-			writer.endObject();
+			while (hasStored || hasImported) {
+				StatsStore.Cursor next;
+				if(hasStored && hasImported && stored.getTimestamp() / 1000 == imported.getTimestamp() / 1000
+						&& stored.getExerciseIndex() == imported.getExerciseIndex()
+						&& stored.getCorrect() == imported.getCorrect()) {
+					// Both have this answer, write it once
+					hasImported = imported.moveToNext();
+					next = stored;
+				} else if(hasStored && (!hasImported || stored.getTimestamp() <= imported.getTimestamp())) {
+					next = stored;
+				} else {
+					next = imported;
+				}
+				writer.addAnswer(next.getExerciseIndex(), next.getCorrect() != 0, next.getTimestamp());
+				answers++;
+				correct += next.getCorrect();
+				lastPracticed = Math.max(lastPracticed, next.getTimestamp());
+				if(next == stored)
+					hasStored = stored.moveToNext();
+				else
+					hasImported = imported.moveToNext();
+			}
+			writer.commit();
+		} catch (IOException | RuntimeException e) {
+			writer.abort();
+			throw e;
+		} finally {
+			if(stored != null)
+				stored.close();
 		}
-		writer.endArray();
-		writer.close();
+
+		return new StatsSummary(answers, correct, lastPracticed);
 	}
 
 	/**
-	 * Save this instance to local storage, if the file doesn't exist, creates it, otherwise overwrites existing data.
+	 * Read the rollups at the start of a cursor into the map, keeping the larger of two rollups of the same day and
+	 * exercise
+	 * @param cursor The cursor to read from, or null
+	 * @return True if the cursor is positioned on its first answer, false if it has none
+	 * @throws IOException
 	 */
-	public void saveModuleStats() {
+	private static boolean readRollups(StatsStore.Cursor cursor, Map<Long, int[]> rollups) throws IOException {
+		if(cursor == null)
+			return false;
+		while (cursor.moveToNext()) {
+			if(!cursor.isRollup())
+				return true;
+			Long key = rollupKey(cursor.getDay(), cursor.getExerciseIndex());
+			int[] rollup = rollups.get(key);
+			if(rollup == null || rollup[0] < cursor.getAnswers())
+				rollups.put(key, new int[] { cursor.getAnswers(), cursor.getCorrect() });
+		}
+		return false;
+	}
 
-		if (!statsFile.exists()) {
-			try {
-                //noinspection ResultOfMethodCallIgnored
-                statsFile.createNewFile();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	/**
+	 * Fold the answers older than {@link #keepMillis} into rollups and replace the stored history with the result,
+	 * called with {@link #ioLock} held.
+	 */
+	private void compactStats() {
+		AnswerHistory history, compacted;
+		int end;
+		synchronized (this) {
+			history = answers;
+			end = history.size();
+			compacted = compact(history, System.currentTimeMillis() - keepMillis);
+			// Whether or not anything could be folded, do not try again until the history grew substantially
+			nextCompaction = (compacted != null ? compacted.size() : end) + COMPACT_THRESHOLD;
 		}
-		FileWriter fw = null;
+		if(compacted == null)
+			return;
+
 		try {
-			fw = new FileWriter(statsFile);
+			store.replace(moduleId, compacted);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return;
 		}
-		if(fw != null)
-			try {
-				saveModuleStatsToJson(fw);
-				fw.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+		synchronized (this) {
+			if(answers != history)
+				return;
+			// Keep the answers that were added while the store was written, they are saved next time
+			int saved = compacted.size();
+			for (int i = end; i < history.size(); i++) {
+				compacted.addSeconds(history.getExerciseIndex(i), history.getResult(i),
+						(int) history.getSecondsAfterBase(i));
 			}
+			answers = compacted;
+			savedCount = saved;
+		}
+		Log.d("DEBUG", "Compacted statistics of module " + moduleId + ": " + end + " answers to "
+				+ compacted.size() + " answers and " + compacted.getRollupCount() + " rollups");
 	}
 
 	/**
-	 * Add an answer to {@link #moduleAnswerList}
+	 * Builds a copy of the history with the answers given before the cutoff folded into rollups, except for the
+	 * ones the recent windows cover.
+	 * @param history The history to compact
+	 * @param cutoff The time before which answers are folded, in milliseconds
+	 * @return The compacted history, or null if there was nothing to fold
+	 */
+	private AnswerHistory compact(AnswerHistory history, long cutoff) {
+		int size = history.size();
+		BitSet keep = new BitSet(size);
+		keep.set(Math.max(0, size - MODULE_WINDOW), size);
+		int[] kept = new int[exerciseRecentCount.length];
+		for (int i = size - 1; i >= 0; i--) {
+			int exerciseIndex = history.getExerciseIndex(i);
+			if(exerciseIndex >= 0 && exerciseIndex < kept.length && kept[exerciseIndex] < EXERCISE_WINDOW) {
+				kept[exerciseIndex]++;
+				keep.set(i);
+			} else if(history.getTimestamp(i) >= cutoff) {
+				keep.set(i);
+			}
+		}
+		if(keep.cardinality() == size)
+			return null;
+
+		AnswerHistory compacted = new AnswerHistory(history.getBaseTime(), keep.cardinality());
+		// Day and exercise to the position of their rollup, to merge into existing rollups
+		Map<Long, Integer> rollups = new HashMap<>();
+		for (int i = 0; i < history.getRollupCount(); i++) {
+			compacted.addRollup(history.getRollupDay(i), history.getRollupExerciseIndex(i),
+					history.getRollupAnswers(i), history.getRollupCorrect(i));
+			rollups.put(rollupKey(history.getRollupDay(i), history.getRollupExerciseIndex(i)), i);
+		}
+		for (int i = 0; i < size; i++) {
+			int exerciseIndex = history.getExerciseIndex(i);
+			boolean result = history.getResult(i);
+			if(keep.get(i)) {
+				compacted.addSeconds(exerciseIndex, result, (int) history.getSecondsAfterBase(i));
+				continue;
+			}
+			int day = (int) toDay(history.getTimestamp(i));
+			Long key = rollupKey(day, exerciseIndex);
+			Integer rollup = rollups.get(key);
+			if(rollup != null) {
+				compacted.addToRollup(rollup, 1, result ? 1 : 0);
+			} else {
+				rollups.put(key, compacted.getRollupCount());
+				compacted.addRollup(day, exerciseIndex, 1, result ? 1 : 0);
+			}
+		}
+		return compacted;
+	}
+
+	private static Long rollupKey(int day, int exerciseIndex) {
+		return ((long) day << 32) | (exerciseIndex & 0xffffffffL);
+	}
+
+	/**
+	 * Add an answer to {@link #answers}
 	 * @param exerciseIndex The index of the exercise the answer refers to
 	 * @param result The correctness of the answer
 	 */
-	public void addAnswer(int exerciseIndex, boolean result) {
-		ModuleAnswer answer = new ModuleAnswer(exerciseIndex, result);
-		moduleAnswerList.add(answer);
+	public synchronized void addAnswer(int exerciseIndex, boolean result) {
+		addAnswer(exerciseIndex, result, System.currentTimeMillis());
+	}
+
+	private synchronized void addAnswer(int exerciseIndex, boolean result, long timestamp) {
+		answers.add(exerciseIndex, result, timestamp);
+		count(exerciseIndex, result, timestamp);
+	}
+
+	/**
+	 * @return All the recorded answers, in the order they were given, only to be read on the thread that adds them.
+	 * Answers older than {@link Main#PREFS_STATS_KEEP_DAYS} may have been folded into rollups.
+	 */
+	public synchronized AnswerHistory getAnswerHistory() {
+		return answers;
+	}
+
+	/**
+	 * Add an answer to the counters, the windows and its day's bucket
+	 */
+	private void count(int exerciseIndex, boolean result, long timestamp) {
+		int correct = result ? 1 : 0;
+		countTotals(exerciseIndex, 1, correct);
+		countDay(toDay(timestamp), 1, correct);
+		lastPracticed = Math.max(lastPracticed, timestamp);
+		recentResults = (recentResults << 1) | correct;
+		recentCount = Math.min(recentCount + 1, MODULE_WINDOW);
+		if(exerciseIndex < 0)
+			return;
+		exerciseRecentResults[exerciseIndex] = (exerciseRecentResults[exerciseIndex] << 1) | correct;
+		exerciseRecentCount[exerciseIndex] = Math.min(exerciseRecentCount[exerciseIndex] + 1, EXERCISE_WINDOW);
+	}
+
+	/**
+	 * Add a rollup to the counters and its day's bucket, the windows only cover individually kept answers
+	 */
+	private void countRollup(int day, int exerciseIndex, int answers, int correct) {
+		countTotals(exerciseIndex, answers, correct);
+		countDay(day, answers, correct);
+	}
+
+	private void countTotals(int exerciseIndex, int answers, int correct) {
+		totalAnswers += answers;
+		totalCorrect += correct;
+		if(exerciseIndex < 0)
+			return;
+		if(exerciseIndex >= exerciseAnswers.length) {
+			int size = Math.max(exerciseIndex + 1, exerciseAnswers.length * 2);
+			exerciseAnswers = Arrays.copyOf(exerciseAnswers, size);
+			exerciseCorrect = Arrays.copyOf(exerciseCorrect, size);
+			exerciseRecentResults = Arrays.copyOf(exerciseRecentResults, size);
+			exerciseRecentCount = Arrays.copyOf(exerciseRecentCount, size);
+		}
+		exerciseAnswers[exerciseIndex] += answers;
+		exerciseCorrect[exerciseIndex] += correct;
+	}
+
+	private void countDay(long day, int answers, int correct) {
+		int bucket = (int) (day % DAY_BUCKETS);
+		if(bucketDay[bucket] < day) {
+			// The bucket still counts a day that is out of range now
+			bucketDay[bucket] = day;
+			bucketAnswers[bucket] = bucketCorrect[bucket] = 0;
+		}
+		if(bucketDay[bucket] == day) {
+			bucketAnswers[bucket] += answers;
+			bucketCorrect[bucket] += correct;
+		}
+	}
+
+	private void resetCounts() {
+		exerciseAnswers = new int[0];
+		exerciseCorrect = new int[0];
+		totalAnswers = totalCorrect = 0;
+		lastPracticed = 0;
+		recentResults = 0;
+		recentCount = 0;
+		exerciseRecentResults = new long[0];
+		exerciseRecentCount = new int[0];
+		Arrays.fill(bucketDay, 0);
+		Arrays.fill(bucketAnswers, 0);
+		Arrays.fill(bucketCorrect, 0);
+	}
+
+	/**
+	 * @return The local day of the given time, in days since the epoch
+	 */
+	private static long toDay(long timestamp) {
+		return (timestamp + TimeZone.getDefault().getOffset(timestamp)) / DAY_MS;
+	}
+
+	/**
+	 * @return The percentage of the given amount of most recent results that is correct, -1 if it is 0
+	 */
+	private static int windowSuccessRate(long results, int count) {
+		if(count == 0)
+			return -1;
+		return (int)(((float)Long.bitCount(results & ((1L << count) - 1)) / (float)count) * 100);
+	}
+
+	/**
+	 * @return The totals of the registered answers, without the ones given on other devices
+	 */
+	public synchronized StatsSummary getSummary() {
+		return new StatsSummary(totalAnswers, totalCorrect, lastPracticed);
 	}
 
 	/**
 	 * Calculates the success rate of the registered answers.
 	 * @return The percentage of registered answers that is correct or -1 if there is no available data.
 	 */
-	public int calculateSuccessRate() {
+	public synchronized int calculateSuccessRate() {
 
-		if(moduleAnswerList.size() == 0)
+		int answers = totalAnswers + remoteTotalAnswers;
+		if(answers == 0)
 			return -1;
-		else {
-			int correctAnswers = 0;
-			for (ModuleAnswer answer : moduleAnswerList) {
-				if (answer.getResult())
-					correctAnswers++;
-			}
-			return (int)(((float)correctAnswers / (float)moduleAnswerList.size()) * 100);
-		}
+		else
+			return (int)(((float)(totalCorrect + remoteTotalCorrect) / (float)answers) * 100);
 	}
 	
 	/**
@@ -183,14 +631,8 @@ public class ModuleStats {
 	 * is the same as the number of correct answers given.
 	 * @return the number of exercises in this module that were answered correctly.
 	 */
-	public int exercisesCompleted() {
-		int result = 0;
-		
-		for (ModuleAnswer answer: moduleAnswerList) {
-			if(answer.getResult())
-				result++;
-		}
-		return result;
+	public synchronized int exercisesCompleted() {
+		return totalCorrect + remoteTotalCorrect;
 	}
 
     /**
@@ -198,39 +640,76 @@ public class ModuleStats {
      * @param exerciseIndex the individual exercise whose success rate to return
      * @return the success rate in % of the exercise with index exerciseIndex, or 0 if no records were found.
      */
-    public int exerciseSuccessRate(int exerciseIndex) {
-        int totalCount, correctCount;
-
-        totalCount = correctCount = 0;
+    public synchronized int exerciseSuccessRate(int exerciseIndex) {
+        int answers = exerciseCount(exerciseIndex);
+        if(answers == 0)
+            return 0;
+        int correct = (exerciseIndex < exerciseCorrect.length ? exerciseCorrect[exerciseIndex] : 0)
+                + (exerciseIndex < remoteCorrect.length ? remoteCorrect[exerciseIndex] : 0);
+        return (int)(((float)correct / (float)answers) * 100);
+    }
 
-        for (ModuleAnswer answer : moduleAnswerList) {
-            if(answer.getExerciseIndex() == exerciseIndex) {
-                totalCount++;
-                if(answer.getResult())
-                    correctCount++;
-            }
-        }
+    /**
+     * Calculates the success rate of the last {@link #MODULE_WINDOW} answers, which follows the user's progress
+     * where {@link #calculateSuccessRate()} hardly moves after a long history.
+     * @return The percentage of the recent answers that is correct or -1 if there is no available data.
+     */
+    public synchronized int recentSuccessRate() {
+        return windowSuccessRate(recentResults, recentCount);
+    }
 
-        if(totalCount == 0)
+    /**
+     * Returns the success rate in % of the last {@link #EXERCISE_WINDOW} answers to a particular exerciseIndex
+     * @param exerciseIndex the individual exercise whose recent success rate to return
+     * @return the success rate in % of the recent answers to the exercise, or 0 if no records were found.
+     */
+    public synchronized int recentExerciseSuccessRate(int exerciseIndex) {
+        if(exerciseIndex < 0 || exerciseIndex >= exerciseRecentCount.length || exerciseRecentCount[exerciseIndex] == 0)
             return 0;
-        else
-            return (int)(((float)correctCount / (float)totalCount) * 100);
+        return windowSuccessRate(exerciseRecentResults[exerciseIndex], exerciseRecentCount[exerciseIndex]);
     }
 
     /**
-     * Returns the number of times exerciseIndex is registered.
-     * @return the number of times exerciseIndex is registered in {@link #moduleAnswerList}
+     * Returns the amount of answers given on a day
+     * @param daysAgo 0 for today, 1 for yesterday, up to {@link #DAY_BUCKETS} - 1
+     * @return the amount of answers given on that day
      */
-    public int exerciseCount(int exerciseIndex) {
-        int result = 0;
+    public synchronized int answersOnDay(int daysAgo) {
+        int bucket = findBucket(daysAgo);
+        return bucket >= 0 ? bucketAnswers[bucket] : 0;
+    }
 
-        // TODO: For the purpose of this function, perhaps it is better to only return the succesful answers, worth considering..
-        for (ModuleAnswer answer : moduleAnswerList) {
-            if(answer.getExerciseIndex() == exerciseIndex)
-                result++;
-        }
+    /**
+     * Returns the amount of correct answers given on a day
+     * @param daysAgo 0 for today, 1 for yesterday, up to {@link #DAY_BUCKETS} - 1
+     * @return the amount of correct answers given on that day
+     */
+    public synchronized int correctOnDay(int daysAgo) {
+        int bucket = findBucket(daysAgo);
+        return bucket >= 0 ? bucketCorrect[bucket] : 0;
+    }
 
-        return result;
+    /**
+     * @return The bucket that counts the given day, -1 if none does
+     */
+    private int findBucket(int daysAgo) {
+        if(daysAgo < 0 || daysAgo >= DAY_BUCKETS)
+            return -1;
+        long day = toDay(System.currentTimeMillis()) - daysAgo;
+        int bucket = (int) (day % DAY_BUCKETS);
+        return bucketDay[bucket] == day ? bucket : -1;
+    }
+
+    /**
+     * Returns the number of times exerciseIndex is registered.
+     * @return the number of times exerciseIndex is registered in {@link #answers}
+     */
+    public synchronized int exerciseCount(int exerciseIndex) {
+        // TODO: For the purpose of this function, perhaps it is better to only return the succesful answers, worth considering..
+        if(exerciseIndex < 0)
+            return 0;
+        return (exerciseIndex < exerciseAnswers.length ? exerciseAnswers[exerciseIndex] : 0)
+                + (exerciseIndex < remoteAnswers.length ? remoteAnswers[exerciseIndex] : 0);
     }
 	
 	/**
@@ -240,7 +719,28 @@ public class ModuleStats {
 	@SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public boolean purgeStats() {
 		
-		moduleAnswerList = null;
-        return statsFile.exists() && statsFile.delete();
+		// Wait for a write in progress, so it can not store answers again
+		synchronized (ioLock) {
+			synchronized (this) {
+				answers = new AnswerHistory();
+				savedCount = 0;
+				resetCounts();
+			}
+			return purgeStored(mCtx, moduleId);
+		}
+	}
+
+	/**
+	 * Delete the stored statistics of a Module from both stores, without loading them. Must not be used for a
+	 * Module whose statistics are loaded, use {@link #purgeStats} for those.
+	 * @param context The application context
+	 * @param moduleId The id of the Module
+	 * @return True if there were statistics to delete
+	 */
+	static boolean purgeStored(Context context, int moduleId) {
+		StatsSummary.delete(context, moduleId);
+		StatsStore other = getOtherStore(context);
+		boolean purged = other != null && other.purge(moduleId);
+		return getStore(context).purge(moduleId) || purged;
 	}
 }
@@ -0,0 +1,73 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Measures how long {@link pk.contender.earmouse.ExerciseRenderer} takes to render an exercise of each of the
+ * given Modules, with and without the room reverb.
+ * <p>
+ * Results are logged as a real-time factor, the render time divided by the duration of the rendered audio.
+ * A factor below 1 means the exercise is ready before it could have finished playing. Run from
+ * {@link pk.contender.earmouse.Main} in developer mode.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class RenderBenchmark extends AsyncTask<Module, Void, Void> {
+
+    /** Bytes per second of rendered audio, 16 bit stereo */
+    private static final double BYTES_PER_SECOND = SampleBank.SAMPLES_RATE * SampleBank.SAMPLES_CHANNELS * 2;
+
+    private final ExerciseRenderer mRenderer;
+
+    public RenderBenchmark(Context context) {
+        mRenderer = new ExerciseRenderer(context);
+    }
+
+    @Override
+    protected Void doInBackground(Module... params) {
+        double worstDry = 0, worstReverb = 0;
+        Exercise exercise = new Exercise();
+        try {
+            for (Module mod : params) {
+                // A Module that does not compile may have no exercise to render
+                if(!mod.getCompiled().isValid())
+                    continue;
+                mod.getExercise(0, exercise);
+
+                // The first render loads the samples, don't count that
+                mRenderer.setReverb(false);
+                mRenderer.render(exercise);
+
+                double dry = measure(exercise);
+                mRenderer.setReverb(true);
+                double reverb = measure(exercise);
+                Log.d("DEBUG", "RenderBenchmark: module " + mod.getId() + " real-time factor dry: " + dry + " reverb: " + reverb);
+
+                worstDry = Math.max(worstDry, dry);
+                worstReverb = Math.max(worstReverb, reverb);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        Log.d("DEBUG", "RenderBenchmark: worst real-time factor dry: " + worstDry + " reverb: " + worstReverb
+                + (worstReverb < 1.0 ? ", faster than real time" : ", SLOWER than real time"));
+        return null;
+    }
+
+    /**
+     * Render the exercise once with the current settings
+     * @return The real-time factor of the render
+     */
+    private double measure(Exercise exercise) throws IOException {
+        mRenderer.clearCache();
+        long start = System.nanoTime();
+        byte [] wav = mRenderer.render(exercise);
+        double renderSeconds = (System.nanoTime() - start) / 1e9;
+        return renderSeconds / ((wav.length - 44) / BYTES_PER_SECOND);
+    }
+}
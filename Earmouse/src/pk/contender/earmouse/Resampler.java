@@ -0,0 +1,124 @@
+package pk.contender.earmouse;
+
+/**
+ * Table-driven windowed-sinc resampler for interleaved 16-bit PCM.
+ * <p>
+ * A Resampler is constructed for a fixed playback ratio, e.g. 2^(1/12) to raise a sample by a semitone.
+ * The interpolation kernel is precomputed for {@link #PHASES} fractional positions when the instance is
+ * created, so {@link #process} only does table lookups and multiply-adds and allocates nothing.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class Resampler {
+
+    /** Number of input frames on either side of the interpolation point that contribute to an output frame */
+    private static final int HALF_TAPS = 8;
+    /** Total kernel width in input frames */
+    private static final int TAPS = HALF_TAPS * 2;
+    /** Number of fractional positions the kernel is tabulated for */
+    private static final int PHASES = 256;
+
+    /** Input frames advanced per output frame, > 1 raises the pitch, < 1 lowers it */
+    private final double ratio;
+    /** Kernel table, row p holds the TAPS coefficients for fractional position p / PHASES */
+    private final float[] kernel = new float[(PHASES + 1) * TAPS];
+
+    /**
+     * Construct a Resampler for the given ratio.
+     * @param ratio Input frames advanced per output frame, must be positive.
+     */
+    public Resampler(double ratio) {
+        if(ratio <= 0)
+            throw new IllegalArgumentException("Resampling ratio must be positive: " + ratio);
+        this.ratio = ratio;
+
+        // When raising the pitch the cutoff has to come down with it to keep the source's upper
+        // harmonics from folding back into the audible range.
+        double cutoff = ratio > 1.0 ? 1.0 / ratio : 1.0;
+
+        for (int phase = 0; phase <= PHASES; phase++) {
+            double frac = (double) phase / PHASES;
+            double sum = 0;
+            for (int tap = 0; tap < TAPS; tap++) {
+                // distance between the input frame this tap reads and the interpolation point
+                double x = (tap - HALF_TAPS + 1) - frac;
+                double value = cutoff * sinc(cutoff * x) * blackman(x);
+                kernel[phase * TAPS + tap] = (float) value;
+                sum += value;
+            }
+            // Normalize each row so a constant signal stays constant regardless of phase
+            for (int tap = 0; tap < TAPS; tap++) {
+                kernel[phase * TAPS + tap] /= sum;
+            }
+        }
+    }
+
+    /**
+     * @return The ratio this Resampler was created for
+     */
+    public double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * Returns the amount of frames {@link #process} produces for the given input length.
+     * @param inputFrames The length of the input in frames
+     * @return The length of the output in frames
+     */
+    public int getOutputFrames(int inputFrames) {
+        if(inputFrames <= 0)
+            return 0;
+        return (int) ((inputFrames - 1) / ratio) + 1;
+    }
+
+    /**
+     * Resamples interleaved PCM data.
+     * @param in The input samples, interleaved if channels > 1
+     * @param inputFrames The amount of frames to read from in
+     * @param out The output buffer, must hold at least {@link #getOutputFrames}(inputFrames) * channels samples
+     * @param channels The amount of interleaved channels
+     */
+    public void process(short[] in, int inputFrames, short[] out, int channels) {
+        int outputFrames = getOutputFrames(inputFrames);
+
+        for (int frame = 0; frame < outputFrames; frame++) {
+            double position = frame * ratio;
+            int base = (int) position;
+            int row = (int) ((position - base) * PHASES + 0.5) * TAPS;
+            int first = base - HALF_TAPS + 1;
+
+            for (int channel = 0; channel < channels; channel++) {
+                float sum = 0;
+                for (int tap = 0; tap < TAPS; tap++) {
+                    int index = first + tap;
+                    if (index < 0 || index >= inputFrames)
+                        continue;
+                    sum += in[index * channels + channel] * kernel[row + tap];
+                }
+                //clip into range
+                if (sum > Short.MAX_VALUE) {
+                    sum = Short.MAX_VALUE;
+                } else if (sum < Short.MIN_VALUE) {
+                    sum = Short.MIN_VALUE;
+                }
+                out[frame * channels + channel] = (short) sum;
+            }
+        }
+    }
+
+    private static double sinc(double x) {
+        if (x == 0)
+            return 1.0;
+        return Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    /**
+     * Blackman window spanning the kernel, zero at +-HALF_TAPS
+     */
+    private static double blackman(double x) {
+        double n = (x + HALF_TAPS) / (2 * HALF_TAPS);
+        if (n <= 0 || n >= 1)
+            return 0;
+        return 0.42 - 0.5 * Math.cos(2 * Math.PI * n) + 0.08 * Math.cos(4 * Math.PI * n);
+    }
+}
@@ -0,0 +1,208 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Provides the PCM data for every note an exercise can use.
+ * <p>
+ * Notes for which a sample("note + 1").wav exists in the assets (the anchors) are read directly, all other notes
+ * are derived from the nearest anchor with a {@link pk.contender.earmouse.Resampler}. This means the asset set
+ * does not need a sample for every semitone and exercises can use notes beyond the sampled C2 - E5 range.<br>
+ * Notes can also be requested with an offset in cents, for rendering in other tuning systems than equal
+ * temperament, these are derived in a single resampling pass from the anchor as well.<br>
+ * Loaded and derived notes are kept in a cache shared by all instances, keyed on note and offset, so the cost
+ * of reading or interpolating a note is only paid once.
+ * <p>
+ * All data is 16 bit stereo at {@link #SAMPLES_RATE}, stored as interleaved shorts without a WAV header.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class SampleBank {
+
+    /** The sampling rate of the samples we use to generate our exercises */
+    public static final int SAMPLES_RATE = 44100;
+    /** The amount of interleaved channels in the samples */
+    public static final int SAMPLES_CHANNELS = 2;
+    /** The lowest note that can be rendered, 0 refers to C2 so this is C1 */
+    public static final int NOTE_MIN = -12;
+    /** The highest note that can be rendered, 40 refers to E5 so this is E6 */
+    public static final int NOTE_MAX = 52;
+    /** The furthest a note may be shifted away from its anchor */
+    private static final int MAX_SHIFT = 12;
+    /** The size of the WAV header on our sample assets */
+    private static final int WAV_HEADER_SIZE = 44;
+    /** Upper bound for the cache, in bytes */
+    private static final int CACHE_SIZE = 4 * 1024 * 1024;
+
+    /** Cache of loaded and derived notes, keyed on {@link #cacheKey} */
+    private static final LruCache<Long, short[]> sampleCache = new LruCache<Long, short[]>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Long key, short[] value) {
+            return value.length * 2;
+        }
+    };
+
+    private final AssetManager mAssetMan;
+    /** anchors[note - NOTE_MIN] is true if there is a sample asset for that note, null until first used */
+    private boolean[] anchors = null;
+
+    public SampleBank(Context context) {
+        mAssetMan = context.getAssets();
+    }
+
+    /**
+     * Test whether the given note can be rendered by this SampleBank
+     * @param note The note, 0 refers to C2
+     * @return True if there is an anchor close enough to the note to derive it from
+     */
+    public boolean isNoteAvailable(int note) {
+        return findAnchor(note) != Integer.MIN_VALUE;
+    }
+
+    /**
+     * Returns the PCM data for the given note, loading or deriving it if it is not in the cache.
+     * <p>The returned array is shared, callers must not modify it.
+     * @param note The note, 0 refers to C2
+     * @return The interleaved 16 bit PCM data of the note
+     * @throws IOException If the note is out of range or its anchor could not be read
+     */
+    public short[] getSample(int note) throws IOException {
+        return getSample(note, 0f);
+    }
+
+    /**
+     * Returns the PCM data for the given note detuned by the given amount of cents, loading or deriving it
+     * if it is not in the cache.
+     * <p>The returned array is shared, callers must not modify it.
+     * @param note The note, 0 refers to C2
+     * @param cents The deviation from equal temperament, as returned by {@link Tuning#getCents}
+     * @return The interleaved 16 bit PCM data of the note
+     * @throws IOException If the note is out of range or its anchor could not be read
+     */
+    public short[] getSample(int note, float cents) throws IOException {
+        long key = cacheKey(note, cents);
+        short[] result = sampleCache.get(key);
+        if(result != null)
+            return result;
+
+        int anchor = findAnchor(note);
+        if(anchor == Integer.MIN_VALUE)
+            throw new IOException("No sample available for note " + note);
+
+        if(anchor == note && key == cacheKey(note, 0f)) {
+            result = loadAnchor(note);
+        } else {
+            short[] source = getSample(anchor);
+            // Playing the anchor back faster by a factor 2^(1/12) per semitone raises it to our note,
+            // the tuning offset is folded into the same ratio so we only interpolate once.
+            Resampler resampler = new Resampler(Math.pow(2.0, (note - anchor) / 12.0 + cents / 1200.0));
+            int frames = source.length / SAMPLES_CHANNELS;
+            result = new short[resampler.getOutputFrames(frames) * SAMPLES_CHANNELS];
+            resampler.process(source, frames, result, SAMPLES_CHANNELS);
+            Log.d("DEBUG", "SampleBank: derived note " + note + " (" + cents + " cents) from anchor " + anchor);
+        }
+        sampleCache.put(key, result);
+        return result;
+    }
+
+    /**
+     * Cache key for a note and tuning offset, offsets are quantized to a hundredth of a cent which is far
+     * below what anyone can hear.
+     */
+    private static long cacheKey(int note, float cents) {
+        return ((long) note << 32) | (Math.round(cents * 100f) & 0xffffffffL);
+    }
+
+    /**
+     * Find the anchor to derive the given note from
+     * @param note The note to look for
+     * @return The nearest anchor, preferring the one above the note when two are equally close,
+     * or Integer.MIN_VALUE if there is no anchor within {@link #MAX_SHIFT} semitones
+     */
+    private int findAnchor(int note) {
+        if(note < NOTE_MIN || note > NOTE_MAX)
+            return Integer.MIN_VALUE;
+
+        boolean[] available = getAnchors();
+        for (int distance = 0; distance <= MAX_SHIFT; distance++) {
+            int above = note + distance;
+            if(above <= NOTE_MAX && available[above - NOTE_MIN])
+                return above;
+            int below = note - distance;
+            if(below >= NOTE_MIN && available[below - NOTE_MIN])
+                return below;
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * Scan the assets for sample files, only done once per instance.
+     * @return anchors[note - NOTE_MIN] is true if there is a sample asset for that note
+     */
+    private synchronized boolean[] getAnchors() {
+        if(anchors != null)
+            return anchors;
+
+        anchors = new boolean[NOTE_MAX - NOTE_MIN + 1];
+        try {
+            for (String item : mAssetMan.list("")) {
+                if(!item.startsWith("sample") || !item.endsWith(".wav"))
+                    continue;
+                try {
+                    int note = Integer.parseInt(item.substring("sample".length(), item.length() - ".wav".length())) - 1;
+                    if(note >= NOTE_MIN && note <= NOTE_MAX)
+                        anchors[note - NOTE_MIN] = true;
+                } catch (NumberFormatException e) {
+                    Log.d("DEBUG", "SampleBank: ignoring asset " + item);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return anchors;
+    }
+
+    /**
+     * Read a sample asset and convert it from little-endian bytes to shorts
+     * @param note The note to read
+     * @return The PCM data of the sample asset
+     * @throws IOException
+     */
+    private short[] loadAnchor(int note) throws IOException {
+        InputStream in = mAssetMan.open("sample" + (note + 1) + ".wav", AssetManager.ACCESS_BUFFER);
+        byte[] data;
+        try {
+            DataInputStream dataIn = new DataInputStream(in);
+            byte[] header = new byte[WAV_HEADER_SIZE];
+            dataIn.readFully(header);
+            int dataSize = (header[40] & 0xff) | (header[41] & 0xff) << 8 | (header[42] & 0xff) << 16 | (header[43] & 0xff) << 24;
+            data = new byte[dataSize];
+            int read = 0;
+            while(read < dataSize) {
+                int len = dataIn.read(data, read, dataSize - read);
+                if(len < 0)
+                    break;
+                read += len;
+            }
+            // A truncated file is not fatal, we just use what is there
+            if(read < dataSize)
+                data = Arrays.copyOf(data, read);
+        } finally {
+            in.close();
+        }
+
+        short[] result = new short[data.length / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (short) ((data[2 * i] & 0xff) | (data[2 * i + 1] << 8));
+        }
+        return result;
+    }
+}
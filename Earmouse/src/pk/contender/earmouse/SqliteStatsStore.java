@@ -0,0 +1,628 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores the answers of all Modules in a single SQLite database, so statistics can be queried by time and by
+ * exercise without loading whole histories.
+ * <p>
+ * Every answer is a row in the answers table, which is indexed by module and exercise, by module and time and by
+ * time for queries across Modules. Answers are inserted with one prepared statement inside a single transaction
+ * per {@link #append}, so storing thousands of them costs one journal write. Compacted answers are kept in the
+ * rollups table, per Module, day and exercise, and are inserted the same way. The store is used instead of
+ * {@link LogStatsStore} when {@link Main#PREFS_SQLITE_STATS} is set.
+ * <p>
+ * Streamed histories are read a page of rows at a time and written to staging tables in short transactions, see
+ * {@link #open} and {@link #startReplace}, so a long history is never held in memory or in one transaction.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class SqliteStatsStore extends SQLiteOpenHelper implements StatsStore {
+
+    private static final String DATABASE_NAME = "stats.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "answers";
+    private static final String COL_MODULE = "module";
+    private static final String COL_EXERCISE = "exercise";
+    /** 1 for a correct answer, 0 otherwise */
+    private static final String COL_RESULT = "result";
+    /** The time of the answer in milliseconds */
+    private static final String COL_TIME = "time";
+
+    private static final String ROLLUP_TABLE = "rollups";
+    /** The local day of the answers, in days since the epoch */
+    private static final String COL_DAY = "day";
+    private static final String COL_ANSWERS = "answers";
+    private static final String COL_CORRECT = "correct";
+
+    /** Hold a history written through {@link #startReplace} until it is committed, same columns as the above */
+    private static final String STAGED_TABLE = "staged_answers";
+    private static final String STAGED_ROLLUP_TABLE = "staged_rollups";
+    /** The amount of rows a {@link Cursor} reads at a time and a {@link Writer} inserts per transaction */
+    private static final int PAGE_SIZE = 1000;
+
+    private static final String INSERT_ANSWER = "INSERT INTO " + TABLE + " (" + COL_MODULE + ", " + COL_EXERCISE
+            + ", " + COL_RESULT + ", " + COL_TIME + ") VALUES (?, ?, ?, ?)";
+    private static final String INSERT_ROLLUP = "INSERT INTO " + ROLLUP_TABLE + " (" + COL_MODULE + ", " + COL_DAY
+            + ", " + COL_EXERCISE + ", " + COL_ANSWERS + ", " + COL_CORRECT + ") VALUES (?, ?, ?, ?, ?)";
+    private static final String ANSWER_COLUMNS = COL_MODULE + ", " + COL_EXERCISE + ", " + COL_RESULT + ", "
+            + COL_TIME;
+    private static final String ROLLUP_COLUMNS = COL_MODULE + ", " + COL_DAY + ", " + COL_EXERCISE + ", "
+            + COL_ANSWERS + ", " + COL_CORRECT;
+
+    private static SqliteStatsStore instance = null;
+
+    /** The prepared inserts, compiled on first use and guarded by this instance */
+    private SQLiteStatement insert = null, insertRollup = null;
+
+    private SqliteStatsStore(Context context) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * @param context Any context, the store holds on to the application context
+     * @return The store, the database is opened on first use
+     */
+    public static synchronized SqliteStatsStore getInstance(Context context) {
+        if(instance == null)
+            instance = new SqliteStatsStore(context);
+        return instance;
+    }
+
+    /**
+     * @return True if the database was created before, so there may be answers in it
+     */
+    public static boolean exists(Context context) {
+        return context.getDatabasePath(DATABASE_NAME).exists();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        createAnswerTable(db, TABLE);
+        db.execSQL("CREATE INDEX answers_module_exercise ON " + TABLE + " (" + COL_MODULE + ", " + COL_EXERCISE + ")");
+        db.execSQL("CREATE INDEX answers_module_time ON " + TABLE + " (" + COL_MODULE + ", " + COL_TIME + ")");
+        db.execSQL("CREATE INDEX answers_time ON " + TABLE + " (" + COL_TIME + ")");
+        createRollupTable(db, ROLLUP_TABLE);
+        db.execSQL("CREATE INDEX rollups_module_exercise ON " + ROLLUP_TABLE + " (" + COL_MODULE + ", "
+                + COL_EXERCISE + ")");
+        createAnswerTable(db, STAGED_TABLE);
+        db.execSQL("CREATE INDEX staged_answers_module ON " + STAGED_TABLE + " (" + COL_MODULE + ")");
+        createRollupTable(db, STAGED_ROLLUP_TABLE);
+        db.execSQL("CREATE INDEX staged_rollups_module ON " + STAGED_ROLLUP_TABLE + " (" + COL_MODULE + ")");
+    }
+
+    private static void createAnswerTable(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + " ("
+                + COL_MODULE + " INTEGER NOT NULL, "
+                + COL_EXERCISE + " INTEGER NOT NULL, "
+                + COL_RESULT + " INTEGER NOT NULL, "
+                + COL_TIME + " INTEGER NOT NULL)");
+    }
+
+    private static void createRollupTable(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + " ("
+                + COL_MODULE + " INTEGER NOT NULL, "
+                + COL_DAY + " INTEGER NOT NULL, "
+                + COL_EXERCISE + " INTEGER NOT NULL, "
+                + COL_ANSWERS + " INTEGER NOT NULL, "
+                + COL_CORRECT + " INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // There is only one version of the database so far
+    }
+
+    /**
+     * Reads the rollups and the answers in the order they were inserted.
+     */
+    @Override
+    public AnswerHistory load(int moduleId) throws IOException {
+        String[] args = new String[] { Integer.toString(moduleId) };
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            AnswerHistory history = new AnswerHistory();
+            android.database.Cursor c = db.rawQuery("SELECT " + COL_DAY + ", " + COL_EXERCISE + ", " + COL_ANSWERS
+                    + ", " + COL_CORRECT + " FROM " + ROLLUP_TABLE + " WHERE " + COL_MODULE + " = ? ORDER BY rowid", args);
+            try {
+                while (c.moveToNext()) {
+                    history.addRollup(c.getInt(0), c.getInt(1), c.getInt(2), c.getInt(3));
+                }
+            } finally {
+                c.close();
+            }
+            c = db.rawQuery("SELECT " + COL_EXERCISE + ", " + COL_RESULT + ", " + COL_TIME
+                    + " FROM " + TABLE + " WHERE " + COL_MODULE + " = ? ORDER BY rowid", args);
+            try {
+                while (c.moveToNext()) {
+                    history.add(c.getInt(0), c.getInt(1) != 0, c.getLong(2));
+                }
+            } finally {
+                c.close();
+            }
+            if(history.size() == 0 && history.getRollupCount() == 0)
+                return null;
+            return history;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Inserts the answers in a single transaction, none of them are stored if one fails.
+     */
+    @Override
+    public synchronized void append(int moduleId, AnswerHistory answers) throws IOException {
+        if(answers.size() == 0)
+            return;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                insertAnswers(db, moduleId, answers);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Deletes the Module's rows and inserts the history's rollups and answers in a single transaction.
+     */
+    @Override
+    public synchronized void replace(int moduleId, AnswerHistory history) throws IOException {
+        String[] args = new String[] { Integer.toString(moduleId) };
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                db.delete(TABLE, COL_MODULE + " = ?", args);
+                db.delete(ROLLUP_TABLE, COL_MODULE + " = ?", args);
+                for (int i = 0; i < history.getRollupCount(); i++) {
+                    insertRollup(db, moduleId, history.getRollupDay(i), history.getRollupExerciseIndex(i),
+                            history.getRollupAnswers(i), history.getRollupCorrect(i));
+                }
+                insertAnswers(db, moduleId, history);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Inserts the answers with the prepared insert, must be called in a transaction while holding this instance
+     */
+    private void insertAnswers(SQLiteDatabase db, int moduleId, AnswerHistory answers) {
+        if(insert == null)
+            insert = db.compileStatement(INSERT_ANSWER);
+        AnswerHistory.Cursor cursor = answers.cursor();
+        while (cursor.moveToNext()) {
+            insert.bindLong(1, moduleId);
+            insert.bindLong(2, cursor.getExerciseIndex());
+            insert.bindLong(3, cursor.getResult() ? 1 : 0);
+            insert.bindLong(4, cursor.getTimestamp());
+            insert.executeInsert();
+        }
+    }
+
+    /**
+     * Inserts a rollup with the prepared rollup insert, must be called in a transaction while holding this instance
+     */
+    private void insertRollup(SQLiteDatabase db, int moduleId, int day, int exerciseIndex, int answers, int correct) {
+        if(insertRollup == null)
+            insertRollup = db.compileStatement(INSERT_ROLLUP);
+        insertRollup.bindLong(1, moduleId);
+        insertRollup.bindLong(2, day);
+        insertRollup.bindLong(3, exerciseIndex);
+        insertRollup.bindLong(4, answers);
+        insertRollup.bindLong(5, correct);
+        insertRollup.executeInsert();
+    }
+
+    /**
+     * Opens a cursor over the rollups in the order they were inserted and then the answers in order of time, it
+     * holds one page of rows at a time.
+     */
+    @Override
+    public Cursor open(int moduleId) throws IOException {
+        String[] args = new String[] { Integer.toString(moduleId) };
+        try {
+            if(!hasRows(ROLLUP_TABLE, args) && !hasRows(TABLE, args))
+                return null;
+            return new SqliteCursor(args);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return True if the table has rows for the Module
+     */
+    private boolean hasRows(String table, String[] args) {
+        android.database.Cursor c = getReadableDatabase().rawQuery("SELECT 1 FROM " + table + " WHERE " + COL_MODULE
+                + " = ? LIMIT 1", args);
+        try {
+            return c.moveToNext();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Writes the new history to the staging tables, the Module's rows are only replaced in the transaction that
+     * commits it. Until then they can be read, also through a cursor that is being merged into the new history.
+     */
+    @Override
+    public Writer startReplace(int moduleId) throws IOException {
+        try {
+            return new StagingWriter(moduleId);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Set<Integer> listModules() {
+        Set<Integer> ids = new HashSet<>();
+        try {
+            android.database.Cursor c = getReadableDatabase().rawQuery("SELECT DISTINCT " + COL_MODULE + " FROM "
+                    + TABLE + " UNION SELECT DISTINCT " + COL_MODULE + " FROM " + ROLLUP_TABLE, null);
+            try {
+                while (c.moveToNext()) {
+                    ids.add(c.getInt(0));
+                }
+            } finally {
+                c.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return ids;
+    }
+
+    @Override
+    public synchronized boolean purge(int moduleId) {
+        String[] args = new String[] { Integer.toString(moduleId) };
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            int deleted = db.delete(TABLE, COL_MODULE + " = ?", args);
+            deleted += db.delete(ROLLUP_TABLE, COL_MODULE + " = ?", args);
+            return deleted > 0;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Counts the answers given to a Module in a period of time, compacted answers are not included
+     * @param moduleId The id of the Module
+     * @param from The start of the period in milliseconds, inclusive
+     * @param to The end of the period in milliseconds, exclusive
+     * @return The amount of answers and the amount of correct answers
+     */
+    public int[] countAnswers(int moduleId, long from, long to) {
+        return count("SELECT COUNT(*), SUM(" + COL_RESULT + ") FROM " + TABLE + " WHERE " + COL_MODULE + " = ? AND "
+                + COL_TIME + " >= ? AND " + COL_TIME + " < ?",
+                new String[] { Integer.toString(moduleId), Long.toString(from), Long.toString(to) });
+    }
+
+    /**
+     * Counts the answers given to one exercise of a Module, including compacted answers
+     * @param moduleId The id of the Module
+     * @param exerciseIndex The index of the exercise
+     * @return The amount of answers and the amount of correct answers
+     */
+    public int[] countExerciseAnswers(int moduleId, int exerciseIndex) {
+        String[] args = new String[] { Integer.toString(moduleId), Integer.toString(exerciseIndex) };
+        int[] answers = count("SELECT COUNT(*), SUM(" + COL_RESULT + ") FROM " + TABLE + " WHERE " + COL_MODULE
+                + " = ? AND " + COL_EXERCISE + " = ?", args);
+        int[] rollups = count("SELECT SUM(" + COL_ANSWERS + "), SUM(" + COL_CORRECT + ") FROM " + ROLLUP_TABLE
+                + " WHERE " + COL_MODULE + " = ? AND " + COL_EXERCISE + " = ?", args);
+        return new int[] { answers[0] + rollups[0], answers[1] + rollups[1] };
+    }
+
+    /**
+     * Counts the answers given to every Module in a period of time, compacted answers are not included
+     * @param from The start of the period in milliseconds, inclusive
+     * @param to The end of the period in milliseconds, exclusive
+     * @return Per id of a Module with answers in the period, the amount of answers and the amount of correct answers
+     */
+    public Map<Integer, int[]> countAnswersPerModule(long from, long to) {
+        Map<Integer, int[]> counts = new HashMap<>();
+        try {
+            android.database.Cursor c = getReadableDatabase().rawQuery("SELECT " + COL_MODULE + ", COUNT(*), SUM("
+                    + COL_RESULT + ") FROM " + TABLE + " WHERE " + COL_TIME + " >= ? AND " + COL_TIME + " < ? GROUP BY "
+                    + COL_MODULE, new String[] { Long.toString(from), Long.toString(to) });
+            try {
+                while (c.moveToNext()) {
+                    counts.put(c.getInt(0), new int[] { c.getInt(1), c.getInt(2) });
+                }
+            } finally {
+                c.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return counts;
+    }
+
+    /**
+     * Runs a query that returns a single row with two counts or sums
+     */
+    private int[] count(String sql, String[] args) {
+        try {
+            android.database.Cursor c = getReadableDatabase().rawQuery(sql, args);
+            try {
+                // SUM() of no rows is NULL, which reads as 0
+                if(c.moveToNext())
+                    return new int[] { c.getInt(0), c.getInt(1) };
+            } finally {
+                c.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return new int[] { 0, 0 };
+    }
+
+    /**
+     * Writes a history to the staging tables in transactions of {@link #PAGE_SIZE} rows, and moves it into the
+     * answers and rollups tables in one transaction on {@link #commit()}.
+     */
+    private class StagingWriter implements Writer {
+        private final String[] args;
+        private final SQLiteDatabase db;
+        private final SQLiteStatement insertStaged, insertStagedRollup;
+        private final int moduleId;
+        /** The amount of rows inserted in the open transaction, if there is one */
+        private int batched = 0;
+        private boolean inTransaction = false, ended = false;
+
+        StagingWriter(int moduleId) {
+            this.moduleId = moduleId;
+            args = new String[] { Integer.toString(moduleId) };
+            db = getWritableDatabase();
+            // Left behind if the app was stopped while writing an earlier history
+            deleteStaged();
+            insertStaged = db.compileStatement("INSERT INTO " + STAGED_TABLE + " (" + ANSWER_COLUMNS
+                    + ") VALUES (?, ?, ?, ?)");
+            insertStagedRollup = db.compileStatement("INSERT INTO " + STAGED_ROLLUP_TABLE + " (" + ROLLUP_COLUMNS
+                    + ") VALUES (?, ?, ?, ?, ?)");
+        }
+
+        @Override
+        public void addRollup(int day, int exerciseIndex, int answers, int correct) throws IOException {
+            try {
+                startBatch();
+                insertStagedRollup.bindLong(1, moduleId);
+                insertStagedRollup.bindLong(2, day);
+                insertStagedRollup.bindLong(3, exerciseIndex);
+                insertStagedRollup.bindLong(4, answers);
+                insertStagedRollup.bindLong(5, correct);
+                insertStagedRollup.executeInsert();
+                endBatch(false);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void addAnswer(int exerciseIndex, boolean result, long timestamp) throws IOException {
+            try {
+                startBatch();
+                insertStaged.bindLong(1, moduleId);
+                insertStaged.bindLong(2, exerciseIndex);
+                insertStaged.bindLong(3, result ? 1 : 0);
+                insertStaged.bindLong(4, timestamp);
+                insertStaged.executeInsert();
+                endBatch(false);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private void startBatch() {
+            if(inTransaction)
+                return;
+            db.beginTransaction();
+            inTransaction = true;
+        }
+
+        /**
+         * Commit the open transaction once it holds {@link #PAGE_SIZE} rows, or right away if force is set
+         */
+        private void endBatch(boolean force) {
+            if(!inTransaction || (++batched < PAGE_SIZE && !force))
+                return;
+            inTransaction = false;
+            batched = 0;
+            db.setTransactionSuccessful();
+            db.endTransaction();
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if(ended)
+                return;
+            ended = true;
+            try {
+                endBatch(true);
+                db.beginTransaction();
+                try {
+                    db.delete(TABLE, COL_MODULE + " = ?", args);
+                    db.delete(ROLLUP_TABLE, COL_MODULE + " = ?", args);
+                    db.execSQL("INSERT INTO " + ROLLUP_TABLE + " (" + ROLLUP_COLUMNS + ") SELECT " + ROLLUP_COLUMNS
+                            + " FROM " + STAGED_ROLLUP_TABLE + " WHERE " + COL_MODULE + " = ? ORDER BY rowid", args);
+                    db.execSQL("INSERT INTO " + TABLE + " (" + ANSWER_COLUMNS + ") SELECT " + ANSWER_COLUMNS
+                            + " FROM " + STAGED_TABLE + " WHERE " + COL_MODULE + " = ? ORDER BY rowid", args);
+                    deleteStaged();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (SQLException e) {
+                discard();
+                throw new IOException(e);
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void abort() {
+            if(ended)
+                return;
+            ended = true;
+            discard();
+            close();
+        }
+
+        /**
+         * Roll back the open transaction and delete what was staged before it
+         */
+        private void discard() {
+            try {
+                if(inTransaction) {
+                    inTransaction = false;
+                    db.endTransaction();
+                }
+                deleteStaged();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void deleteStaged() {
+            db.delete(STAGED_TABLE, COL_MODULE + " = ?", args);
+            db.delete(STAGED_ROLLUP_TABLE, COL_MODULE + " = ?", args);
+        }
+
+        private void close() {
+            insertStaged.close();
+            insertStagedRollup.close();
+        }
+    }
+
+    /**
+     * Walks through the rollups of a Module and then its answers. Rows are read {@link #PAGE_SIZE} at a time, each
+     * page is queried from the last row of the previous one on, so no row is skipped or read twice when the rows
+     * before it change and paging through a long history does not slow down.
+     */
+    private class SqliteCursor implements Cursor {
+        private final String module;
+        /** The current page, rollups are read as rowid, day, exercise, answers, correct and answers as rowid,
+         * exercise, result, time */
+        private android.database.Cursor page = null;
+        private boolean rollup = true, done = false;
+        /** The rowid of the last row read, and the time of the last answer read */
+        private long lastRowId = 0, lastTime = Long.MIN_VALUE;
+
+        SqliteCursor(String[] args) {
+            module = args[0];
+        }
+
+        @Override
+        public boolean moveToNext() throws IOException {
+            if(done)
+                return false;
+            try {
+                while (true) {
+                    if(page == null)
+                        page = rollup ? queryRollups() : queryAnswers();
+                    if(page.moveToNext()) {
+                        lastRowId = page.getLong(0);
+                        if(!rollup)
+                            lastTime = page.getLong(3);
+                        return true;
+                    }
+                    boolean more = page.getCount() == PAGE_SIZE;
+                    page.close();
+                    page = null;
+                    if(more)
+                        continue;
+                    if(!rollup) {
+                        done = true;
+                        return false;
+                    }
+                    rollup = false;
+                    lastRowId = 0;
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private android.database.Cursor queryRollups() {
+            return getReadableDatabase().rawQuery("SELECT rowid, " + COL_DAY + ", " + COL_EXERCISE + ", "
+                    + COL_ANSWERS + ", " + COL_CORRECT + " FROM " + ROLLUP_TABLE + " WHERE " + COL_MODULE
+                    + " = ? AND rowid > ? ORDER BY rowid LIMIT " + PAGE_SIZE,
+                    new String[] { module, Long.toString(lastRowId) });
+        }
+
+        private android.database.Cursor queryAnswers() {
+            // The first condition selects the range of the module and time index, the second skips the answers of
+            // the last time that were read already
+            String time = Long.toString(lastTime);
+            return getReadableDatabase().rawQuery("SELECT rowid, " + COL_EXERCISE + ", " + COL_RESULT + ", "
+                    + COL_TIME + " FROM " + TABLE + " WHERE " + COL_MODULE + " = ? AND " + COL_TIME + " >= ? AND ("
+                    + COL_TIME + " > ? OR rowid > ?) ORDER BY " + COL_TIME + ", rowid LIMIT " + PAGE_SIZE,
+                    new String[] { module, time, time, Long.toString(lastRowId) });
+        }
+
+        @Override
+        public boolean isRollup() {
+            return rollup;
+        }
+
+        @Override
+        public int getExerciseIndex() {
+            return page.getInt(rollup ? 2 : 1);
+        }
+
+        @Override
+        public long getTimestamp() {
+            return rollup ? 0 : page.getLong(3);
+        }
+
+        @Override
+        public int getDay() {
+            return rollup ? page.getInt(1) : 0;
+        }
+
+        @Override
+        public int getAnswers() {
+            return rollup ? page.getInt(3) : 1;
+        }
+
+        @Override
+        public int getCorrect() {
+            return rollup ? page.getInt(4) : page.getInt(2);
+        }
+
+        @Override
+        public void close() {
+            if(page != null)
+                page.close();
+            page = null;
+            done = true;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.util.Map;
+
+/**
+ * Measures how long {@link pk.contender.earmouse.SqliteStatsStore} takes to answer its queries for the given
+ * Modules: the answers of the last week across all Modules, and per Module the answers of the last week and the
+ * answers to its first exercise.
+ * <p>
+ * Results are logged with the counts the queries returned. Nothing is measured unless the statistics are kept in
+ * the database, see {@link Main#PREFS_SQLITE_STATS}. Run from {@link pk.contender.earmouse.Main} in developer mode.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class StatsBenchmark extends AsyncTask<Module, Void, Void> {
+
+    private static final long WEEK_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private final Context mCtx;
+
+    public StatsBenchmark(Context context) {
+        mCtx = context.getApplicationContext();
+    }
+
+    @Override
+    protected Void doInBackground(Module... params) {
+        StatsStore store = ModuleStats.getStore(mCtx);
+        if(!(store instanceof SqliteStatsStore)) {
+            Log.d("DEBUG", "StatsBenchmark: statistics are not kept in the database, nothing to measure");
+            return null;
+        }
+        SqliteStatsStore db = (SqliteStatsStore) store;
+        long now = System.currentTimeMillis();
+
+        long start = System.nanoTime();
+        Map<Integer, int[]> week = db.countAnswersPerModule(now - WEEK_MS, now);
+        Log.d("DEBUG", "StatsBenchmark: last week across modules: " + week.size() + " module(s) in "
+                + millisSince(start) + " ms");
+
+        double worst = 0;
+        for (Module mod : params) {
+            start = System.nanoTime();
+            int[] recent = db.countAnswers(mod.getId(), now - WEEK_MS, now);
+            double windowMillis = millisSince(start);
+            start = System.nanoTime();
+            int[] exercise = db.countExerciseAnswers(mod.getId(), 0);
+            double exerciseMillis = millisSince(start);
+            Log.d("DEBUG", "StatsBenchmark: module " + mod.getId() + " last week: " + recent[1] + "/" + recent[0]
+                    + " in " + windowMillis + " ms, exercise 0: " + exercise[1] + "/" + exercise[0] + " in "
+                    + exerciseMillis + " ms");
+            worst = Math.max(worst, Math.max(windowMillis, exerciseMillis));
+        }
+        Log.d("DEBUG", "StatsBenchmark: slowest module query " + worst + " ms");
+        return null;
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
@@ -0,0 +1,531 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * A snapshot of the statistics of one or more devices, which merges with another snapshot without losing the
+ * answers of either, so progress made on several devices can be combined through any shared directory.
+ * <p>
+ * A snapshot is a directory holding:<br>
+ * - counters.bin: per device, Module and exercise the amount of answers and correct answers given on that device.
+ *   A device only ever adds to its own counters, so two snapshots are merged by keeping the larger of each pair of
+ *   counters, which gives the same result however often and in whatever order snapshots are merged. The format is
+ *   magic {@link #COUNTERS_MAGIC} (int), format version {@link #COUNTERS_VERSION} (byte), the amount of devices
+ *   (int), then per device its id (UTF), the amount of counters (int) and per counter the Module id, the exercise
+ *   index, the amount of answers and correct answers (int each). Devices are sorted by id and counters by Module
+ *   and exercise, so a merge is a single pass over both files.<br>
+ * - [device id]/stats_[id].log: each Module's answer log of that device, in the {@link LogStatsStore} format. A
+ *   merge keeps the log of the snapshot whose counters count more answers for it.
+ * <p>
+ * Every device keeps its own snapshot in its private storage. Exporting writes the answers of this device into
+ * it and merges it into the given directory, importing merges the given directory into it. The answers of the
+ * other devices in the local snapshot are added to the totals and per exercise counts of {@link ModuleStats}; the
+ * recent windows and daily counts only cover the answers given on this device.
+ * <p>
+ * Since counters only grow, resetting a Module's statistics does not take back answers that were exported
+ * before. Everything here does file I/O and belongs on a background thread, except {@link #addRemote}, which only
+ * uses the counts {@link #loadRemoteCounts} read beforehand, so the Module list never reads the snapshot.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class StatsSnapshot {
+
+    private static final String SNAPSHOT_DIRNAME = "snapshot";
+    private static final String COUNTERS_FILENAME = "counters.bin";
+    /** Identifies a counters file, "ESNP" */
+    private static final int COUNTERS_MAGIC = 0x45534e50;
+    /** Version of the counters format, bump when the layout changes */
+    private static final int COUNTERS_VERSION = 1;
+    /** The highest exercise index a counter may have, snapshots come from outside the app */
+    private static final int MAX_EXERCISE_INDEX = 0xffff;
+
+    /** Per Module the counts of the other devices in the local snapshot, null until read */
+    private static Map<Integer, RemoteCounts> remoteCache = null;
+    /** Guards the device id and {@link #remoteCache}, so the Module list does not wait for a merge to finish */
+    private static final Object cacheLock = new Object();
+
+    /**
+     * The answers given to a Module on other devices
+     */
+    static class RemoteCounts {
+        /** Per exercise index the amount of answers and correct answers */
+        final int[] exerciseAnswers, exerciseCorrect;
+        /** The amount of answers and correct answers, including the ones without an exercise index */
+        final int totalAnswers, totalCorrect;
+
+        private RemoteCounts(int[] exerciseAnswers, int[] exerciseCorrect, int totalAnswers, int totalCorrect) {
+            this.exerciseAnswers = exerciseAnswers;
+            this.exerciseCorrect = exerciseCorrect;
+            this.totalAnswers = totalAnswers;
+            this.totalCorrect = totalCorrect;
+        }
+    }
+
+    /**
+     * @return The id of this device in snapshots, generated on first use
+     */
+    public static String getDeviceId(Context ctx) {
+        synchronized (cacheLock) {
+            SharedPreferences settings = ctx.getSharedPreferences(Main.PREFS_NAME, Context.MODE_PRIVATE);
+            String deviceId = settings.getString(Main.PREFS_DEVICE_ID, null);
+            if(deviceId == null) {
+                deviceId = UUID.randomUUID().toString();
+                settings.edit().putString(Main.PREFS_DEVICE_ID, deviceId).commit();
+            }
+            return deviceId;
+        }
+    }
+
+    /**
+     * Write the statistics of this device into the local snapshot, saving any unsaved answers first, and merge the
+     * local snapshot into the given directory
+     * @param ctx The application context
+     * @param dir The snapshot directory to merge into, created if it does not exist
+     * @throws IOException If the statistics could not be read or either snapshot could not be written
+     */
+    public static synchronized void exportTo(Context ctx, File dir) throws IOException {
+        try {
+            StatsWriter.getInstance(ctx).flushAndWait();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while saving statistics");
+        }
+        File local = getLocalDir(ctx);
+        writeDevice(ctx, local);
+        merge(local, dir);
+    }
+
+    /**
+     * Merge the given snapshot directory into the local snapshot and add the answers of the other devices to the
+     * statistics of the installed Modules
+     * @param ctx The application context
+     * @param dir The snapshot directory to merge in
+     * @return False if the directory holds no snapshot
+     * @throws IOException If the snapshot could not be read or the local snapshot could not be written
+     */
+    public static synchronized boolean importFrom(Context ctx, File dir) throws IOException {
+        if(!new File(dir, COUNTERS_FILENAME).exists())
+            return false;
+        merge(dir, getLocalDir(ctx));
+        loadRemoteCounts(ctx);
+        List<Module> modules = Main.getModuleList();
+        for (Module mod : modules) {
+            mod.refreshRemoteStats();
+        }
+        // Lets the Module list show the new statistics
+        Main.getModuleRegistry().putAll(modules);
+        return true;
+    }
+
+    /**
+     * Merge two snapshots both ways through the given directory, so it and this device end up with the answers of
+     * every device that synced with it
+     * @see #importFrom
+     * @see #exportTo
+     */
+    public static synchronized void sync(Context ctx, File dir) throws IOException {
+        importFrom(ctx, dir);
+        exportTo(ctx, dir);
+    }
+
+    /**
+     * Merge one snapshot directory into another, in time linear in the size of both. Merging a snapshot that was
+     * merged before changes nothing.
+     * @param from The snapshot to merge in, left as it is
+     * @param into The snapshot to merge into, created if it does not exist
+     * @throws IOException If either snapshot can not be read or the result could not be written
+     */
+    public static void merge(File from, File into) throws IOException {
+        Counters source = Counters.read(new File(from, COUNTERS_FILENAME));
+        if(source.size == 0)
+            return;
+        if(!into.isDirectory() && !into.mkdirs())
+            throw new IOException("Could not create " + into.getPath());
+        File countersFile = new File(into, COUNTERS_FILENAME);
+        Counters target = Counters.read(countersFile);
+
+        // A device's log only grows with its counters, so the one that counts more answers is the newer one. The
+        // logs are copied before the counters are written, an interrupted merge copies them again next time.
+        Map<String, Long> targetTotals = target.getLogTotals();
+        for (Map.Entry<String, Long> total : source.getLogTotals().entrySet()) {
+            Long known = targetTotals.get(total.getKey());
+            if(known != null && known >= total.getValue())
+                continue;
+            File log = new File(from, total.getKey());
+            if(log.exists())
+                copyFile(log, new File(into, total.getKey()));
+        }
+        Counters.merge(source, target).write(countersFile);
+        Log.d("DEBUG", "StatsSnapshot: merged " + source.size + " counters into " + target.size);
+    }
+
+    /**
+     * Read the answers given on other devices from the local snapshot, called while the Modules are loaded and
+     * after every import, on a background thread
+     * @param ctx The application context
+     */
+    static void loadRemoteCounts(Context ctx) {
+        Map<Integer, RemoteCounts> remote;
+        try {
+            remote = readRemoteCounts(new File(getLocalDir(ctx), COUNTERS_FILENAME), getDeviceId(ctx));
+        } catch (IOException e) {
+            e.printStackTrace();
+            remote = new HashMap<>();
+        }
+        synchronized (cacheLock) {
+            remoteCache = remote;
+        }
+    }
+
+    /**
+     * Returns the answers given to a Module on other devices, according to the local snapshot, reading it if
+     * {@link #loadRemoteCounts} did not yet
+     * @param ctx The application context
+     * @param moduleId The id of the Module
+     * @return The counts, or null if no other device answered the Module
+     */
+    static RemoteCounts getRemoteCounts(Context ctx, int moduleId) {
+        synchronized (cacheLock) {
+            if(remoteCache != null)
+                return remoteCache.get(moduleId);
+        }
+        loadRemoteCounts(ctx);
+        synchronized (cacheLock) {
+            return remoteCache.get(moduleId);
+        }
+    }
+
+    /**
+     * @return The summary with the answers given on other devices added, as far as {@link #loadRemoteCounts} read
+     * them, safe to call on the UI thread
+     */
+    static StatsSummary addRemote(int moduleId, StatsSummary local) {
+        RemoteCounts remote;
+        synchronized (cacheLock) {
+            remote = remoteCache != null ? remoteCache.get(moduleId) : null;
+        }
+        if(remote == null)
+            return local;
+        return new StatsSummary(local.getAnswers() + remote.totalAnswers, local.getCorrect() + remote.totalCorrect,
+                local.getLastPracticed());
+    }
+
+    private static File getLocalDir(Context ctx) {
+        return new File(ctx.getDir("files", Context.MODE_PRIVATE), SNAPSHOT_DIRNAME);
+    }
+
+    /**
+     * Replace this device's logs and counters in the local snapshot with its current statistics
+     */
+    private static void writeDevice(Context ctx, File local) throws IOException {
+        String deviceId = getDeviceId(ctx);
+        File deviceDir = new File(local, deviceId);
+        if(!deviceDir.isDirectory() && !deviceDir.mkdirs())
+            throw new IOException("Could not create " + deviceDir.getPath());
+        LogStatsStore logs = new LogStatsStore(deviceDir);
+        StatsStore store = ModuleStats.getStore(ctx);
+        StatsStore other = ModuleStats.getOtherStore(ctx);
+        Set<Integer> ids = new TreeSet<>(store.listModules());
+        if(other != null)
+            ids.addAll(other.listModules());
+
+        Counters own = new Counters();
+        for (int id : ids) {
+            // Modules that were not loaded since the store was changed still have their answers in the other one
+            StatsStore.Cursor cursor = store.open(id);
+            if(cursor == null && other != null)
+                cursor = other.open(id);
+            if(cursor == null)
+                continue;
+            // Indexed by exercise index + 1, answers without an exercise index are counted at 0
+            int[] answers = new int[0], correct = new int[0];
+            StatsStore.Writer writer = logs.startReplace(id);
+            try {
+                while (cursor.moveToNext()) {
+                    int slot = cursor.getExerciseIndex() + 1;
+                    if(slot < 0)
+                        continue;
+                    if(slot >= answers.length) {
+                        answers = Arrays.copyOf(answers, Math.max(slot + 1, answers.length * 2));
+                        correct = Arrays.copyOf(correct, answers.length);
+                    }
+                    answers[slot] += cursor.getAnswers();
+                    correct[slot] += cursor.getCorrect();
+                    if(cursor.isRollup())
+                        writer.addRollup(cursor.getDay(), cursor.getExerciseIndex(), cursor.getAnswers(),
+                                cursor.getCorrect());
+                    else
+                        writer.addAnswer(cursor.getExerciseIndex(), cursor.getCorrect() != 0, cursor.getTimestamp());
+                }
+                writer.commit();
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            } finally {
+                cursor.close();
+            }
+            for (int slot = 0; slot < answers.length; slot++) {
+                if(answers[slot] > 0)
+                    own.add(deviceId, id, slot - 1, answers[slot], correct[slot]);
+            }
+        }
+
+        File countersFile = new File(local, COUNTERS_FILENAME);
+        Counters.merge(Counters.read(countersFile).without(deviceId), own).write(countersFile);
+    }
+
+    /**
+     * @return Per Module the counts of all devices but the given one
+     */
+    private static Map<Integer, RemoteCounts> readRemoteCounts(File countersFile, String deviceId)
+            throws IOException {
+        Counters counters = Counters.read(countersFile);
+        Map<Integer, int[][]> perModule = new HashMap<>();
+        for (int i = 0; i < counters.size; i++) {
+            if(counters.devices[i].equals(deviceId))
+                continue;
+            // Per exercise index + 1 the answers and correct answers, answers without an exercise index at 0
+            int[][] counts = perModule.get(counters.modules[i]);
+            int slot = counters.exercises[i] + 1;
+            if(counts == null || slot >= counts[0].length) {
+                int size = Math.max(slot + 1, counts == null ? 0 : counts[0].length * 2);
+                counts = counts == null ? new int[][] { new int[size], new int[size] }
+                        : new int[][] { Arrays.copyOf(counts[0], size), Arrays.copyOf(counts[1], size) };
+                perModule.put(counters.modules[i], counts);
+            }
+            counts[0][slot] += counters.answers[i];
+            counts[1][slot] += counters.correct[i];
+        }
+
+        Map<Integer, RemoteCounts> remote = new HashMap<>();
+        for (Map.Entry<Integer, int[][]> entry : perModule.entrySet()) {
+            int[] answers = entry.getValue()[0], correct = entry.getValue()[1];
+            int totalAnswers = 0, totalCorrect = 0;
+            for (int slot = 0; slot < answers.length; slot++) {
+                totalAnswers += answers[slot];
+                totalCorrect += correct[slot];
+            }
+            remote.put(entry.getKey(), new RemoteCounts(Arrays.copyOfRange(answers, 1, answers.length),
+                    Arrays.copyOfRange(correct, 1, correct.length), totalAnswers, totalCorrect));
+        }
+        return remote;
+    }
+
+    /**
+     * Copy a file by writing a temporary file next to the target and renaming it over the target
+     */
+    private static void copyFile(File source, File target) throws IOException {
+        File parent = target.getParentFile();
+        if(!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Could not create " + parent.getPath());
+        File tmpFile = new File(parent, target.getName() + ".tmp");
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) > 0) {
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if(!tmpFile.renameTo(target)) {
+            if(!tmpFile.delete())
+                Log.d("DEBUG", "Could not delete " + tmpFile.getName());
+            throw new IOException("Could not replace " + target.getName());
+        }
+    }
+
+    /**
+     * The counters of a snapshot, as columns sorted by device id, Module id and exercise index
+     */
+    static class Counters {
+        int size = 0;
+        String[] devices = new String[16];
+        int[] modules = new int[16], exercises = new int[16], answers = new int[16], correct = new int[16];
+
+        /**
+         * Append a counter, which must sort after the last one
+         */
+        void add(String device, int module, int exercise, int answers, int correct) {
+            if(size == devices.length) {
+                int capacity = size * 2;
+                devices = Arrays.copyOf(devices, capacity);
+                modules = Arrays.copyOf(modules, capacity);
+                exercises = Arrays.copyOf(exercises, capacity);
+                this.answers = Arrays.copyOf(this.answers, capacity);
+                this.correct = Arrays.copyOf(this.correct, capacity);
+            }
+            devices[size] = device;
+            modules[size] = module;
+            exercises[size] = exercise;
+            this.answers[size] = answers;
+            this.correct[size] = correct;
+            size++;
+        }
+
+        /**
+         * @return The counters of all devices but the given one
+         */
+        Counters without(String device) {
+            Counters result = new Counters();
+            for (int i = 0; i < size; i++) {
+                if(!devices[i].equals(device))
+                    result.add(devices[i], modules[i], exercises[i], answers[i], correct[i]);
+            }
+            return result;
+        }
+
+        /**
+         * @return Per log file, relative to the snapshot directory, the amount of answers the counters count for it
+         */
+        Map<String, Long> getLogTotals() {
+            Map<String, Long> totals = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                String key = devices[i] + "/stats_" + modules[i] + ".log";
+                Long total = totals.get(key);
+                totals.put(key, (total != null ? total : 0) + answers[i]);
+            }
+            return totals;
+        }
+
+        /**
+         * Merge two sets of counters by walking both in order, counters both have keep the larger value
+         */
+        static Counters merge(Counters a, Counters b) {
+            Counters result = new Counters();
+            int i = 0, j = 0;
+            while (i < a.size || j < b.size) {
+                int order = i == a.size ? 1 : j == b.size ? -1 : compare(a, i, b, j);
+                if(order < 0) {
+                    result.add(a.devices[i], a.modules[i], a.exercises[i], a.answers[i], a.correct[i]);
+                    i++;
+                } else if(order > 0) {
+                    result.add(b.devices[j], b.modules[j], b.exercises[j], b.answers[j], b.correct[j]);
+                    j++;
+                } else {
+                    result.add(a.devices[i], a.modules[i], a.exercises[i], Math.max(a.answers[i], b.answers[j]),
+                            Math.max(a.correct[i], b.correct[j]));
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+
+        private static int compare(Counters a, int i, Counters b, int j) {
+            int order = a.devices[i].compareTo(b.devices[j]);
+            if(order != 0)
+                return order;
+            if(a.modules[i] != b.modules[j])
+                return a.modules[i] < b.modules[j] ? -1 : 1;
+            if(a.exercises[i] != b.exercises[j])
+                return a.exercises[i] < b.exercises[j] ? -1 : 1;
+            return 0;
+        }
+
+        /**
+         * @return The counters in the file, empty if it does not exist
+         * @throws IOException If the file can not be read, is not a counters file or is out of order
+         */
+        static Counters read(File file) throws IOException {
+            Counters counters = new Counters();
+            if(!file.exists())
+                return counters;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if(in.readInt() != COUNTERS_MAGIC)
+                    throw new IOException(file.getName() + " is not a snapshot counters file");
+                int version = in.readByte();
+                if(version > COUNTERS_VERSION)
+                    throw new IOException(file.getName() + " has unknown format version " + version);
+                int deviceCount = in.readInt();
+                for (int d = 0; d < deviceCount; d++) {
+                    String device = in.readUTF();
+                    // Device ids name directories in the snapshot
+                    if(!device.matches("[0-9A-Za-z-]+"))
+                        throw new IOException(file.getName() + " has an invalid device id");
+                    int count = in.readInt();
+                    for (int c = 0; c < count; c++) {
+                        int module = in.readInt(), exercise = in.readInt(), answers = in.readInt();
+                        int correct = in.readInt();
+                        // -1 counts the answers without an exercise index
+                        if(exercise < -1 || exercise > MAX_EXERCISE_INDEX || answers < 0 || correct < 0)
+                            throw new IOException(file.getName() + " has an invalid counter");
+                        counters.add(device, module, exercise, answers, correct);
+                        if(counters.size > 1 && compare(counters, counters.size - 2, counters, counters.size - 1) >= 0)
+                            throw new IOException(file.getName() + " is out of order");
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return counters;
+        }
+
+        /**
+         * Write the counters to the file through a temporary file, so an interrupted write leaves the old file
+         */
+        void write(File file) throws IOException {
+            File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(COUNTERS_MAGIC);
+                out.writeByte(COUNTERS_VERSION);
+                int deviceCount = 0;
+                for (int i = 0; i < size; i++) {
+                    if(i == 0 || !devices[i].equals(devices[i - 1]))
+                        deviceCount++;
+                }
+                out.writeInt(deviceCount);
+                int start = 0;
+                while (start < size) {
+                    int end = start;
+                    while (end < size && devices[end].equals(devices[start])) {
+                        end++;
+                    }
+                    out.writeUTF(devices[start]);
+                    out.writeInt(end - start);
+                    for (int i = start; i < end; i++) {
+                        out.writeInt(modules[i]);
+                        out.writeInt(exercises[i]);
+                        out.writeInt(answers[i]);
+                        out.writeInt(correct[i]);
+                    }
+                    start = end;
+                }
+            } finally {
+                out.close();
+            }
+            if(!tmpFile.renameTo(file)) {
+                if(!tmpFile.delete())
+                    Log.d("DEBUG", "Could not delete " + tmpFile.getName());
+                throw new IOException("Could not replace " + file.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package pk.contender.earmouse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Persistent storage for the answers recorded by {@link pk.contender.earmouse.ModuleStats}.
+ * <p>
+ * Answers are appended, or replaced or purged as a whole per Module. {@link LogStatsStore} keeps an append-only log
+ * file per Module, {@link SqliteStatsStore} keeps all Modules in one indexed database.
+ * <p>
+ * Besides loading and replacing whole histories, stored answers can be streamed through a {@link Cursor} and
+ * written through a {@link Writer}, one at a time, so histories of any length can be exported, imported and merged
+ * in constant memory.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public interface StatsStore {
+
+    /**
+     * Reads the stored rollups and answers of a Module one at a time, the rollups first.
+     */
+    public interface Cursor extends Closeable {
+        /**
+         * Move to the next rollup or answer
+         * @return False if there are no more
+         * @throws IOException If the stored answers can not be read
+         */
+        public boolean moveToNext() throws IOException;
+
+        /**
+         * @return True if the current row is a rollup, false if it is an answer
+         */
+        public boolean isRollup();
+
+        public int getExerciseIndex();
+
+        /**
+         * @return The time of an answer in milliseconds, to the second
+         */
+        public long getTimestamp();
+
+        /**
+         * @return The local day of a rollup, in days since the epoch
+         */
+        public int getDay();
+
+        /**
+         * @return The amount of answers of a rollup, 1 for an answer
+         */
+        public int getAnswers();
+
+        /**
+         * @return The amount of correct answers of a rollup, 1 for a correct answer and 0 otherwise
+         */
+        public int getCorrect();
+    }
+
+    /**
+     * Writes the complete history of a Module one rollup or answer at a time, all rollups before the first answer.
+     * The stored history is only replaced by {@link #commit}.
+     */
+    public interface Writer {
+        public void addRollup(int day, int exerciseIndex, int answers, int correct) throws IOException;
+
+        /**
+         * @param timestamp The time of the answer in milliseconds, answers should be added in the order of time
+         */
+        public void addAnswer(int exerciseIndex, boolean result, long timestamp) throws IOException;
+
+        /**
+         * Replace the stored history with the written one
+         * @throws IOException If it could not be replaced, the stored history is left as it was in that case
+         */
+        public void commit() throws IOException;
+
+        /**
+         * Discard the written history, the stored one is left as it was
+         */
+        public void abort();
+    }
+
+    /**
+     * Read all answers of a Module
+     * @param moduleId The id of the Module
+     * @return The answers in the order they were given, or null if this store has none for the Module
+     * @throws IOException If the stored answers can not be read
+     */
+    public AnswerHistory load(int moduleId) throws IOException;
+
+    /**
+     * Store answers of a Module after the ones already stored
+     * @param moduleId The id of the Module
+     * @param answers The new answers, see {@link AnswerHistory#copy}
+     * @throws IOException If the answers could not be stored
+     */
+    public void append(int moduleId, AnswerHistory answers) throws IOException;
+
+    /**
+     * Replace all stored answers of a Module, including rollups, used for compaction and moving between stores
+     * @param moduleId The id of the Module
+     * @param history All of the Module's answers
+     * @throws IOException If the answers could not be stored, the stored ones are left as they were in that case
+     */
+    public void replace(int moduleId, AnswerHistory history) throws IOException;
+
+    /**
+     * Open a cursor over the stored answers of a Module
+     * @param moduleId The id of the Module
+     * @return A cursor positioned before the first rollup or answer, or null if this store has none for the Module
+     * @throws IOException If the stored answers can not be read
+     */
+    public Cursor open(int moduleId) throws IOException;
+
+    /**
+     * Start writing a new history for a Module, it replaces the stored one on {@link Writer#commit()}
+     * @param moduleId The id of the Module
+     * @return A Writer for the new history
+     * @throws IOException If the history can not be written
+     */
+    public Writer startReplace(int moduleId) throws IOException;
+
+    /**
+     * @return The ids of all Modules this store has answers for
+     */
+    public Set<Integer> listModules();
+
+    /**
+     * Delete all answers of a Module
+     * @param moduleId The id of the Module
+     * @return True if there were answers to delete
+     */
+    public boolean purge(int moduleId);
+}
@@ -0,0 +1,154 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The totals of a Module's statistics: the amount of answers, the amount of correct answers and the time of the
+ * last answer.
+ * <p>
+ * {@link ModuleStats} writes a summary to stats_[id].sum every time it saves, so the Module list can show
+ * success rates without loading any answer history. The file is {@link #FILE_SIZE} bytes: magic
+ * {@link #SUMMARY_MAGIC} (int), format version {@link #SUMMARY_VERSION} (byte), answers (int), correct answers (int),
+ * time of the last answer in milliseconds or 0 (long).
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class StatsSummary {
+
+    /** Identifies a summary file, "ESUM" */
+    private static final int SUMMARY_MAGIC = 0x4553554d;
+    /** Version of the summary format, bump when the layout changes */
+    private static final int SUMMARY_VERSION = 1;
+    private static final int FILE_SIZE = 4 + 1 + 4 + 4 + 8;
+
+    /** The summary of a Module without answers */
+    public static final StatsSummary EMPTY = new StatsSummary(0, 0, 0);
+
+    private final int answers;
+    private final int correct;
+    private final long lastPracticed;
+
+    /**
+     * @param answers The amount of answers
+     * @param correct The amount of correct answers
+     * @param lastPracticed The time of the last answer in milliseconds, 0 if there is none
+     */
+    public StatsSummary(int answers, int correct, long lastPracticed) {
+        this.answers = answers;
+        this.correct = correct;
+        this.lastPracticed = lastPracticed;
+    }
+
+    public int getAnswers() {
+        return answers;
+    }
+
+    public int getCorrect() {
+        return correct;
+    }
+
+    /**
+     * @return The time of the last answer in milliseconds, 0 if there is none
+     */
+    public long getLastPracticed() {
+        return lastPracticed;
+    }
+
+    /**
+     * @return The percentage of answers that is correct or -1 if there are none
+     * @see ModuleStats#calculateSuccessRate()
+     */
+    public int getSuccessRate() {
+        if(answers == 0)
+            return -1;
+        return (int)(((float)correct / (float)answers) * 100);
+    }
+
+    /**
+     * @return The amount of exercises completed, which is the amount of correct answers
+     * @see ModuleStats#exercisesCompleted()
+     */
+    public int getExercisesCompleted() {
+        return correct;
+    }
+
+    /**
+     * Read the summary of a Module
+     * @param context The application context
+     * @param moduleId The id of the Module
+     * @return The summary, or null if there is no readable summary
+     */
+    public static StatsSummary read(Context context, int moduleId) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(getFile(context, moduleId)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if(in.readInt() != SUMMARY_MAGIC || in.readUnsignedByte() != SUMMARY_VERSION)
+                return null;
+            return new StatsSummary(in.readInt(), in.readInt(), in.readLong());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Write the summary of a Module, a summary that can not be written is left out, it is rebuilt on the next read
+     * @param context The application context
+     * @param moduleId The id of the Module
+     */
+    public void write(Context context, int moduleId) {
+        File summaryFile = getFile(context, moduleId);
+        try {
+            // Small enough to be written with a single write
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(FILE_SIZE);
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(SUMMARY_MAGIC);
+            out.writeByte(SUMMARY_VERSION);
+            out.writeInt(answers);
+            out.writeInt(correct);
+            out.writeLong(lastPracticed);
+            FileOutputStream fos = new FileOutputStream(summaryFile);
+            try {
+                buf.writeTo(fos);
+            } finally {
+                fos.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            delete(context, moduleId);
+        }
+    }
+
+    /**
+     * Delete the summary of a Module
+     */
+    public static void delete(Context context, int moduleId) {
+        File summaryFile = getFile(context, moduleId);
+        if(summaryFile.exists() && !summaryFile.delete())
+            Log.d("DEBUG", "Could not delete " + summaryFile.getName());
+    }
+
+    private static File getFile(Context context, int moduleId) {
+        return new File(context.getDir("files", Context.MODE_PRIVATE), "stats_" + moduleId + ".sum");
+    }
+}
@@ -0,0 +1,395 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Exports the statistics of all Modules to a single file and imports them back, e.g. on another device.
+ * <p>
+ * Both directions stream: the export reads each Module's stored answers through a {@link StatsStore.Cursor} and
+ * the import merges each Module's answers straight from the file into its store with
+ * {@link ModuleStats#mergeStored}, so memory use does not depend on the length of the histories. Files ending in
+ * .csv are written as CSV with the columns kind, module, exercise, time, answers and correct, where kind is "a"
+ * for an answer, whose time is in milliseconds, and "r" for a rollup, whose time is its local day in days since
+ * the epoch. All other files are written as NDJSON, one object per line with the keys module, exercise, time and
+ * result for an answer and module, exercise, day, answers and correct for a rollup.
+ * <p>
+ * An export lists each Module's rollups before its answers and its answers in order of time, an import merges
+ * each run of rows of the same Module separately, so files in that order merge in one pass per Module. A run ends
+ * where the Module changes, a rollup follows an answer or the time of the answers goes back. The answers of a
+ * Module that are in both stores, see {@link ModuleStats#getOtherStore}, are exported as one run per store. Both
+ * do file I/O and belong on a background thread.
+ * <p>
+ * Neither answers nor rollups record the device they come from, so an import can only recognize what it already
+ * has by its contents: an answer by its second, exercise and result, a rollup by its day and exercise. That makes
+ * re-importing an export harmless, but combining the histories of two devices is only exact as long as neither
+ * compacted the days they both practiced: of two rollups of the same day and exercise only the larger is kept,
+ * and answers in an export that the importing device has since folded into a rollup are counted again. Use a
+ * {@link StatsSnapshot} to combine the progress of several devices.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class StatsTransfer {
+
+    private static final String CSV_HEADER = "kind,module,exercise,time,answers,correct";
+
+    /**
+     * Write the statistics of all Modules to the given file, saving any unsaved answers first
+     * @param ctx The application context
+     * @param file The file to write, replaced if it exists
+     * @return The amount of rows written
+     * @throws IOException If the file could not be written, it is deleted in that case
+     */
+    public static int exportStats(Context ctx, File file) throws IOException {
+        try {
+            StatsWriter.getInstance(ctx).flushAndWait();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while saving statistics");
+        }
+
+        boolean csv = isCsv(file);
+        StatsStore store = ModuleStats.getStore(ctx);
+        StatsStore other = ModuleStats.getOtherStore(ctx);
+        Set<Integer> ids = new TreeSet<>(store.listModules());
+        if(other != null)
+            ids.addAll(other.listModules());
+
+        int rows = 0;
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            if(csv)
+                out.write(CSV_HEADER + "\n");
+            StringBuilder line = new StringBuilder();
+            for (int id : ids) {
+                rows += exportRun(out, line, csv, id, store);
+                // Answers given since the store was changed by Modules whose statistics were loaded before that
+                if(other != null)
+                    rows += exportRun(out, line, csv, id, other);
+            }
+        } catch (IOException e) {
+            out.close();
+            if(!file.delete())
+                Log.d("DEBUG", "Could not delete " + file.getName());
+            throw e;
+        }
+        out.close();
+        Log.d("DEBUG", "StatsTransfer: exported " + rows + " rows of " + ids.size() + " module(s)");
+        return rows;
+    }
+
+    /**
+     * Write the rollups and answers a store has for a Module
+     * @return The amount of rows written
+     */
+    private static int exportRun(Writer out, StringBuilder line, boolean csv, int id, StatsStore store)
+            throws IOException {
+        StatsStore.Cursor cursor = store.open(id);
+        if(cursor == null)
+            return 0;
+        int rows = 0;
+        try {
+            while (cursor.moveToNext()) {
+                line.setLength(0);
+                if(csv)
+                    formatCsv(line, id, cursor);
+                else
+                    formatJson(line, id, cursor);
+                out.write(line.append('\n').toString());
+                rows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Merge the statistics in the given file into the stored statistics
+     * <p>
+     * Each Module's statistics are merged as a whole, if the import fails halfway the Modules before the failure
+     * are merged and the others are left as they were.
+     * @param ctx The application context
+     * @param file A file written by {@link #exportStats}
+     * @return The amount of rows read
+     * @throws IOException If the file can not be read or a Module's statistics could not be stored
+     */
+    public static int importStats(Context ctx, File file) throws IOException {
+        RowReader rows = new RowReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8")),
+                isCsv(file));
+        List<Module> updated = new ArrayList<>();
+        try {
+            boolean hasRow = rows.next();
+            while (hasRow) {
+                RunCursor run = new RunCursor(rows);
+                Module mod = Main.getModuleById(run.moduleId);
+                if(mod != null) {
+                    mod.importStats(run);
+                    updated.add(mod);
+                } else {
+                    // Statistics of Modules that are not installed are kept, they show up once the Module is
+                    ModuleStats.mergeStored(ctx, ModuleStats.getStore(ctx), run.moduleId, run);
+                }
+                hasRow = run.hasNextRun();
+            }
+        } finally {
+            rows.close();
+            if(!updated.isEmpty()) {
+                ModuleCatalog.putAll(ctx, updated);
+                // Lets the Module list show the new statistics
+                Main.getModuleRegistry().putAll(updated);
+            }
+        }
+        Log.d("DEBUG", "StatsTransfer: imported " + rows.count + " rows");
+        return rows.count;
+    }
+
+    private static boolean isCsv(File file) {
+        return file.getName().toLowerCase().endsWith(".csv");
+    }
+
+    private static void formatCsv(StringBuilder line, int moduleId, StatsStore.Cursor cursor) {
+        line.append(cursor.isRollup() ? 'r' : 'a').append(',')
+                .append(moduleId).append(',')
+                .append(cursor.getExerciseIndex()).append(',')
+                .append(cursor.isRollup() ? cursor.getDay() : cursor.getTimestamp()).append(',')
+                .append(cursor.getAnswers()).append(',')
+                .append(cursor.getCorrect());
+    }
+
+    private static void formatJson(StringBuilder line, int moduleId, StatsStore.Cursor cursor) {
+        line.append("{\"module\":").append(moduleId)
+                .append(",\"exercise\":").append(cursor.getExerciseIndex());
+        if(cursor.isRollup()) {
+            line.append(",\"day\":").append(cursor.getDay())
+                    .append(",\"answers\":").append(cursor.getAnswers())
+                    .append(",\"correct\":").append(cursor.getCorrect());
+        } else {
+            line.append(",\"time\":").append(cursor.getTimestamp())
+                    .append(",\"result\":").append(cursor.getCorrect() != 0);
+        }
+        line.append('}');
+    }
+
+    /**
+     * Reads the rows of an exported file one at a time, the fields of the current row are reused for every row.
+     */
+    private static class RowReader {
+        private final BufferedReader in;
+        private final boolean csv;
+        private int lineNumber = 0;
+        /** The amount of rows read */
+        int count = 0;
+
+        int module, exercise, day, answers, correct;
+        long timestamp;
+        boolean rollup;
+
+        RowReader(BufferedReader in, boolean csv) {
+            this.in = in;
+            this.csv = csv;
+        }
+
+        /**
+         * Read the next row
+         * @return False at the end of the file
+         * @throws IOException If the file can not be read or the row is malformed
+         */
+        boolean next() throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                lineNumber++;
+                if(line == null)
+                    return false;
+                line = line.trim();
+            } while (line.isEmpty() || line.equals(CSV_HEADER));
+
+            try {
+                if(csv)
+                    parseCsv(line);
+                else
+                    parseJson(line);
+            } catch (NumberFormatException | IllegalStateException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+            }
+            count++;
+            return true;
+        }
+
+        private void parseCsv(String line) throws IOException {
+            String[] fields = line.split(",");
+            if(fields.length != 6)
+                throw new IOException("Line " + lineNumber + ": expected 6 fields");
+            if(fields[0].equals("r"))
+                rollup = true;
+            else if(fields[0].equals("a"))
+                rollup = false;
+            else
+                throw new IOException("Line " + lineNumber + ": unknown kind " + fields[0]);
+            module = Integer.parseInt(fields[1]);
+            exercise = Integer.parseInt(fields[2]);
+            if(rollup)
+                day = Integer.parseInt(fields[3]);
+            else
+                timestamp = Long.parseLong(fields[3]);
+            answers = Integer.parseInt(fields[4]);
+            correct = Integer.parseInt(fields[5]);
+            if(!rollup && (answers != 1 || (correct != 0 && correct != 1)))
+                throw new IOException("Line " + lineNumber + ": an answer counts as 1 answer and 0 or 1 correct");
+        }
+
+        private void parseJson(String line) throws IOException {
+            JsonReader reader = new JsonReader(new StringReader(line));
+            rollup = false;
+            answers = 1;
+            correct = 0;
+            module = exercise = -1;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case "module":
+                        module = reader.nextInt();
+                        break;
+                    case "exercise":
+                        exercise = reader.nextInt();
+                        break;
+                    case "time":
+                        timestamp = reader.nextLong();
+                        break;
+                    case "result":
+                        correct = reader.nextBoolean() ? 1 : 0;
+                        break;
+                    case "day":
+                        rollup = true;
+                        day = reader.nextInt();
+                        break;
+                    case "answers":
+                        answers = reader.nextInt();
+                        break;
+                    case "correct":
+                        correct = reader.nextInt();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            reader.close();
+            if(module < 0)
+                throw new IOException("Line " + lineNumber + ": no module");
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The rows of one Module, starting at the current row of a {@link RowReader}. The run ends at a row of another
+     * Module, at a rollup after an answer or at an answer older than the one before it, which starts the next run.
+     */
+    private static class RunCursor implements StatsStore.Cursor {
+        private final RowReader rows;
+        final int moduleId;
+        private boolean started = false, seenAnswer = false, ended = false;
+        /** The time of the last answer of this run */
+        private long lastTimestamp = Long.MIN_VALUE;
+        /** True if the reader stopped on a row that starts the next run */
+        private boolean nextRun = false;
+
+        RunCursor(RowReader rows) {
+            this.rows = rows;
+            moduleId = rows.module;
+        }
+
+        @Override
+        public boolean moveToNext() throws IOException {
+            if(ended)
+                return false;
+            if(started && !rows.next()) {
+                ended = true;
+                return false;
+            }
+            started = true;
+            if(rows.module != moduleId || (rows.rollup && seenAnswer)
+                    || (!rows.rollup && rows.timestamp < lastTimestamp)) {
+                ended = true;
+                nextRun = true;
+                return false;
+            }
+            if(!rows.rollup) {
+                seenAnswer = true;
+                lastTimestamp = rows.timestamp;
+            }
+            return true;
+        }
+
+        /**
+         * @return True if the rows of this run were read and the reader is on the first row of the next run
+         */
+        boolean hasNextRun() throws IOException {
+            // The merge reads a run to the end, rows it left are skipped
+            while (moveToNext()) {
+                Log.d("DEBUG", "StatsTransfer: skipping row of module " + moduleId);
+            }
+            return nextRun;
+        }
+
+        @Override
+        public boolean isRollup() {
+            return rows.rollup;
+        }
+
+        @Override
+        public int getExerciseIndex() {
+            return rows.exercise;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return rows.timestamp;
+        }
+
+        @Override
+        public int getDay() {
+            return rows.day;
+        }
+
+        @Override
+        public int getAnswers() {
+            return rows.answers;
+        }
+
+        @Override
+        public int getCorrect() {
+            return rows.correct;
+        }
+
+        @Override
+        public void close() {
+            // The reader is closed by importStats
+        }
+    }
+}
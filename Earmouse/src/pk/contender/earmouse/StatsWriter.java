@@ -0,0 +1,201 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Saves the statistics of Modules on a background thread, so answering an exercise never waits for the disk.
+ * <p>
+ * {@link #markDirty} only records that a Module has unsaved answers. Once no Module was marked for
+ * {@link #DEBOUNCE_MS}, or {@link #MAX_DELAY_MS} after the first unsaved answer if answers keep coming, all dirty
+ * Modules are flushed together: each one appends its new answers to its log and the {@link ModuleCatalog} is
+ * updated once for all of them. {@link #flush} skips the wait, it is called when the app is paused or low on
+ * memory.
+ * <p>
+ * The amount of dirty Modules and how long flushes take are kept for diagnostics, {@link Main} logs them in
+ * developer mode.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class StatsWriter {
+
+    /** How long to wait for more answers before flushing, in milliseconds */
+    private static final long DEBOUNCE_MS = 2000;
+    /** The longest an answer waits to be flushed while more answers keep coming, in milliseconds */
+    private static final long MAX_DELAY_MS = 10000;
+
+    private static StatsWriter instance = null;
+
+    private final Context mCtx;
+    private final Handler handler;
+    /** The Modules with unsaved answers, guarded by itself */
+    private final Set<Module> dirty = new LinkedHashSet<>();
+    /** When the oldest unsaved answer was marked in {@link SystemClock#uptimeMillis}, 0 if there is none, guarded
+     * by dirty */
+    private long firstDirtyTime = 0;
+
+    /* Flush metrics, guarded by dirty */
+    private int flushCount = 0;
+    private long lastFlushMillis = 0, totalFlushMillis = 0, maxFlushMillis = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushDirty();
+        }
+    };
+
+    private StatsWriter(Context context) {
+        mCtx = context.getApplicationContext();
+        HandlerThread thread = new HandlerThread("StatsWriter", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * @param context Any context, the writer holds on to the application context
+     * @return The writer, started on first use
+     */
+    public static synchronized StatsWriter getInstance(Context context) {
+        if(instance == null)
+            instance = new StatsWriter(context);
+        return instance;
+    }
+
+    /**
+     * Schedule the statistics of the given Module to be saved, returns immediately.
+     * @param mod The Module with new answers
+     */
+    public void markDirty(Module mod) {
+        long now = SystemClock.uptimeMillis();
+        long flushTime;
+        synchronized (dirty) {
+            dirty.add(mod);
+            if(firstDirtyTime == 0)
+                firstDirtyTime = now;
+            // Every new answer pushes the flush back, but not beyond the maximum delay
+            flushTime = Math.min(now + DEBOUNCE_MS, firstDirtyTime + MAX_DELAY_MS);
+        }
+        handler.removeCallbacks(flushTask);
+        handler.postAtTime(flushTask, flushTime);
+    }
+
+    /**
+     * Save all dirty Modules as soon as possible, without waiting for the debounce interval, returns immediately.
+     */
+    public void flush() {
+        handler.removeCallbacks(flushTask);
+        handler.post(flushTask);
+    }
+
+    /**
+     * Save all dirty Modules and wait until that is done, must not be called on the UI thread.
+     * @throws InterruptedException If the calling thread was interrupted while waiting
+     */
+    public void flushAndWait() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        handler.removeCallbacks(flushTask);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushDirty();
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    /**
+     * Forget about a Module whose statistics are being removed.
+     */
+    public void forget(Module mod) {
+        synchronized (dirty) {
+            dirty.remove(mod);
+        }
+    }
+
+    /**
+     * @return The amount of Modules waiting to be saved
+     */
+    public int getQueueDepth() {
+        synchronized (dirty) {
+            return dirty.size();
+        }
+    }
+
+    /**
+     * @return The amount of flushes that saved at least one Module
+     */
+    public int getFlushCount() {
+        synchronized (dirty) {
+            return flushCount;
+        }
+    }
+
+    /**
+     * @return How long the last flush took in milliseconds
+     */
+    public long getLastFlushMillis() {
+        synchronized (dirty) {
+            return lastFlushMillis;
+        }
+    }
+
+    /**
+     * @return How long a flush took on average in milliseconds, 0 if there was none yet
+     */
+    public long getAverageFlushMillis() {
+        synchronized (dirty) {
+            return flushCount == 0 ? 0 : totalFlushMillis / flushCount;
+        }
+    }
+
+    /**
+     * @return How long the slowest flush took in milliseconds
+     */
+    public long getMaxFlushMillis() {
+        synchronized (dirty) {
+            return maxFlushMillis;
+        }
+    }
+
+    /**
+     * Save every dirty Module, runs on the writer thread.
+     */
+    private void flushDirty() {
+        List<Module> mods;
+        synchronized (dirty) {
+            firstDirtyTime = 0;
+            if(dirty.isEmpty())
+                return;
+            mods = new ArrayList<>(dirty);
+            dirty.clear();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (Module mod : mods) {
+            mod.flushStats();
+        }
+        // Keep the statistics summaries in the catalog up to date, one write for all of them
+        ModuleCatalog.putAll(mCtx, mods);
+        long took = SystemClock.elapsedRealtime() - start;
+
+        synchronized (dirty) {
+            flushCount++;
+            lastFlushMillis = took;
+            totalFlushMillis += took;
+            maxFlushMillis = Math.max(maxFlushMillis, took);
+        }
+        Log.d("DEBUG", "StatsWriter: flushed " + mods.size() + " module(s) in " + took + " ms");
+    }
+}
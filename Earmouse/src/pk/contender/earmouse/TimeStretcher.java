@@ -0,0 +1,175 @@
+package pk.contender.earmouse;
+
+import java.util.Arrays;
+
+/**
+ * Changes the tempo of 16 bit little endian PCM audio without changing its pitch, using WSOLA
+ * (waveform similarity overlap-add).
+ * <p>
+ * The output is built from Hann windowed segments of {@link #WINDOW_FRAMES} frames placed every half window.
+ * Each segment is read from the input near the position the tempo calls for, shifted by up to
+ * {@link #TOLERANCE_FRAMES} to the point where it best matches how the previous segment would have continued,
+ * so the overlapping segments add up without phase cancellation.<br>
+ * The search is done in two passes on a mono downmix, first coarse and on every 4th frame only, then refined
+ * around the best coarse match, which keeps it fast enough for slow devices.
+ * <p>
+ * The overlap-add buffer and window are allocated once, {@link #process} allocates nothing.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class TimeStretcher {
+
+    /** Length of a segment, about 46ms at 44.1kHz */
+    private static final int WINDOW_FRAMES = 2048;
+    /** Distance between segments in the output */
+    private static final int HOP_FRAMES = WINDOW_FRAMES / 2;
+    /** How far a segment may be moved away from its nominal position to find a better match */
+    private static final int TOLERANCE_FRAMES = 512;
+    /** Step of the coarse search, also the frame step when comparing segments */
+    private static final int SEARCH_STEP = 4;
+
+    private final int channels;
+    /** Hann window, consecutive windows half a window apart add up to 1 */
+    private final float[] window = new float[WINDOW_FRAMES];
+    /** Overlap-add accumulator, interleaved */
+    private final float[] accumulator;
+
+    /**
+     * Construct a TimeStretcher
+     * @param channels The amount of interleaved channels of the audio
+     */
+    public TimeStretcher(int channels) {
+        this.channels = channels;
+        accumulator = new float[WINDOW_FRAMES * channels];
+        for (int i = 0; i < WINDOW_FRAMES; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / WINDOW_FRAMES));
+        }
+    }
+
+    /**
+     * Returns the amount of frames {@link #process} produces.
+     * @param inputFrames The length of the input in frames
+     * @param tempo The tempo factor, 0.5 plays at half speed
+     * @return The length of the output in frames
+     */
+    public int getOutputFrames(int inputFrames, float tempo) {
+        return getSegmentCount(inputFrames, tempo) * HOP_FRAMES + HOP_FRAMES;
+    }
+
+    private static int getSegmentCount(int inputFrames, float tempo) {
+        return (int) Math.ceil(inputFrames / (HOP_FRAMES * tempo));
+    }
+
+    /**
+     * Time-stretch a block of PCM data.
+     * @param in The input, 16 bit little endian interleaved PCM
+     * @param inOffset Offset of the first frame of the input in bytes
+     * @param inputFrames The length of the input in frames
+     * @param tempo The tempo factor, 0.5 plays at half speed
+     * @param out The output, must have room for {@link #getOutputFrames} frames from outOffset
+     * @param outOffset Offset in out to write the first frame at, in bytes
+     */
+    public void process(byte[] in, int inOffset, int inputFrames, float tempo, byte[] out, int outOffset) {
+        int segments = getSegmentCount(inputFrames, tempo);
+        double analysisHop = HOP_FRAMES * tempo;
+        int frameSize = channels * 2;
+        Arrays.fill(accumulator, 0f);
+
+        int previous = 0;
+        for (int segment = 0; segment < segments; segment++) {
+            int nominal = (int) (segment * analysisHop);
+            int start = segment == 0 ? 0 : findBestStart(in, inOffset, inputFrames, previous + HOP_FRAMES, nominal);
+            previous = start;
+
+            // Add the windowed segment to the accumulator, the first segment is not faded in to keep the attack
+            for (int i = 0; i < WINDOW_FRAMES; i++) {
+                int frame = start + i;
+                if(frame >= inputFrames)
+                    break;
+                float gain = segment == 0 && i < HOP_FRAMES ? 1f : window[i];
+                for (int channel = 0; channel < channels; channel++) {
+                    accumulator[i * channels + channel] += gain * sample(in, inOffset + frame * frameSize + channel * 2);
+                }
+            }
+
+            // The first hop of the accumulator will not receive any more segments
+            writeHop(out, outOffset + segment * HOP_FRAMES * frameSize);
+            System.arraycopy(accumulator, HOP_FRAMES * channels, accumulator, 0, HOP_FRAMES * channels);
+            Arrays.fill(accumulator, HOP_FRAMES * channels, accumulator.length, 0f);
+        }
+        writeHop(out, outOffset + segments * HOP_FRAMES * frameSize);
+    }
+
+    /**
+     * Find the segment start within {@link #TOLERANCE_FRAMES} of nominal that best matches the template
+     * @param template Start of the natural continuation of the previous segment
+     * @param nominal The position the tempo calls for
+     * @return The best start position
+     */
+    private int findBestStart(byte[] in, int inOffset, int inputFrames, int template, int nominal) {
+        int low = Math.max(0, nominal - TOLERANCE_FRAMES);
+        int high = nominal + TOLERANCE_FRAMES;
+
+        int best = nominal;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int candidate = low; candidate <= high; candidate += SEARCH_STEP) {
+            float score = correlate(in, inOffset, inputFrames, template, candidate);
+            if(score > bestScore) {
+                bestScore = score;
+                best = candidate;
+            }
+        }
+
+        int coarse = best;
+        for (int candidate = Math.max(0, coarse - SEARCH_STEP + 1); candidate < coarse + SEARCH_STEP; candidate++) {
+            if(candidate == coarse)
+                continue;
+            float score = correlate(in, inOffset, inputFrames, template, candidate);
+            if(score > bestScore) {
+                bestScore = score;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Cross-correlation of the mono downmix over the overlapping half window, using every SEARCH_STEP'th frame
+     */
+    private float correlate(byte[] in, int inOffset, int inputFrames, int a, int b) {
+        int frameSize = channels * 2;
+        float sum = 0;
+        for (int i = 0; i < HOP_FRAMES; i += SEARCH_STEP) {
+            if(a + i >= inputFrames || b + i >= inputFrames)
+                break;
+            float x = 0, y = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                x += sample(in, inOffset + (a + i) * frameSize + channel * 2);
+                y += sample(in, inOffset + (b + i) * frameSize + channel * 2);
+            }
+            sum += x * y;
+        }
+        return sum;
+    }
+
+    /**
+     * Write the first hop of the accumulator to out as 16 bit little endian PCM
+     */
+    private void writeHop(byte[] out, int offset) {
+        for (int i = 0; i < HOP_FRAMES * channels; i++) {
+            int s = (int) accumulator[i];
+            //clip into range
+            if (s > Short.MAX_VALUE) {
+                s = Short.MAX_VALUE;
+            } else if (s < Short.MIN_VALUE) {
+                s = Short.MIN_VALUE;
+            }
+            out[offset + 2 * i] = (byte) (s & 0xff);
+            out[offset + 2 * i + 1] = (byte) ((s >> 8) & 0xff);
+        }
+    }
+
+    private static short sample(byte[] buf, int offset) {
+        return (short) ((buf[offset] & 0xff) | (buf[offset + 1] << 8));
+    }
+}
@@ -0,0 +1,160 @@
+package pk.contender.earmouse;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A tuning system, expressed as a deviation in cents from equal temperament for every interval above the
+ * base note of an exercise.
+ * <p>
+ * Modules can declare their tuning in their JSON with the "tuning" field, either as the name of one of the
+ * presets ("equal", "just", "pythagorean") or as an object with a "name" and a "cents" array of 12 offsets,
+ * index 0 being the base note, 1 the minor second above it etc.<br>
+ * The offsets are applied by {@link SampleBank#getSample(int, float)}, which caches every detuned note.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class Tuning {
+
+    /** Twelve tone equal temperament, the tuning of our samples */
+    public static final Tuning EQUAL = new Tuning("equal", new float[12]);
+    /** 5-limit just intonation */
+    public static final Tuning JUST = new Tuning("just", new float[]
+            { 0f, 11.73f, 3.91f, 15.64f, -13.69f, -1.96f, -9.78f, 1.96f, 13.69f, -15.64f, 17.60f, -11.73f });
+    /** Pythagorean tuning, built from pure fifths */
+    public static final Tuning PYTHAGOREAN = new Tuning("pythagorean", new float[]
+            { 0f, -9.78f, 3.91f, -5.87f, 7.82f, -1.96f, 11.73f, 1.96f, -7.82f, 5.87f, -3.91f, 9.78f });
+
+    /** The name of this Tuning, used when writing it back to JSON */
+    private final String name;
+    /** Offset in cents from equal temperament, indexed by interval above the base note modulo 12 */
+    private final float[] cents;
+    /** The offsets as text, equal for two Tunings exactly when their offsets are */
+    private final String centsKey;
+
+    /**
+     * Construct a Tuning
+     * @param name The name of the tuning
+     * @param cents 12 offsets in cents from equal temperament, index 0 being the base note
+     */
+    public Tuning(String name, float[] cents) {
+        if(cents.length != 12)
+            throw new IllegalArgumentException("A tuning needs 12 offsets, got " + cents.length);
+        this.name = name;
+        this.cents = Arrays.copyOf(cents, 12);
+        centsKey = Arrays.toString(this.cents);
+    }
+
+    /**
+     * Returns the deviation from equal temperament of the given note.
+     * @param interval The distance in semitones between the note and the base note of the exercise, can be negative
+     * @return The offset in cents
+     */
+    public float getCents(int interval) {
+        return cents[pitchClass(interval)];
+    }
+
+    /**
+     * @return True if this Tuning does not deviate from equal temperament
+     */
+    public boolean isEqualTemperament() {
+        for (float value : cents) {
+            if(value != 0f)
+                return false;
+        }
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return A key that identifies this Tuning by its offsets, names are not unique
+     */
+    public String getCentsKey() {
+        return centsKey;
+    }
+
+    private static int pitchClass(int interval) {
+        return ((interval % 12) + 12) % 12;
+    }
+
+    /**
+     * Returns the preset with the given name.
+     * @param name The name of the preset
+     * @return The preset, or {@link #EQUAL} if there is no preset with that name
+     */
+    public static Tuning forName(String name) {
+        switch (name) {
+            case "just":
+                return JUST;
+            case "pythagorean":
+                return PYTHAGOREAN;
+            default:
+                return EQUAL;
+        }
+    }
+
+    /**
+     * Reads a Tuning from the "tuning" value of a Module JSON
+     * @param reader The JsonReader, positioned at the value
+     * @return The Tuning that was read
+     * @throws IOException
+     */
+    public static Tuning readFromJson(JsonReader reader) throws IOException {
+        if(reader.peek() == JsonToken.STRING)
+            return forName(reader.nextString());
+
+        String name = "custom";
+        float[] cents = new float[12];
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "cents":
+                    reader.beginArray();
+                    for (int i = 0; reader.hasNext(); i++) {
+                        float value = (float) reader.nextDouble();
+                        if(i < 12)
+                            cents[i] = value;
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return new Tuning(name, cents);
+    }
+
+    /**
+     * Writes this Tuning as the value of a "tuning" field, presets are written by name.
+     * @param writer The JsonWriter to write to
+     * @throws IOException
+     */
+    public void writeToJson(JsonWriter writer) throws IOException {
+        if(this == EQUAL || this == JUST || this == PYTHAGOREAN) {
+            writer.value(name);
+            return;
+        }
+        writer.beginObject();
+        writer.name("name");
+        writer.value(name);
+        writer.name("cents");
+        writer.beginArray();
+        for (float value : cents) {
+            writer.value(value);
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+}
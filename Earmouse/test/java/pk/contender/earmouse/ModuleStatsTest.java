@@ -0,0 +1,92 @@
+package pk.contender.earmouse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests merging imported answers into a stored history with {@link pk.contender.earmouse.ModuleStats}.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ModuleStatsTest {
+
+    private static final long START = 1400000000000L;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void reimportChangesNothing() throws IOException {
+        LogStatsStore store = new LogStatsStore(tmp.newFolder("store"));
+        AnswerHistory history = history(0, 20);
+        store.replace(1, history);
+        LogStatsStore exported = new LogStatsStore(tmp.newFolder("exported"));
+        exported.replace(1, history);
+
+        for (int i = 0; i < 2; i++) {
+            StatsSummary summary = merge(store, exported);
+            assertEquals(3 + 20, summary.getAnswers());
+            assertHistory(history, store.load(1));
+        }
+    }
+
+    @Test
+    public void importAddsNewAnswersOnce() throws IOException {
+        LogStatsStore store = new LogStatsStore(tmp.newFolder("store"));
+        store.replace(1, history(0, 10));
+        // Overlaps the stored answers for five of them
+        LogStatsStore exported = new LogStatsStore(tmp.newFolder("exported"));
+        exported.replace(1, history(5, 15));
+
+        StatsSummary summary = merge(store, exported);
+        assertEquals(3 + 15, summary.getAnswers());
+        AnswerHistory merged = history(0, 15);
+        assertHistory(merged, store.load(1));
+
+        // Importing the same answers again changes nothing
+        merge(store, exported);
+        assertHistory(merged, store.load(1));
+    }
+
+    private static StatsSummary merge(StatsStore store, StatsStore exported) throws IOException {
+        StatsStore.Cursor imported = exported.open(1);
+        try {
+            return ModuleStats.merge(store, 1, imported);
+        } finally {
+            imported.close();
+        }
+    }
+
+    /**
+     * @return A rollup of three answers followed by the answers from index first up to index last, one a minute
+     */
+    private static AnswerHistory history(int first, int last) {
+        AnswerHistory history = new AnswerHistory();
+        history.addRollup(16000, 2, 3, 2);
+        for (int i = first; i < last; i++) {
+            history.add(i % 4, i % 3 != 0, START + i * 60000L);
+        }
+        return history;
+    }
+
+    private static void assertHistory(AnswerHistory expected, AnswerHistory actual) {
+        assertEquals("rollups", expected.getRollupCount(), actual.getRollupCount());
+        for (int i = 0; i < expected.getRollupCount(); i++) {
+            assertEquals("rollup day " + i, expected.getRollupDay(i), actual.getRollupDay(i));
+            assertEquals("rollup exercise " + i, expected.getRollupExerciseIndex(i), actual.getRollupExerciseIndex(i));
+            assertEquals("rollup answers " + i, expected.getRollupAnswers(i), actual.getRollupAnswers(i));
+            assertEquals("rollup correct " + i, expected.getRollupCorrect(i), actual.getRollupCorrect(i));
+        }
+        assertEquals("answers", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("timestamp " + i, expected.getTimestamp(i), actual.getTimestamp(i));
+            assertEquals("exercise " + i, expected.getExerciseIndex(i), actual.getExerciseIndex(i));
+            assertEquals("result " + i, expected.getResult(i), actual.getResult(i));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package pk.contender.earmouse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests merging {@link pk.contender.earmouse.StatsSnapshot} counters and snapshot directories.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class StatsSnapshotTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void mergeIsIdempotent() {
+        StatsSnapshot.Counters a = phoneCounters();
+        StatsSnapshot.Counters b = tabletCounters();
+
+        assertCounters(a, StatsSnapshot.Counters.merge(a, a));
+        StatsSnapshot.Counters merged = StatsSnapshot.Counters.merge(a, b);
+        assertCounters(merged, StatsSnapshot.Counters.merge(merged, a));
+        assertCounters(merged, StatsSnapshot.Counters.merge(merged, b));
+        assertCounters(merged, StatsSnapshot.Counters.merge(merged, merged));
+    }
+
+    @Test
+    public void mergeIsCommutative() {
+        StatsSnapshot.Counters a = phoneCounters();
+        StatsSnapshot.Counters b = tabletCounters();
+
+        assertCounters(StatsSnapshot.Counters.merge(a, b), StatsSnapshot.Counters.merge(b, a));
+    }
+
+    @Test
+    public void mergeKeepsTheLargestOfEachCounter() {
+        StatsSnapshot.Counters a = new StatsSnapshot.Counters();
+        a.add("phone", 1, 0, 10, 2);
+        a.add("phone", 1, 1, 3, 3);
+        StatsSnapshot.Counters b = new StatsSnapshot.Counters();
+        b.add("phone", 1, 0, 7, 5);
+        b.add("phone", 1, 2, 1, 0);
+
+        StatsSnapshot.Counters expected = new StatsSnapshot.Counters();
+        expected.add("phone", 1, 0, 10, 5);
+        expected.add("phone", 1, 1, 3, 3);
+        expected.add("phone", 1, 2, 1, 0);
+        assertCounters(expected, StatsSnapshot.Counters.merge(a, b));
+    }
+
+    @Test
+    public void mergeDirectoriesBothWays() throws IOException {
+        File phone = tmp.newFolder("phone");
+        File tablet = tmp.newFolder("tablet");
+        writeDevice(phone, "phone", phoneCounters());
+        writeDevice(tablet, "tablet", tabletCounters());
+
+        StatsSnapshot.merge(phone, tablet);
+        StatsSnapshot.merge(tablet, phone);
+
+        StatsSnapshot.Counters expected = StatsSnapshot.Counters.merge(phoneCounters(), tabletCounters());
+        assertCounters(expected, StatsSnapshot.Counters.read(new File(phone, "counters.bin")));
+        assertCounters(expected, StatsSnapshot.Counters.read(new File(tablet, "counters.bin")));
+        for (String log : new String[] { "phone/stats_1.log", "phone/stats_2.log", "tablet/stats_1.log" }) {
+            assertArrayEquals(log, read(new File(phone, log)), read(new File(tablet, log)));
+        }
+
+        // Merging again changes nothing
+        byte[] counters = read(new File(tablet, "counters.bin"));
+        StatsSnapshot.merge(phone, tablet);
+        assertArrayEquals(counters, read(new File(tablet, "counters.bin")));
+    }
+
+    @Test
+    public void mergeKeepsTheNewerLog() throws IOException {
+        File older = tmp.newFolder("older");
+        File newer = tmp.newFolder("newer");
+        StatsSnapshot.Counters before = new StatsSnapshot.Counters();
+        before.add("phone", 1, 0, 2, 1);
+        writeDevice(older, "phone", before);
+        StatsSnapshot.Counters after = new StatsSnapshot.Counters();
+        after.add("phone", 1, 0, 5, 3);
+        writeDevice(newer, "phone", after);
+
+        StatsSnapshot.merge(older, newer);
+        assertEquals(5, new LogStatsStore(new File(newer, "phone")).load(1).size());
+        StatsSnapshot.merge(newer, older);
+        assertEquals(5, new LogStatsStore(new File(older, "phone")).load(1).size());
+        assertCounters(after, StatsSnapshot.Counters.read(new File(older, "counters.bin")));
+    }
+
+    private static StatsSnapshot.Counters phoneCounters() {
+        StatsSnapshot.Counters counters = new StatsSnapshot.Counters();
+        counters.add("phone", 1, 0, 4, 3);
+        counters.add("phone", 1, 1, 2, 0);
+        counters.add("phone", 2, -1, 1, 1);
+        counters.add("tablet", 1, 0, 1, 1);
+        return counters;
+    }
+
+    private static StatsSnapshot.Counters tabletCounters() {
+        StatsSnapshot.Counters counters = new StatsSnapshot.Counters();
+        counters.add("phone", 1, 0, 3, 2);
+        counters.add("tablet", 1, 0, 2, 1);
+        counters.add("tablet", 1, 3, 1, 0);
+        return counters;
+    }
+
+    /**
+     * Write the counters into a snapshot, with a log holding as many answers as the counters count for every
+     * Module of the given device
+     */
+    private static void writeDevice(File snapshot, String device, StatsSnapshot.Counters counters)
+            throws IOException {
+        File deviceDir = new File(snapshot, device);
+        assertTrue(deviceDir.mkdirs());
+        LogStatsStore logs = new LogStatsStore(deviceDir);
+        long timestamp = 1400000000000L;
+        for (int i = 0; i < counters.size; i++) {
+            if(!counters.devices[i].equals(device))
+                continue;
+            AnswerHistory history = new AnswerHistory();
+            for (int answer = 0; answer < counters.answers[i]; answer++) {
+                history.add(counters.exercises[i], answer < counters.correct[i], timestamp);
+                timestamp += 1000;
+            }
+            logs.append(counters.modules[i], history);
+        }
+        counters.write(new File(snapshot, "counters.bin"));
+    }
+
+    private static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    private static void assertCounters(StatsSnapshot.Counters expected, StatsSnapshot.Counters actual) {
+        assertEquals("size", expected.size, actual.size);
+        for (int i = 0; i < expected.size; i++) {
+            assertEquals("device " + i, expected.devices[i], actual.devices[i]);
+            assertEquals("module " + i, expected.modules[i], actual.modules[i]);
+            assertEquals("exercise " + i, expected.exercises[i], actual.exercises[i]);
+            assertEquals("answers " + i, expected.answers[i], actual.answers[i]);
+            assertEquals("correct " + i, expected.correct[i], actual.correct[i]);
+        }
+    }
+}
@@ -4,6 +4,8 @@
 # After its input will write a JSON to "module_<ID>.json"
 # lowestNote and highestNote have boundarier of 0 and 41,
 # the 0 being the C2 and 41 the E5
+# The app can derive notes down to -12 (C1) and up to 52 (E6) from the nearest sample,
+# so those can be used as well.
 
 __version__ = "0.3"
 __author__ = "Paul Klinkenberg"